@@ -0,0 +1,56 @@
+#!/bin/sh
+# run benchmarks against two revisions of core and print scores side by side
+# usage: compare.sh <base revision> [<revision>, default HEAD] [jmh arguments]
+# benchmark sources are taken from current tree, so they must compile against both revisions
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "usage: $0 <base revision> [<revision>] [jmh arguments]"
+    exit 1
+fi
+
+BASE=$1
+shift
+REV=HEAD
+if [ $# -gt 0 ]; then
+    REV=$1
+    shift
+fi
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(git -C "$BENCH_DIR" rev-parse --show-toplevel)
+RESULTS="$BENCH_DIR/results"
+mkdir -p "$RESULTS"
+
+# revisions are installed into temporary local repository, so jed2k artifact of user's repository stays untouched
+REPO=$(mktemp -d)
+trap 'rm -rf "$REPO"' EXIT
+
+run() {
+    SHA=$(git -C "$ROOT" rev-parse --short "$1")
+    shift
+    WORK=$(mktemp -d)
+    git -C "$ROOT" worktree add --detach "$WORK" "$SHA" > /dev/null
+    trap 'git -C "$ROOT" worktree remove --force "$WORK"' EXIT
+    (cd "$WORK/core" && mvn -B -q install -Dmaven.test.skip=true -Dmaven.repo.local="$REPO") >&2
+    (cd "$BENCH_DIR" && mvn -B -q clean package -Dmaven.repo.local="$REPO") >&2
+    java -jar "$BENCH_DIR/target/benchmarks.jar" -rf csv -rff "$RESULTS/$SHA.csv" "$@" >&2
+    git -C "$ROOT" worktree remove --force "$WORK"
+    trap - EXIT
+    echo "$RESULTS/$SHA.csv"
+}
+
+BASE_CSV=$(run "$BASE" "$@")
+REV_CSV=$(run "$REV" "$@")
+
+# join rows by benchmark name and parameters, score is 5th column in JMH csv
+awk -F, '
+    function key(   k, i) { k = $1; for(i = 8; i <= NF; ++i) k = k "," $i; return k }
+    FNR == 1 { next }
+    NR == FNR { base[key()] = $5; next }
+    {
+        k = key()
+        if (k in base) printf "%-90s %14.3f %14.3f %8.1f%%  %s\n", k, base[k], $5, ($5 - base[k]) * 100 / base[k], $7
+    }
+' "$BASE_CSV" "$REV_CSV"
@@ -0,0 +1,37 @@
+package org.dkf.jed2k.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * loads captured network data shared with unit tests
+ */
+public final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * @param name resource name
+     * @return little endian buffer ready for reading
+     * @throws IOException
+     */
+    public static ByteBuffer load(final String name) throws IOException {
+        InputStream is = Fixtures.class.getClassLoader().getResourceAsStream(name);
+        if (is == null) throw new IOException("resource " + name + " not found");
+
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] data = new byte[4096];
+            int n;
+            while((n = is.read(data)) != -1) os.write(data, 0, n);
+            ByteBuffer res = ByteBuffer.wrap(os.toByteArray());
+            res.order(ByteOrder.LITTLE_ENDIAN);
+            return res;
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.dkf.jed2k.benchmark;
+
+import org.dkf.jed2k.BlockManager;
+import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MD4 hashing of received blocks and whole pieces directly and through block manager
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    private ByteBuffer block;
+    private ByteBuffer piece;
+    private final MD4 hasher = new MD4();
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[Constants.BLOCK_SIZE_INT];
+        new Random(1).nextBytes(data);
+        block = "direct".equals(buffer)?ByteBuffer.allocateDirect(data.length):ByteBuffer.allocate(data.length);
+        block.put(data);
+        block.flip();
+
+        piece = "direct".equals(buffer)?ByteBuffer.allocateDirect((int)Constants.PIECE_SIZE):ByteBuffer.allocate((int)Constants.PIECE_SIZE);
+        while(piece.hasRemaining()) piece.put(block.duplicate());
+        piece.flip();
+    }
+
+    @Benchmark
+    public byte[] md4Block() {
+        hasher.reset();
+        hasher.update(block.duplicate());
+        return hasher.digest();
+    }
+
+    @Benchmark
+    public byte[] md4Piece() {
+        hasher.reset();
+        hasher.update(piece.duplicate());
+        return hasher.digest();
+    }
+
+    @Benchmark
+    public Hash registerPieceBlocks() {
+        BlockManager mgr = new BlockManager(0, Constants.BLOCKS_PER_PIECE);
+        // blocks arrive out of order, so part of them waits for previous ones
+        for(int i = Constants.BLOCKS_PER_PIECE - 1; i >= 0; i -= 2) mgr.registerBlock(i, block.duplicate());
+        for(int i = Constants.BLOCKS_PER_PIECE - 2; i >= 0; i -= 2) mgr.registerBlock(i, block.duplicate());
+        return mgr.pieceHash();
+    }
+}
@@ -0,0 +1,146 @@
+package org.dkf.jed2k.benchmark;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Container;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PacketHeader;
+import org.dkf.jed2k.protocol.PacketKey;
+import org.dkf.jed2k.protocol.Serializable;
+import org.dkf.jed2k.protocol.UInt16;
+import org.dkf.jed2k.protocol.client.RequestParts64;
+import org.dkf.jed2k.protocol.kad.Kad2SearchRes;
+import org.dkf.jed2k.protocol.kad.KadSearchEntry;
+import org.dkf.jed2k.protocol.server.PacketCombiner;
+import org.dkf.jed2k.protocol.server.SharedFileEntry;
+import org.dkf.jed2k.protocol.server.search.SearchResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * packets parsing on selector thread
+ * server search result is built from captured KAD search entries, so it contains real file names and tags
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCombinerBenchmark {
+
+    @Param({"search_game.dat", "search_roxette.dat"})
+    public String capture;
+
+    private final PacketCombiner combiner = new PacketCombiner();
+    private final org.dkf.jed2k.protocol.client.PacketCombiner clientCombiner = new org.dkf.jed2k.protocol.client.PacketCombiner();
+    private final PacketHeader header = new PacketHeader();
+    private SearchResult searchResult;
+    private ByteBuffer searchResultPacket;
+    private ByteBuffer packedSearchResult;
+    private ByteBuffer packedWork;
+    private PacketHeader packedHeader = new PacketHeader();
+    private ByteBuffer requestPartsPacket;
+    private ByteBuffer kadSearchRes;
+    private ByteBuffer outgoing;
+
+    @Setup
+    public void setUp() throws IOException, JED2KException {
+        Container<UInt16, KadSearchEntry> entries = Container.makeShort(KadSearchEntry.class);
+        entries.get(Fixtures.load(capture));
+
+        searchResult = new SearchResult();
+        for(final KadSearchEntry e: entries.getList()) {
+            SharedFileEntry sfe = new SharedFileEntry();
+            sfe.hash.assign(e.getKid());
+            sfe.properties.addAll(e.getInfo().getList());
+            searchResult.getResults().add(sfe);
+        }
+
+        outgoing = ByteBuffer.allocate(searchResult.bytesCount() + PacketHeader.SIZE + 1);
+        outgoing.order(ByteOrder.LITTLE_ENDIAN);
+        if (!combiner.pack(searchResult, outgoing)) throw new IllegalStateException("search result doesn't fit buffer");
+        outgoing.flip();
+        searchResultPacket = ByteBuffer.allocate(outgoing.remaining());
+        searchResultPacket.order(ByteOrder.LITTLE_ENDIAN);
+        searchResultPacket.put(outgoing);
+        searchResultPacket.flip();
+
+        // server sends large search results compressed by packed protocol
+        ByteBuffer body = view(searchResultPacket);
+        body.position(PacketHeader.SIZE);
+        byte[] plain = new byte[body.remaining()];
+        body.get(plain);
+        Deflater deflater = new Deflater();
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] compressed = new byte[plain.length + 64];
+        int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+        packedSearchResult = ByteBuffer.wrap(compressed, 0, compressedLength);
+        packedSearchResult.order(ByteOrder.LITTLE_ENDIAN);
+        packedWork = ByteBuffer.allocate(plain.length + 64);
+        packedWork.order(ByteOrder.LITTLE_ENDIAN);
+        header.get(view(searchResultPacket));
+        packedHeader.reset(PacketKey.pk(PacketCombiner.ProtocolType.OP_PACKEDPROT.value, header.key().packet), compressedLength + 1);
+
+        RequestParts64 rp = new RequestParts64(Hash.EMULE);
+        rp.append(0, 1000);
+        rp.append(1000, 2000);
+        rp.append(2000, 3000);
+        requestPartsPacket = ByteBuffer.allocate(rp.bytesCount() + PacketHeader.SIZE + 1);
+        requestPartsPacket.order(ByteOrder.LITTLE_ENDIAN);
+        clientCombiner.pack(rp, requestPartsPacket);
+        requestPartsPacket.flip();
+
+        kadSearchRes = Fixtures.load("kad2_search_res_1.dat");
+    }
+
+    private static ByteBuffer view(final ByteBuffer src) {
+        ByteBuffer res = src.duplicate();
+        res.order(ByteOrder.LITTLE_ENDIAN);
+        return res;
+    }
+
+    @Benchmark
+    public Serializable unpackSearchResult() throws JED2KException {
+        ByteBuffer src = view(searchResultPacket);
+        header.get(src);
+        return combiner.unpack(header, src);
+    }
+
+    @Benchmark
+    public Serializable unpackPackedSearchResult() throws JED2KException {
+        // unpack resets header size to inflated size and may overwrite source buffer, so restore both
+        header.reset(packedHeader.key(), packedHeader.sizePacket() + 1);
+        packedWork.clear();
+        packedWork.put(packedSearchResult.duplicate());
+        packedWork.flip();
+        return combiner.unpack(header, packedWork);
+    }
+
+    @Benchmark
+    public Serializable unpackRequestParts() throws JED2KException {
+        ByteBuffer src = view(requestPartsPacket);
+        header.get(src);
+        return clientCombiner.unpack(header, src);
+    }
+
+    @Benchmark
+    public ByteBuffer packSearchResult() throws JED2KException {
+        outgoing.clear();
+        combiner.pack(searchResult, outgoing);
+        return outgoing;
+    }
+
+    @Benchmark
+    public Kad2SearchRes parseKadSearchResult() throws JED2KException {
+        Kad2SearchRes res = new Kad2SearchRes();
+        res.get(view(kadSearchRes));
+        return res;
+    }
+}
@@ -0,0 +1,101 @@
+package org.dkf.jed2k.benchmark;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.protocol.BitField;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * piece picker of multi-thousand pieces transfer in swarm of partial sources
+ * 4000 pieces is about 37GB file
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark {
+
+    @Param({"1000", "4000"})
+    public int pieces;
+
+    @Param({"50"})
+    public int peers;
+
+    /**
+     * pieces in downloading state at the same time
+     */
+    @Param({"200"})
+    public int downloading;
+
+    private PiecePicker picker;
+    private BitField[] remotePieces;
+    private Peer[] remotePeers;
+    private int[] downloadingPieces;
+    private final LinkedList<PieceBlock> request = new LinkedList<PieceBlock>();
+    private final Random rnd = new Random(1);
+    private int index = 0;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        picker = new PiecePicker(pieces, Constants.BLOCKS_PER_PIECE);
+        remotePieces = new BitField[peers];
+        remotePeers = new Peer[peers];
+        for(int i = 0; i < peers; ++i) {
+            BitField bf = new BitField(pieces);
+            for(int j = 0; j < pieces; ++j) {
+                if (rnd.nextInt(100) < 60) bf.setBit(j);
+            }
+
+            remotePieces[i] = bf;
+            remotePeers[i] = new Peer(new Endpoint(rnd.nextInt(), rnd.nextInt(65535)));
+            picker.addAvailability(bf);
+        }
+
+        downloadingPieces = new int[downloading];
+        for(int i = 0; i < downloading; ++i) {
+            int p = rnd.nextInt(pieces);
+            if (picker.getDownloadingPiece(p) == null) picker.downloadPiece(p);
+            downloadingPieces[i] = p;
+        }
+    }
+
+    private int nextPeer() {
+        index = (index + 1) % peers;
+        return index;
+    }
+
+    @Benchmark
+    public boolean chooseRarestPiece() {
+        boolean res = picker.chooseNextPiece(remotePieces[nextPeer()]);
+        if (res) {
+            List<DownloadingPiece> queue = picker.getDownloadingQueue();
+            picker.restorePiece(queue.get(queue.size() - 1).getPieceIndex());
+        }
+
+        return res;
+    }
+
+    @Benchmark
+    public int pickBlocks() {
+        int peer = nextPeer();
+        request.clear();
+        picker.pickPieces(request, Constants.REQUEST_QUEUE_SIZE, remotePeers[peer], PeerConnection.PeerSpeed.MEDIUM, remotePieces[peer]);
+        for(final PieceBlock b: request) picker.abortDownload(b, remotePeers[peer]);
+        return request.size();
+    }
+
+    @Benchmark
+    public boolean blockLookup() {
+        int p = downloadingPieces[nextPeer() % downloadingPieces.length];
+        PieceBlock b = new PieceBlock(p, index % Constants.BLOCKS_PER_PIECE);
+        return picker.isBlockDownloaded(b) || picker.isPieceFinished(p);
+    }
+}
@@ -0,0 +1,79 @@
+package org.dkf.jed2k.benchmark;
+
+import org.dkf.jed2k.kad.NodeEntry;
+import org.dkf.jed2k.kad.RoutingTable;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.kad.KadEntry;
+import org.dkf.jed2k.protocol.kad.KadId;
+import org.dkf.jed2k.protocol.kad.KadNodesDat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lookups in routing table filled by captured nodes.dat and random nodes until buckets are full
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingTableBenchmark {
+
+    private static final int TARGETS = 1024;
+
+    @Param({"10"})
+    public int bucketSize;
+
+    @Param({"5000"})
+    public int nodes;
+
+    private RoutingTable table;
+    private final KadId[] targets = new KadId[TARGETS];
+    private NodeEntry[] known;
+    private int index = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random rnd = new Random(1);
+        table = new RoutingTable(new KadId(KadId.random(false)), bucketSize);
+        KadNodesDat nodesDat = new KadNodesDat();
+        nodesDat.get(Fixtures.load("nodes.dat"));
+
+        for(final KadEntry e: nodesDat.getContacts()) {
+            table.addNode(new NodeEntry(e.getKid(), e.getKadEndpoint().getEndpoint(), true, 0, e.getVersion()));
+        }
+
+        for(int i = 0; i < nodes; ++i) {
+            table.addNode(new NodeEntry(new KadId(KadId.random(false)), new Endpoint(rnd.nextInt(), rnd.nextInt(65535)), true, 0, (byte)8));
+        }
+
+        for(int i = 0; i < TARGETS; ++i) targets[i] = new KadId(KadId.random(false));
+        List<NodeEntry> live = table.findNode(table.getSelf(), false, bucketSize*4);
+        known = live.toArray(new NodeEntry[live.size()]);
+    }
+
+    private KadId nextTarget() {
+        index = (index + 1) % TARGETS;
+        return targets[index];
+    }
+
+    @Benchmark
+    public List<NodeEntry> findNode() {
+        return table.findNode(nextTarget(), false, bucketSize);
+    }
+
+    @Benchmark
+    public int findBucket() {
+        return table.findBucket(nextTarget());
+    }
+
+    @Benchmark
+    public boolean nodeSeen() {
+        NodeEntry e = known[index++ % known.length];
+        return table.nodeSeen(e.getId(), e.getEndpoint(), 0, (byte)8);
+    }
+}
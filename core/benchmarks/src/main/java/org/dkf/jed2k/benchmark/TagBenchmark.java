@@ -0,0 +1,69 @@
+package org.dkf.jed2k.benchmark;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Container;
+import org.dkf.jed2k.protocol.UInt16;
+import org.dkf.jed2k.protocol.UInt8;
+import org.dkf.jed2k.protocol.kad.KadSearchEntry;
+import org.dkf.jed2k.protocol.tag.Tag;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * tags parsing and lookup of tags of captured search entries
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagBenchmark {
+
+    private ByteBuffer tags;
+    private int count;
+    private List<KadSearchEntry> entries;
+
+    @Setup
+    public void setUp() throws IOException, JED2KException {
+        Container<UInt16, KadSearchEntry> captured = Container.makeShort(KadSearchEntry.class);
+        captured.get(Fixtures.load("search_game.dat"));
+        entries = new ArrayList<KadSearchEntry>(captured.getList());
+
+        int size = 0;
+        for(final KadSearchEntry e: entries) size += e.getInfo().bytesCount();
+        tags = ByteBuffer.allocate(size);
+        tags.order(ByteOrder.LITTLE_ENDIAN);
+        for(final KadSearchEntry e: entries) e.getInfo().put(tags);
+        tags.flip();
+        count = entries.size();
+    }
+
+    @Benchmark
+    public void parseTags(final Blackhole bh) throws JED2KException {
+        ByteBuffer src = tags.duplicate();
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < count; ++i) {
+            Container<UInt8, Tag> info = Container.makeByte(Tag.class);
+            info.get(src);
+            bh.consume(info);
+        }
+    }
+
+    @Benchmark
+    public void searchEntryProperties(final Blackhole bh) {
+        for(final KadSearchEntry e: entries) {
+            bh.consume(e.getFileName());
+            bh.consume(e.getFileSize());
+            bh.consume(e.getSources());
+            bh.consume(e.getCompleteSources());
+        }
+    }
+}
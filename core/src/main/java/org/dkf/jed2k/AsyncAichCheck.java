@@ -0,0 +1,49 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.ErrorCode;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.AichHash;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * callable for block level verification of piece with wrong hash by trusted AICH hashes of it's blocks
+ * executed by disk thread of transfer after all writes of piece through own channel
+ */
+public class AsyncAichCheck implements Callable<AsyncOperationResult> {
+    final Transfer transfer;
+    final int pieceIndex;
+    final long fileSize;
+    final List<AichHash> hashes;
+
+    public AsyncAichCheck(final Transfer t, int pieceIndex, long fileSize, final List<AichHash> hashes) {
+        assert t != null;
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.fileSize = fileSize;
+        this.hashes = hashes;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        FileChannel c = null;
+        try {
+            c = transfer.pm.openReadChannel();
+            List<Integer> blocks = transfer.pm.findCorruptedBlocks(pieceIndex, fileSize, c, hashes);
+            return new AsyncAichCheckResult(transfer, pieceIndex, blocks, ErrorCode.NO_ERROR);
+        } catch(JED2KException e) {
+            return new AsyncAichCheckResult(transfer, pieceIndex, null, e.getErrorCode());
+        } finally {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch(IOException e) {
+                    // nothing to do, piece already checked
+                }
+            }
+        }
+    }
+}
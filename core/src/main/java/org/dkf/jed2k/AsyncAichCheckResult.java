@@ -0,0 +1,32 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.BaseErrorCode;
+
+import java.util.List;
+
+/**
+ * blocks of piece with data not matched to AICH hashes, blocks are null on i/o error
+ */
+public class AsyncAichCheckResult implements AsyncOperationResult {
+    final Transfer transfer;
+    final int pieceIndex;
+    final List<Integer> corruptedBlocks;
+    final BaseErrorCode code;
+
+    public AsyncAichCheckResult(final Transfer t, int pieceIndex, final List<Integer> corruptedBlocks, final BaseErrorCode ec) {
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.corruptedBlocks = corruptedBlocks;
+        code = ec;
+    }
+
+    @Override
+    public void onCompleted() {
+        transfer.onAichCheckCompleted(pieceIndex, corruptedBlocks, code);
+    }
+
+    @Override
+    public BaseErrorCode getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,49 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.ErrorCode;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * callable for force recheck of one piece in hashing thread
+ * piece is read from file by large positional reads through own channel, so pieces are checked in parallel
+ */
+public class AsyncCheckPiece implements Callable<AsyncOperationResult> {
+    static final int READ_SIZE = 1024*1024;
+
+    final Transfer transfer;
+    final int pieceIndex;
+    final long fileSize;
+
+    public AsyncCheckPiece(final Transfer t, int pieceIndex, long fileSize) {
+        assert t != null;
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        FileChannel c = null;
+        try {
+            c = transfer.pm.openReadChannel();
+            Hash h = transfer.pm.hashPiece(pieceIndex, fileSize, c, ByteBuffer.allocate(READ_SIZE));
+            return new AsyncCheckPieceResult(transfer, pieceIndex, h, ErrorCode.NO_ERROR);
+        } catch(JED2KException e) {
+            return new AsyncCheckPieceResult(transfer, pieceIndex, null, e.getErrorCode());
+        } finally {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch(IOException e) {
+                    // nothing to do, piece already checked
+                }
+            }
+        }
+    }
+}
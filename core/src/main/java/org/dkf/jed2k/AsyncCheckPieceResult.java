@@ -0,0 +1,31 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.BaseErrorCode;
+import org.dkf.jed2k.protocol.Hash;
+
+/**
+ * hash of piece read from file on force recheck, hash is null when file has no data of piece
+ */
+public class AsyncCheckPieceResult implements AsyncOperationResult {
+    final Transfer transfer;
+    final int pieceIndex;
+    final Hash hash;
+    final BaseErrorCode code;
+
+    public AsyncCheckPieceResult(final Transfer t, int pieceIndex, final Hash hash, final BaseErrorCode ec) {
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.hash = hash;
+        code = ec;
+    }
+
+    @Override
+    public void onCompleted() {
+        transfer.onPieceCheckCompleted(pieceIndex, hash, code);
+    }
+
+    @Override
+    public BaseErrorCode getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,29 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.data.PieceBlock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * callable for async hashing of received block in hashing thread
+ * block is hashed in parallel with write, blocks of one piece are hashed sequentially
+ */
+public class AsyncHashBlock implements Callable<AsyncOperationResult> {
+    final Transfer transfer;
+    final PieceBlock block;
+    final ByteBuffer buffer;
+
+    public AsyncHashBlock(final Transfer t, final PieceBlock block, final ByteBuffer buffer) {
+        assert t != null;
+        assert buffer.hasRemaining();
+        transfer = t;
+        this.block = block;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        return new AsyncHashBlockResult(transfer, transfer.pm.hashBlock(block, buffer));
+    }
+}
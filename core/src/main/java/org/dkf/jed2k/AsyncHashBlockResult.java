@@ -0,0 +1,30 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.BaseErrorCode;
+import org.dkf.jed2k.exception.ErrorCode;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * result of block hashing, buffers of hashed blocks must be returned to pool
+ */
+public class AsyncHashBlockResult implements AsyncOperationResult {
+    final Transfer transfer;
+    final LinkedList<ByteBuffer> buffers;
+
+    public AsyncHashBlockResult(final Transfer t, final LinkedList<ByteBuffer> buffers) {
+        transfer = t;
+        this.buffers = buffers;
+    }
+
+    @Override
+    public void onCompleted() {
+        transfer.onBlockHashCompleted(buffers);
+    }
+
+    @Override
+    public BaseErrorCode getCode() {
+        return ErrorCode.NO_ERROR;
+    }
+}
@@ -0,0 +1,31 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Hash;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * callable for async hashing of piece assembled in memory in hashing thread
+ * buffers positions are not changed
+ */
+public class AsyncHashPiece implements Callable<AsyncOperationResult> {
+    final Transfer transfer;
+    final int pieceIndex;
+    final ByteBuffer[] buffers;
+
+    public AsyncHashPiece(final Transfer t, int pieceIndex, final ByteBuffer[] buffers) {
+        assert t != null;
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.buffers = buffers;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        MD4 hasher = new MD4();
+        for(final ByteBuffer b: buffers) hasher.update(b.duplicate());
+        return new AsyncHashPieceResult(transfer, pieceIndex, buffers, Hash.fromBytes(hasher.digest()));
+    }
+}
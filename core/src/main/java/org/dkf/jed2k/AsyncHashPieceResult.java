@@ -0,0 +1,34 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.BaseErrorCode;
+import org.dkf.jed2k.exception.ErrorCode;
+import org.dkf.jed2k.protocol.Hash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * hash of piece assembled in memory, buffers are still owned by piece
+ */
+public class AsyncHashPieceResult implements AsyncOperationResult {
+    final Transfer transfer;
+    final int pieceIndex;
+    final ByteBuffer[] buffers;
+    final Hash hash;
+
+    public AsyncHashPieceResult(final Transfer t, int pieceIndex, final ByteBuffer[] buffers, final Hash hash) {
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.buffers = buffers;
+        this.hash = hash;
+    }
+
+    @Override
+    public void onCompleted() {
+        transfer.onMemoryPieceHashCompleted(pieceIndex, buffers, hash);
+    }
+
+    @Override
+    public BaseErrorCode getCode() {
+        return ErrorCode.NO_ERROR;
+    }
+}
@@ -0,0 +1,22 @@
+package org.dkf.jed2k;
+
+import java.util.concurrent.Callable;
+
+/**
+ * callable for dropping hashing state of piece in it's hashing thread after all submitted blocks were hashed
+ * buffers waiting for hash are returned to pool
+ */
+public class AsyncReleasePiece implements Callable<AsyncOperationResult> {
+    private final Transfer transfer;
+    private final int pieceIndex;
+
+    public AsyncReleasePiece(final Transfer t, int pieceIndex) {
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        return new AsyncHashBlockResult(transfer, transfer.pm.releasePiece(pieceIndex));
+    }
+}
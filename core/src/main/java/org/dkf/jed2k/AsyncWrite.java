@@ -1,6 +1,7 @@
 package org.dkf.jed2k;
 
 import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.disk.WriteCombiner;
 import org.dkf.jed2k.exception.ErrorCode;
 import org.dkf.jed2k.exception.JED2KException;
 
@@ -16,10 +17,20 @@ import java.util.concurrent.Callable;
 public class AsyncWrite implements Callable<AsyncOperationResult> {
     final PieceBlock block;
     final ByteBuffer buffer;
+    final WriteCombiner.Entry entry;
     final Transfer transfer;
+    final boolean returnBuffer;
 
     // TODO - check parameters here, most likely no need peer request, use piece block here
+    // block is queued in piece manager on creation to be combined with adjacent queued blocks
     public AsyncWrite(final PieceBlock block, final ByteBuffer b, final Transfer t) {
+        this(block, b, t, false);
+    }
+
+    /**
+     * @param returnBuffer return buffer by write result since block is not hashed
+     */
+    public AsyncWrite(final PieceBlock block, final ByteBuffer b, final Transfer t, boolean returnBuffer) {
         assert b != null;
         assert block != null;
         assert t != null;
@@ -28,14 +39,26 @@ public class AsyncWrite implements Callable<AsyncOperationResult> {
         this.block = block;
         buffer = b;
         transfer = t;
+        this.returnBuffer = returnBuffer;
+        entry = t.pm.queueBlock(block, b);
     }
 
+    /**
+     * usually buffer is hashed and returned by block hash operation, so write result has no buffers
+     */
     @Override
     public AsyncOperationResult call() throws Exception {
+        LinkedList<ByteBuffer> buffers = null;
+        if (returnBuffer) {
+            buffers = new LinkedList<ByteBuffer>();
+            buffers.add(buffer);
+        }
+
         try {
-            return new AsyncWriteResult(block, transfer.pm.writeBlock(block, buffer), transfer, ErrorCode.NO_ERROR);
+            transfer.pm.writeBlock(block, entry);
+            return new AsyncWriteResult(block, buffers, transfer, ErrorCode.NO_ERROR);
         } catch(JED2KException e) {
-            return new AsyncWriteResult(block, new LinkedList<ByteBuffer>(){{addLast(buffer);}}, transfer, e.getErrorCode());
+            return new AsyncWriteResult(block, buffers, transfer, e.getErrorCode());
         }
     }
 }
@@ -0,0 +1,43 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.ErrorCode;
+import org.dkf.jed2k.exception.JED2KException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * callable for async write of piece verified in memory
+ * piece is written to disk by one vectored write
+ */
+public class AsyncWritePiece implements Callable<AsyncOperationResult> {
+    final Transfer transfer;
+    final int pieceIndex;
+    final ByteBuffer[] buffers;
+    final boolean passed;
+
+    public AsyncWritePiece(final Transfer t, int pieceIndex, final ByteBuffer[] buffers) {
+        this(t, pieceIndex, buffers, true);
+    }
+
+    /**
+     * @param passed piece hash is correct, piece with wrong hash is written for block level verification
+     */
+    public AsyncWritePiece(final Transfer t, int pieceIndex, final ByteBuffer[] buffers, boolean passed) {
+        assert t != null;
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.buffers = buffers;
+        this.passed = passed;
+    }
+
+    @Override
+    public AsyncOperationResult call() throws Exception {
+        try {
+            transfer.pm.writePiece(pieceIndex, buffers);
+            return new AsyncWritePieceResult(transfer, pieceIndex, buffers, passed, ErrorCode.NO_ERROR);
+        } catch(JED2KException e) {
+            return new AsyncWritePieceResult(transfer, pieceIndex, buffers, false, e.getErrorCode());
+        }
+    }
+}
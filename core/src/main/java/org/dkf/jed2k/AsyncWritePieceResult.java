@@ -0,0 +1,34 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.exception.BaseErrorCode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * result of piece verified in memory, buffers must be returned to pool
+ */
+public class AsyncWritePieceResult implements AsyncOperationResult {
+    final Transfer transfer;
+    final int pieceIndex;
+    final ByteBuffer[] buffers;
+    final boolean passed;
+    final BaseErrorCode code;
+
+    public AsyncWritePieceResult(final Transfer t, int pieceIndex, final ByteBuffer[] buffers, boolean passed, final BaseErrorCode ec) {
+        transfer = t;
+        this.pieceIndex = pieceIndex;
+        this.buffers = buffers;
+        this.passed = passed;
+        code = ec;
+    }
+
+    @Override
+    public void onCompleted() {
+        transfer.onPieceWriteCompleted(pieceIndex, buffers, passed, code);
+    }
+
+    @Override
+    public BaseErrorCode getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,66 @@
+package org.dkf.jed2k;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * session level bandwidth limiter
+ * limits are hierarchical: each connection consumes tokens from own bucket, bucket of transfer and session bucket
+ * connection which has no tokens in any level drops read or write interest on selector and waits here
+ * session loop wakes up each refill interval while somebody waits and re-arms connections which have got tokens
+ */
+public class BandwidthManager {
+    public static final int DOWNLOAD = 0;
+    public static final int UPLOAD = 1;
+
+    /**
+     * selector timeout while there are throttled connections
+     */
+    static final long REFILL_INTERVAL = 50;
+
+    private final TokenBucket[] buckets = { new TokenBucket(), new TokenBucket() };
+    private final LinkedList<Connection> throttled = new LinkedList<Connection>();
+
+    public BandwidthManager(final Settings settings) {
+        configure(settings);
+    }
+
+    public void configure(final Settings settings) {
+        buckets[DOWNLOAD].setRate(settings.downloadRateLimit);
+        buckets[UPLOAD].setRate(settings.uploadRateLimit);
+    }
+
+    TokenBucket getBucket(int direction) {
+        return buckets[direction];
+    }
+
+    void throttle(final Connection c) {
+        throttled.add(c);
+    }
+
+    boolean hasThrottled() {
+        return !throttled.isEmpty();
+    }
+
+    /**
+     * @return timeout for selector
+     */
+    long selectTimeout() {
+        return hasThrottled()?REFILL_INTERVAL:1000;
+    }
+
+    /**
+     * re-arm connections which have got tokens after refill
+     */
+    void process() {
+        Iterator<Connection> itr = throttled.iterator();
+        while(itr.hasNext()) {
+            Connection c = itr.next();
+            if (c.isDisconnecting() || c.unthrottle()) itr.remove();
+        }
+    }
+
+    void clear() {
+        throttled.clear();
+    }
+}
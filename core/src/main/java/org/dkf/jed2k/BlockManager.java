@@ -13,6 +13,7 @@ import java.util.LinkedList;
  * Created by inkpot on 17.07.2016.
  * this class designed to store information about dedicated piece
  * and partial hash
+ * thread safe since blocks are registered by hashing threads and restored by disk thread
  */
 public class BlockManager {
     private static final Logger log = LoggerFactory.getLogger(BlockManager.class);
@@ -20,15 +21,32 @@ public class BlockManager {
     private MD4 hasher = new MD4();
     private int lastHashedBlock = -1;
     private ByteBuffer[] buffers;
+    private byte[][] contexts;
     private int piece;
 
     public BlockManager(int piece, int buffersCount) {
         this.piece = piece;
         buffers = new ByteBuffer[buffersCount];
+        contexts = new byte[buffersCount][];
         Arrays.fill(buffers, null);
     }
 
-    public LinkedList<ByteBuffer> registerBlock(int blockIndex, ByteBuffer buffer) {
+    /**
+     * continue hashing of piece from saved state
+     * @param piece piece index
+     * @param buffersCount count of blocks in piece
+     * @param hashedBlocks count of full blocks from piece start hashed to context
+     * @param context MD4 chaining value after these blocks
+     */
+    public BlockManager(int piece, int buffersCount, int hashedBlocks, byte[] context) {
+        this(piece, buffersCount);
+        assert hashedBlocks > 0 && hashedBlocks < buffersCount;
+        hasher.setContext(context, (long)hashedBlocks*Constants.BLOCK_SIZE);
+        lastHashedBlock = hashedBlocks - 1;
+        contexts[lastHashedBlock] = context;
+    }
+
+    public synchronized LinkedList<ByteBuffer> registerBlock(int blockIndex, ByteBuffer buffer) {
         log.debug("register block {} last hashed block {}", blockIndex, lastHashedBlock);
         assert pieceHash == null;
         assert(buffer.hasRemaining());
@@ -45,6 +63,8 @@ public class BlockManager {
                 assert(buffers[i].hasRemaining());
                 hasher.update(buffers[i]);
                 assert(!buffers[i].hasRemaining());
+                // only full blocks precede last block of piece
+                if (i != buffers.length - 1) contexts[i] = hasher.getContext();
                 res.addLast(buffers[i]);
                 buffers[i] = null;
             }
@@ -55,7 +75,7 @@ public class BlockManager {
         return null;
     }
 
-    public Hash pieceHash() {
+    public synchronized Hash pieceHash() {
         if (pieceHash == null) {
             assert(lastHashedBlock == buffers.length - 1);
             pieceHash = Hash.fromBytes(hasher.digest());
@@ -64,11 +84,41 @@ public class BlockManager {
         return pieceHash;
     }
 
+    /**
+     * drop hashing state and return buffers waiting for previous blocks
+     * @return buffers registered but not hashed
+     */
+    public synchronized LinkedList<ByteBuffer> releaseBuffers() {
+        LinkedList<ByteBuffer> res = new LinkedList<>();
+        for(int i = 0; i < buffers.length; ++i) {
+            if (buffers[i] != null) res.addLast(buffers[i]);
+            buffers[i] = null;
+        }
+
+        return res;
+    }
+
+    /**
+     * @return count of blocks from piece start hashed already
+     */
+    public synchronized int hashedBlocks() {
+        return lastHashedBlock + 1;
+    }
+
+    /**
+     * @param blocks count of hashed blocks from piece start, less than blocks in piece
+     * @return MD4 chaining value after these blocks
+     */
+    public synchronized byte[] getContext(int blocks) {
+        assert blocks > 0 && blocks <= hashedBlocks() && blocks < buffers.length;
+        return contexts[blocks - 1];
+    }
+
     public int getPieceIndex() {
         return piece;
     }
 
-    final int getByteBuffersCount() {
+    final synchronized int getByteBuffersCount() {
         int res = 0;
         for(ByteBuffer b: buffers) {
             if (b != null) ++res;
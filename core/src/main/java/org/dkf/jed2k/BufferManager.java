@@ -0,0 +1,108 @@
+package org.dkf.jed2k;
+
+import org.dkf.jed2k.pool.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * divides session's block buffer pool between transfers
+ * reserved part of pool is divided equally between active transfers, transfer always can get buffers within it's reservation
+ * over reservation transfer borrows buffers which are not reserved by other transfers at the moment
+ * when new transfer becomes active borrowers get nothing until their buffers will be returned to pool, so
+ * reservations are reclaimed as blocks are written to disk
+ * no transfer can hold more buffers than hard limit
+ */
+public class BufferManager {
+    private final BufferPool pool;
+    private final Collection<Transfer> transfers;
+    private int reservePercent;
+    private int limitPercent;
+
+    public BufferManager(final BufferPool pool, final Collection<Transfer> transfers, final Settings settings) {
+        this.pool = pool;
+        this.transfers = transfers;
+        configure(settings);
+    }
+
+    public void configure(final Settings settings) {
+        reservePercent = Math.min(Math.max(settings.transferBufferReserve, 0), 100);
+        limitPercent = Math.min(Math.max(settings.transferBufferLimit, 1), 100);
+    }
+
+    /**
+     * @param t transfer
+     * @return true if transfer takes part in pool division
+     */
+    private static boolean isActive(final Transfer t) {
+        return t.poolBuffers > 0 || (!t.isPaused() && !t.isAborted() && !t.isFinished() && t.numConnections() > 0);
+    }
+
+    private int activeTransfers() {
+        int res = 0;
+        for(final Transfer t: transfers) {
+            if (isActive(t)) ++res;
+        }
+
+        return res;
+    }
+
+    /**
+     * @return max count of buffers one transfer can hold
+     */
+    public int limit() {
+        return Math.max(pool.maxBuffers()*limitPercent/100, 1);
+    }
+
+    /**
+     * @param t transfer
+     * @return count of buffers reserved for transfer, zero for inactive transfer
+     */
+    public int reservation(final Transfer t) {
+        if (!isActive(t)) return 0;
+        return pool.maxBuffers()*reservePercent/100/Math.max(activeTransfers(), 1);
+    }
+
+    /**
+     * @param t transfer
+     * @return count of buffers transfer can allocate right now
+     */
+    public int available(final Transfer t) {
+        int free = pool.availableBuffers();
+        if (t == null) return free;
+        int res = Math.min(limit() - t.poolBuffers, free);
+
+        // active transfers count includes this transfer when it is going to allocate
+        // transfer restoring resume data holds buffers before it is added to session's transfers
+        int active = activeTransfers() + ((isActive(t) && transfers.contains(t))?0:1);
+        int reservation = pool.maxBuffers()*reservePercent/100/active;
+        int reservedByOthers = 0;
+        for(final Transfer other: transfers) {
+            if (other != t && isActive(other)) reservedByOthers += Math.max(reservation - other.poolBuffers, 0);
+        }
+
+        int borrowable = free - reservedByOthers;
+        if (t.poolBuffers < reservation) borrowable = Math.max(borrowable, reservation - t.poolBuffers);
+        return Math.max(Math.min(res, borrowable), 0);
+    }
+
+    /**
+     * @param t transfer, null means allocation out of transfers accounting
+     * @return buffer or null if transfer can not get buffer now
+     */
+    public ByteBuffer allocate(final Transfer t) {
+        if (t != null && available(t) <= 0) return null;
+        ByteBuffer res = pool.allocate();
+        if (res != null && t != null) t.poolBuffers++;
+        return res;
+    }
+
+    public void deallocate(final Transfer t, final ByteBuffer buffer, long sessionTime) {
+        if (t != null) {
+            assert t.poolBuffers > 0;
+            t.poolBuffers--;
+        }
+
+        pool.deallocate(buffer, sessionTime);
+    }
+}
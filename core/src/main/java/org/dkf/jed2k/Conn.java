@@ -440,6 +440,9 @@ public class Conn {
             else if (parts[0].compareTo("report") == 0) {
                 log.info(report(s));
             }
+            else if (parts[0].compareTo("disk") == 0) {
+                log.info("[CONN] {}", s.getDiskIOStatus());
+            }
             else if (parts[0].compareTo("resumetran") == 0 && parts.length == 2) {
                 Hash hash = Hash.fromString(parts[1]);
                 TransferHandle handle = s.findTransfer(hash);
@@ -14,6 +14,7 @@ import java.nio.ByteOrder;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -33,9 +34,25 @@ public abstract class Connection implements Dispatcher {
 
     /**
      * buffer for outgoing packets, can contain more than one packet at the same time
+     * it is the first segment of write vector
      */
     private ByteBuffer bufferOutgoing;
 
+    /**
+     * segments of serialized packets sent by one gathering write
+     * segments from writeOffset to writeSize still have data to send
+     */
+    private ByteBuffer[] writeVector = new ByteBuffer[4];
+    private int writeOffset = 0;
+    private int writeSize = 0;
+
+    /**
+     * released standard size segments for reuse
+     */
+    private final LinkedList<ByteBuffer> freeSegments = new LinkedList<ByteBuffer>();
+    static final int SEGMENT_SIZE = 4096;
+    static final int MAX_FREE_SEGMENTS = 4;
+
     /**
      * order for packets to send to remote peer
      */
@@ -69,6 +86,17 @@ public abstract class Connection implements Dispatcher {
     long lastReceive = Time.currentTime();
     private boolean disconnecting = false;
 
+    /**
+     * connection level bandwidth buckets and throttled flags indexed by direction
+     */
+    private final TokenBucket[] buckets = { new TokenBucket(), new TokenBucket() };
+    private final boolean[] throttled = { false, false };
+
+    /**
+     * reading stopped by owner until resumeRead, independent from bandwidth throttling
+     */
+    private boolean readPaused = false;
+
     protected Connection(ByteBuffer bufferIncoming,
             ByteBuffer bufferOutgoing,
             PacketCombiner packetCombiner,
@@ -106,6 +134,8 @@ public abstract class Connection implements Dispatcher {
     public void onConnectable() {
         try {
             socket.finishConnect();
+            // connection established, since now we always read data from remote
+            key.interestOps(SelectionKey.OP_READ);
             onConnect();
             lastReceive = Time.currentTime();
         } catch(IOException e) {
@@ -126,7 +156,7 @@ public abstract class Connection implements Dispatcher {
 
         int bytes;
         try {
-            bytes = socket.read(headerBuffer);
+            bytes = readFromSocket(headerBuffer);
         }
         catch(NotYetConnectedException e) {
             throw new JED2KException(ErrorCode.NOT_CONNECTED);
@@ -172,7 +202,7 @@ public abstract class Connection implements Dispatcher {
             int bytes;
 
             try {
-                bytes = socket.read(bufferIncoming);
+                bytes = readFromSocket(bufferIncoming);
             }
             catch(NotYetConnectedException e) {
                 throw new JED2KException(ErrorCode.NOT_CONNECTED);
@@ -219,35 +249,39 @@ public abstract class Connection implements Dispatcher {
 
     void onWriteable() {
         try {
-            bufferOutgoing.clear();
             /**
-             * previous buffer was completely sent to socket
+             * previous write vector wasn't completely sent to socket - continue send it
+             */
+            if (writeOffset < writeSize) {
+                writeVector();
+                if (writeOffset < writeSize) return;
+            }
+
+            /**
+             * send payload of last packet directly to socket, new packets can be sent only after payload
+             */
+            if (!writePayload()) return;
+
+            /**
+             * previous vector was completely sent to socket
              * obtain new write in progress status
              */
             writeInProgress = !outgoingOrder.isEmpty();
-            Iterator<Serializable> itr = outgoingOrder.iterator();
-            while(itr.hasNext()) {
-            	// try to serialize packet into buffer
-                Serializable s = itr.next();
-                if (!packetCombainer.pack(s, bufferOutgoing)) break;
-                log.trace("{} >> {}", s.toString(), getEndpoint());
-                itr.remove();
-            }
+            int packets = serializePackets();
 
-            // if write in progress we have to have at least one packet in outgoing buffer
-            // check write not in progress or outgoing buffer position not in begin of buffer
-            assert(!writeInProgress || bufferOutgoing.position() != 0);
+            // if write in progress we have to have at least one packet in write vector
+            assert(!writeInProgress || writeSize != 0);
 
             /**
-             * if write in progress send current all data in buffer to remote peer and wait writeable again
+             * if write in progress send all serialized packets to remote peer by one call and wait writeable again
              */
             if (writeInProgress) {
-                bufferOutgoing.flip();
-                stat.sendBytes(bufferOutgoing.remaining(), 0);
-                socket.write(bufferOutgoing);
+                stat.sendPackets(packets);
+                writeVector();
+                if (writeOffset == writeSize) writePayload();
             } else {
                 // write not in progress - wait for data from remote peer
-                key.interestOps(SelectionKey.OP_READ);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             }
         }
         catch(JED2KException e) {
@@ -264,8 +298,241 @@ public abstract class Connection implements Dispatcher {
         }
     }
 
+    /**
+     * serialize packets from outgoing order into write vector
+     * packets are coalesced until vector size reaches limit from settings, packet which doesn't fit current segment
+     * is serialized into next segment, so large packets do not require re-allocation of outgoing buffer
+     * @return count of serialized packets
+     * @throws JED2KException
+     */
+    private int serializePackets() throws JED2KException {
+        releaseSegments();
+        ByteBuffer current = bufferOutgoing;
+        current.clear();
+        int coalesced = 0;
+        int packets = 0;
+        Iterator<Serializable> itr = outgoingOrder.iterator();
+
+        while(itr.hasNext()) {
+            // try to serialize packet into buffer
+            Serializable s = itr.next();
+            if (!packetCombainer.pack(s, current)) {
+                int required = PacketHeader.SIZE + s.bytesCount() + 1;
+                if (current.position() != 0) {
+                    if (coalesced + current.position() + required > session.settings.maxWriteCoalesceSize) break;
+                    coalesced += appendSegment(current);
+                }
+
+                current = allocateSegment(required);
+                if (!packetCombainer.pack(s, current)) throw new JED2KException(ErrorCode.PACKET_SIZE_OVERFLOW);
+            }
+
+            log.trace("{} >> {}", s.toString(), getEndpoint());
+            itr.remove();
+            ++packets;
+            // packet with payload must be followed by it's payload, so stop serialization here
+            if (onPacketSerialized(s)) break;
+        }
+
+        if (current.position() != 0) appendSegment(current);
+        return packets;
+    }
+
+    /**
+     * send data of write vector by one gathering write
+     * @throws IOException
+     */
+    private void writeVector() throws IOException {
+        long n = socket.write(writeVector, writeOffset, writeSize - writeOffset);
+        stat.writeCall();
+        consume(BandwidthManager.UPLOAD, n);
+        while(writeOffset < writeSize && !writeVector[writeOffset].hasRemaining()) ++writeOffset;
+    }
+
+    /**
+     * flip filled segment and add it to the end of write vector
+     * @param segment buffer with serialized packets
+     * @return count of bytes in segment
+     */
+    private int appendSegment(final ByteBuffer segment) {
+        segment.flip();
+        if (writeSize == writeVector.length) writeVector = Arrays.copyOf(writeVector, writeVector.length*2);
+        writeVector[writeSize++] = segment;
+        stat.sendBytes(segment.remaining(), 0);
+        return segment.remaining();
+    }
+
+    /**
+     * @param size required bytes count
+     * @return standard segment from cache or dedicated buffer for large packet
+     */
+    private ByteBuffer allocateSegment(int size) {
+        ByteBuffer res = (size <= SEGMENT_SIZE)?freeSegments.poll():null;
+        if (res == null) {
+            res = ByteBuffer.allocate(Math.max(size, SEGMENT_SIZE));
+            res.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        res.clear();
+        return res;
+    }
+
+    /**
+     * return sent segments except outgoing buffer to cache and reset write vector
+     */
+    private void releaseSegments() {
+        for(int i = 0; i < writeSize; ++i) {
+            ByteBuffer b = writeVector[i];
+            if (b != bufferOutgoing && b.capacity() == SEGMENT_SIZE && freeSegments.size() < MAX_FREE_SEGMENTS) {
+                freeSegments.add(b);
+            }
+
+            writeVector[i] = null;
+        }
+
+        writeOffset = 0;
+        writeSize = 0;
+    }
+
+    /**
+     * override this method when packets can be followed by payload data
+     * @param packet packet just serialized into outgoing buffer
+     * @return true if packet has payload and no more packets should be serialized before payload will be sent
+     */
+    boolean onPacketSerialized(final Serializable packet) throws JED2KException {
+        return false;
+    }
+
+    /**
+     * write payload of the last serialized packet directly to socket
+     * @return true if payload completely sent or no payload
+     */
+    boolean writePayload() throws JED2KException {
+        return true;
+    }
+
     void doRead() {
-        key.interestOps(SelectionKey.OP_READ);
+        if (!throttled[BandwidthManager.DOWNLOAD] && !readPaused) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * stop waiting data from socket until resumeRead
+     */
+    void pauseRead() {
+        if (readPaused) return;
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    void resumeRead() {
+        if (!readPaused) return;
+        readPaused = false;
+        doRead();
+    }
+
+    final boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * override this method to take into account limits of transfer
+     * @param direction download or upload
+     * @return transfer level bucket or null when connection has no transfer in this direction
+     */
+    TokenBucket getTransferBucket(int direction) {
+        return null;
+    }
+
+    /**
+     * @param direction download or upload
+     * @return connection rate limit in bytes per second, zero means unlimited
+     */
+    long getRateLimit(int direction) {
+        return 0;
+    }
+
+    /**
+     * @param direction download or upload
+     * @return minimal count of bytes available on connection, transfer and session levels
+     */
+    long quota(int direction) {
+        long now = Time.currentTime();
+        buckets[direction].setRate(getRateLimit(direction));
+        long res = Math.min(buckets[direction].available(now), session.bandwidthManager.getBucket(direction).available(now));
+        TokenBucket tb = getTransferBucket(direction);
+        if (tb != null) res = Math.min(res, tb.available(now));
+        return res;
+    }
+
+    void consume(int direction, long bytes) {
+        if (bytes <= 0) return;
+        long now = Time.currentTime();
+        buckets[direction].consume(bytes, now);
+        session.bandwidthManager.getBucket(direction).consume(bytes, now);
+        TokenBucket tb = getTransferBucket(direction);
+        if (tb != null) tb.consume(bytes, now);
+    }
+
+    /**
+     * read from socket no more bytes than quota allows, drops read interest when quota is exhausted
+     * @param dst destination buffer
+     * @return count of read bytes or -1 on end of stream
+     * @throws IOException
+     */
+    int readFromSocket(final ByteBuffer dst) throws IOException {
+        long q = quota(BandwidthManager.DOWNLOAD);
+        if (q <= 0) {
+            throttle(BandwidthManager.DOWNLOAD);
+            return 0;
+        }
+
+        int limit = dst.limit();
+        if (dst.remaining() > q) dst.limit(dst.position() + (int)q);
+        int n;
+
+        try {
+            n = socket.read(dst);
+        } finally {
+            dst.limit(limit);
+        }
+
+        consume(BandwidthManager.DOWNLOAD, n);
+        return n;
+    }
+
+    /**
+     * stop waiting selector events in direction until bucket will be refilled
+     * @param direction download or upload
+     */
+    void throttle(int direction) {
+        if (throttled[direction]) return;
+        boolean wasThrottled = throttled[BandwidthManager.DOWNLOAD] || throttled[BandwidthManager.UPLOAD];
+        throttled[direction] = true;
+        key.interestOps(key.interestOps() & ~interestOp(direction));
+        if (!wasThrottled) session.bandwidthManager.throttle(this);
+    }
+
+    /**
+     * restore selector interest for directions which have got tokens
+     * @return true if connection is not throttled anymore
+     */
+    boolean unthrottle() {
+        for(int direction = 0; direction < throttled.length; ++direction) {
+            if (throttled[direction] && quota(direction) > 0) {
+                throttled[direction] = false;
+                if (direction == BandwidthManager.UPLOAD || !readPaused) key.interestOps(key.interestOps() | interestOp(direction));
+            }
+        }
+
+        return !throttled[BandwidthManager.DOWNLOAD] && !throttled[BandwidthManager.UPLOAD];
+    }
+
+    final boolean isThrottled(int direction) {
+        return throttled[direction];
+    }
+
+    private static int interestOp(int direction) {
+        return (direction == BandwidthManager.DOWNLOAD)?SelectionKey.OP_READ:SelectionKey.OP_WRITE;
     }
 
     protected abstract void onConnect() throws JED2KException;
@@ -301,7 +568,7 @@ public abstract class Connection implements Dispatcher {
     protected void write(Serializable packet) {
         outgoingOrder.add(packet);
         if (!writeInProgress) {
-            key.interestOps(SelectionKey.OP_WRITE);
+            if (!throttled[BandwidthManager.UPLOAD]) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
             onWriteable();
         }
     }
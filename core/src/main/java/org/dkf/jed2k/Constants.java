@@ -8,4 +8,5 @@ public class Constants {
     public static final long HIGHEST_LOWID_ED2K = 16777216l;
     public static final int REQUEST_QUEUE_SIZE = 3;
     public static final int PARTS_IN_REQUEST = 3;
+    public static final int UPLOAD_PACKET_SIZE = 10240;  // max payload size of one sending part packet like in eMule
 }
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * Created by inkpot on 30.01.2017.
@@ -19,10 +20,13 @@ public class DesktopFileHandler extends FileHandler {
         super(file);
     }
 
+    /**
+     * stream on read-write descriptor doesn't truncate file, so blocks written before restart stay in place
+     */
     @Override
     protected FileOutputStream allocateOutputStream() throws JED2KException {
         try {
-            return new FileOutputStream(file);
+            return new FileOutputStream(new RandomAccessFile(file, "rw").getFD());
         } catch(IOException e) {
             throw new JED2KException(ErrorCode.IO_EXCEPTION);
         }
@@ -0,0 +1,111 @@
+package org.dkf.jed2k;
+
+import lombok.extern.slf4j.Slf4j;
+import org.dkf.jed2k.disk.DiskIOStatus;
+
+import java.util.LinkedHashSet;
+
+/**
+ * disk to network backpressure
+ * counts bytes of blocks submitted to disk and not completed yet, when they exceed high watermark session is stalled:
+ * peer connections stop request new blocks and data transferring connections stop reading sockets
+ * when disk completes operations and count of bytes falls to low watermark stalled connections are resumed
+ */
+@Slf4j
+public class DiskBackpressure {
+    private long highWatermark;
+    private long lowWatermark;
+    private long queuedBytes = 0;
+    private boolean stalled = false;
+    private long stallStart = 0;
+    private long stallTime = 0;
+    private int stalls = 0;
+
+    /**
+     * connections waiting for the end of stall
+     */
+    private final LinkedHashSet<PeerConnection> waiters = new LinkedHashSet<PeerConnection>();
+
+    public DiskBackpressure(final Settings settings) {
+        configure(settings);
+    }
+
+    public void configure(final Settings settings) {
+        highWatermark = settings.diskQueueHighWatermark;
+        lowWatermark = Math.min(settings.diskQueueLowWatermark, highWatermark);
+    }
+
+    /**
+     * @return true if new blocks must not be requested and data must not be read from sockets
+     */
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * @param bytes size of block submitted to disk
+     * @param now current time in milliseconds
+     */
+    public void submitted(long bytes, long now) {
+        queuedBytes += bytes;
+        if (!stalled && highWatermark > 0 && queuedBytes > highWatermark) {
+            log.debug("[backpressure] stall on {} queued bytes", queuedBytes);
+            stalled = true;
+            stallStart = now;
+            stalls++;
+        }
+    }
+
+    /**
+     * @param bytes size of block completed by disk
+     * @param now current time in milliseconds
+     */
+    public void completed(long bytes, long now) {
+        queuedBytes = Math.max(queuedBytes - bytes, 0);
+        if (stalled && queuedBytes <= lowWatermark) {
+            log.debug("[backpressure] resume on {} queued bytes after {} ms", queuedBytes, now - stallStart);
+            stalled = false;
+            stallTime += now - stallStart;
+            PeerConnection[] resumed = waiters.toArray(new PeerConnection[waiters.size()]);
+            waiters.clear();
+            for(final PeerConnection c: resumed) {
+                if (!c.isDisconnecting()) c.onDiskResumed();
+            }
+        }
+    }
+
+    /**
+     * register connection to be resumed when stall ends
+     * @param c stalled peer connection
+     */
+    void await(final PeerConnection c) {
+        assert stalled;
+        waiters.add(c);
+    }
+
+    /**
+     * @return count of bytes submitted to disk and not completed yet
+     */
+    public long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return total stall time including current stall
+     */
+    public long stallTime(long now) {
+        return stallTime + (stalled?now - stallStart:0);
+    }
+
+    public int stalls() {
+        return stalls;
+    }
+
+    void fillStatus(final DiskIOStatus status, long now) {
+        status.queuedBytes = queuedBytes;
+        status.stalled = stalled;
+        status.stalls = stalls;
+        status.stallTimeMillis = stallTime(now);
+    }
+}
@@ -53,6 +53,14 @@ public class DownloadingPiece implements Iterable<DownloadingPiece.Block> {
             state = BlockState.STATE_FINISHED;
         }
 
+        /**
+         * finished block has wrong data and must be downloaded again
+         */
+        public void restore() {
+            assert state == BlockState.STATE_FINISHED;
+            state = BlockState.STATE_NONE;
+        }
+
         public void abort(Peer p) {
             assert state != BlockState.STATE_NONE; // TODO - check this expression due to failed unit test
             assert state == BlockState.STATE_WRITING || p != null;
@@ -141,6 +149,11 @@ public class DownloadingPiece implements Iterable<DownloadingPiece.Block> {
         blocks[blockIndex].finish();
     }
 
+    public void restoreBlock(int blockIndex) {
+        assert(blockIndex < blocksCount);
+        blocks[blockIndex].restore();
+    }
+
     public void requestBlock(int blockIndex, Peer p, PeerConnection.PeerSpeed speed) {
         assert(blockIndex < blocksCount);
         blocks[blockIndex].request(p, speed);
@@ -47,6 +47,16 @@ public abstract class FileHandler {
         return channels[WRITE];
     }
 
+    /**
+     * opens new read only channel independent of channels of this handler
+     * can be used in another thread, caller is responsible for closing it
+     * @return new file channel
+     * @throws JED2KException
+     */
+    public FileChannel openReadChannel() throws JED2KException {
+        return allocateInputStream().getChannel();
+    }
+
     public void close() {
         for(int i = 0; i < channels.length; ++i) {
             try {
@@ -0,0 +1,92 @@
+package org.dkf.jed2k;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * histogram of latencies with power of two buckets in microseconds
+ * bucket 0 contains values less than 1 microsecond, bucket i contains values in [2^(i-1), 2^i) microseconds
+ * last bucket contains all values greater than its lower bound
+ * record is expected from one thread, reading is thread safe
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        if (micros > max.get()) max.set(micros);
+    }
+
+    static int bucketIndex(long micros) {
+        int index = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(index, BUCKETS_COUNT - 1);
+    }
+
+    /**
+     * @param index bucket index
+     * @return upper bound of bucket in microseconds, exclusive
+     */
+    public static long bucketUpperBound(int index) {
+        return 1L << index;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public long getAverageMicros() {
+        long c = count.get();
+        return (c != 0)?total.get() / c:0;
+    }
+
+    public long[] getBuckets() {
+        long[] res = new long[BUCKETS_COUNT];
+        for(int i = 0; i < BUCKETS_COUNT; ++i) res[i] = buckets.get(i);
+        return res;
+    }
+
+    /**
+     * @param p percentile in range (0, 1]
+     * @return upper bound in microseconds of bucket contains requested percentile
+     */
+    public long getPercentileMicros(double p) {
+        assert p > 0 && p <= 1;
+        long[] snapshot = getBuckets();
+        long summary = 0;
+        for(long v: snapshot) summary += v;
+        if (summary == 0) return 0;
+
+        long threshold = (long)Math.ceil(summary * p);
+        long accumulated = 0;
+        for(int i = 0; i < BUCKETS_COUNT; ++i) {
+            accumulated += snapshot[i];
+            if (accumulated >= threshold) return bucketUpperBound(i);
+        }
+
+        return bucketUpperBound(BUCKETS_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "latency count " + getCount()
+                + " avg " + getAverageMicros() + "us"
+                + " p50 <" + getPercentileMicros(0.5) + "us"
+                + " p99 <" + getPercentileMicros(0.99) + "us"
+                + " max " + getMaxMicros() + "us";
+    }
+}
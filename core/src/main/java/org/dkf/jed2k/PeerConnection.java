@@ -6,10 +6,12 @@ import org.dkf.jed2k.data.Region;
 import org.dkf.jed2k.exception.BaseErrorCode;
 import org.dkf.jed2k.exception.ErrorCode;
 import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.AichHash;
 import org.dkf.jed2k.protocol.BitField;
 import org.dkf.jed2k.protocol.Endpoint;
 import org.dkf.jed2k.protocol.Hash;
 import org.dkf.jed2k.protocol.PacketCombiner;
+import org.dkf.jed2k.protocol.Serializable;
 import org.dkf.jed2k.protocol.client.*;
 import org.dkf.jed2k.protocol.server.*;
 import org.dkf.jed2k.protocol.server.search.SearchResult;
@@ -20,11 +22,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -78,7 +80,7 @@ For incoming connection we have different order in first two packets
 +------------------------------------------>
 
 */
-public class PeerConnection extends Connection {
+public class PeerConnection extends Connection implements UploadScheduler.Client {
 
     public static final int MAX_OUTGOING_BUFFER_SIZE = 102*2 + 8; // look at PeerConnectionTest for details
 
@@ -98,6 +100,16 @@ public class PeerConnection extends Connection {
         Region dataLeft;
         ByteBuffer buffer;
 
+        /**
+         * block was requested when download queue was empty, so first data of it measures round trip time
+         */
+        boolean measureRtt = false;
+
+        /**
+         * inflater of compressed block, exists since first compressed part until block completed
+         */
+        Inflater inflater = null;
+
         /**
          * class for handle downloading block data
          * @param b requested piece block
@@ -126,6 +138,32 @@ public class PeerConnection extends Connection {
         }
     }
 
+    /**
+     * remote peer's request for data of our file
+     */
+    private static class UploadRequest {
+        final Hash hash;
+        long begin;
+        final long end;
+        final boolean large;
+
+        UploadRequest(final Hash hash, long begin, long end, boolean large) {
+            this.hash = hash;
+            this.begin = begin;
+            this.end = end;
+            this.large = large;
+        }
+
+        boolean isCompleted() {
+            return begin == end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [%d..%d]", hash, begin, end);
+        }
+    }
+
     private static Logger log = LoggerFactory.getLogger(PeerConnection.class);
 
     private RemotePeerInfo remotePeerInfo = new RemotePeerInfo();
@@ -142,6 +180,18 @@ public class PeerConnection extends Connection {
      */
     private BitField remotePieces = null;
 
+    /**
+     * remote pieces were registered in transfer's picker as availability
+     */
+    private boolean availabilityRegistered = false;
+
+    /**
+     * piece which AICH recovery data was requested from remote peer, -1 when no request
+     * and remote peer already reported AICH master hash of transfer's file
+     */
+    private int aichRequestedPiece = -1;
+    private boolean aichHashReported = false;
+
     /**
      * calculated peer speed
      */
@@ -160,6 +210,12 @@ public class PeerConnection extends Connection {
      */
     private boolean transferringData = false;
 
+    /**
+     * smoothed round trip time in milliseconds between block request and first data of it
+     * zero until first measurement
+     */
+    private long rtt = 0;
+
     /**
      * current peer request from remote peer
      * next will be payload data
@@ -171,6 +227,22 @@ public class PeerConnection extends Connection {
      */
     private boolean recvReqCompressed = false;
 
+    /**
+     * cached inflater reused by compressed blocks of this connection
+     */
+    private Inflater inflater = null;
+
+    /**
+     * chunk of compressed data read from socket before inflating into block's buffer
+     */
+    private ByteBuffer zChunk = null;
+    private static final int Z_CHUNK_SIZE = 16*1024;
+
+    /**
+     * inflate output for block's buffer without array, pool buffers are direct, so this is usual case
+     */
+    private byte[] zOutput = null;
+
     /**
      * offset in current peer request
      */
@@ -178,6 +250,33 @@ public class PeerConnection extends Connection {
 
     private LinkedList<PendingBlock> downloadQueue = new LinkedList<PendingBlock>();
 
+    /**
+     * remote peer's requests to upload data
+     */
+    private LinkedList<UploadRequest> uploadQueue = new LinkedList<UploadRequest>();
+
+    /**
+     * sending part packet was added to outgoing order, but not serialized yet
+     */
+    private boolean uploadPartQueued = false;
+
+    /**
+     * file channel for upload data and hash of file, opened on first sending part
+     */
+    private FileChannel uploadChannel = null;
+    private Hash uploadChannelHash = null;
+
+    /**
+     * payload of current sending part which must be written directly from file to socket
+     */
+    private long payloadPosition = 0;
+    private long payloadLeft = 0;
+
+    /**
+     * last time when payload data was sent to remote peer
+     */
+    private long lastUpload = 0;
+
     /**
      * network endpoint for outgoing connections
      */
@@ -232,6 +331,13 @@ public class PeerConnection extends Connection {
     @Override
     public void onReadable() {
         if (transferringData) {
+            // disk is too slow, leave data in socket until disk queue becomes short
+            if (session.diskBackpressure.isStalled()) {
+                pauseRead();
+                session.diskBackpressure.await(this);
+                return;
+            }
+
             try {
                 onReceiveData();
             } catch(JED2KException e) {
@@ -345,6 +451,7 @@ public class PeerConnection extends Connection {
 
     public class RemotePeerInfo {
         public Endpoint point = new Endpoint();
+        public Hash hash = new Hash();
         public String modName;
         public int version = 0;
         public String modVersion;
@@ -383,6 +490,7 @@ public class PeerConnection extends Connection {
         mo.dataCompVer = session.getCompressionVersion();  // support data compression
         mo.noViewSharedFiles = 1; // temp value
         mo.sourceExchange1Ver = 0; //SOURCE_EXCHG_LEVEL - important value
+        mo.aichVersion = 1; // AICH recovery of downloaded parts
 
         MiscOptions2 mo2 = new MiscOptions2();
         mo2.setCaptcha();
@@ -401,6 +509,7 @@ public class PeerConnection extends Connection {
     }
 
     private void assignRemotePeerInformation(HelloAnswer value) throws JED2KException {
+        remotePeerInfo.hash.assign(value.hash);
         //remotePeerInfo.point
         Iterator<Tag> itr = value.properties.iterator();
         while(itr.hasNext()) {
@@ -566,13 +675,24 @@ public class PeerConnection extends Connection {
     protected void onDisconnect(BaseErrorCode ec) {
         if (ec != ErrorCode.NO_ERROR) failed = true;
 
+        uploadQueue.clear();
+        payloadLeft = 0;
+        closeUploadChannel();
+        session.uploadScheduler.remove(this);
+
         if (transfer != null) {
             transfer.addStats(statistics());
             abortAllRequests();
+            clearAvailability();
             transfer.removePeerConnection(this);
             transfer = null;
         }
 
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+
         session.closeConnection(this);
     }
 
@@ -584,15 +704,36 @@ public class PeerConnection extends Connection {
         super.secondTick(tickIntervalMS);
 
         // check timeout on connection
-        if (Time.currentTime() - lastReceive > session.settings.peerConnectionTimeout*1000) {
+        // uploading connection is alive while payload is sending
+        // connection paused by disk or buffers backpressure doesn't receive by our decision
+        if (!isReadPaused() && Time.currentTime() - Math.max(lastReceive, lastUpload) > session.settings.peerConnectionTimeout*1000) {
             close(ErrorCode.CONNECTION_TIMEOUT);
         }
     }
 
+    /**
+     * @param h hash of file
+     * @return transfer which can share data or null
+     */
+    private Transfer getUploadTransfer(final Hash h) {
+        Transfer t = session.transfers.get(h);
+        if (t != null && t.canUpload()) return t;
+        return null;
+    }
+
     @Override
     public void onClientFileRequest(FileRequest value)
             throws JED2KException {
-        close(ErrorCode.NO_ERROR);
+        log.debug("{} << file request {}", endpoint, value);
+        Transfer t = getUploadTransfer(value);
+        if (t != null) {
+            FileAnswer answer = new FileAnswer();
+            answer.hash.assign(value);
+            answer.name.assignString(t.getFile().getName());
+            write(answer);
+        } else {
+            write(new NoFileStatus(value));
+        }
     }
 
     @Override
@@ -600,6 +741,7 @@ public class PeerConnection extends Connection {
             throws JED2KException {
         log.debug("{} << file answer", endpoint);
         if (transfer != null && value.hash.equals(transfer.hash())) {
+            if (supportsAich() && transfer.getAichHash() == null) write(new AichFileHashRequest(transfer.hash()));
             write(new FileStatusRequest(transfer.hash()));
         } else {
             close(ErrorCode.NO_TRANSFER);
@@ -609,15 +751,27 @@ public class PeerConnection extends Connection {
     @Override
     public void onClientFileStatusRequest(FileStatusRequest value)
             throws JED2KException {
-        write(new NoFileStatus());
+        log.debug("{} << file status request {}", endpoint, value);
+        Transfer t = getUploadTransfer(value);
+        if (t != null) {
+            FileStatusAnswer answer = new FileStatusAnswer();
+            answer.hash.assign(value);
+            answer.bitfield.resize(t.numPieces());
+            for(int i = 0; i < t.numPieces(); ++i) {
+                if (t.havePiece(i)) answer.bitfield.setBit(i);
+            }
+            write(answer);
+        } else {
+            write(new NoFileStatus(value));
+        }
     }
 
     @Override
     public void onClientFileStatusAnswer(FileStatusAnswer value)
             throws JED2KException {
         log.debug("{} << file status answer", endpoint);
-        remotePieces = value.bitfield;
         if (transfer != null) {
+            updateAvailability(value.bitfield);
             if (transfer.size() >= Constants.PIECE_SIZE) {
                 write(new HashSetRequest(transfer.hash()));
             } else {
@@ -627,14 +781,56 @@ public class PeerConnection extends Connection {
                 write(new StartUpload(transfer.hash()));
             }
         } else {
+            remotePieces = value.bitfield;
             close(ErrorCode.NO_TRANSFER);
         }
     }
 
+    /**
+     * replace remote pieces and update their availability in picker
+     * @param pieces new remote pieces, empty bit field means complete source
+     */
+    private void updateAvailability(final BitField pieces) {
+        clearAvailability();
+        remotePieces = pieces;
+        if (!transfer.hasPicker()) return;
+
+        if (!pieces.empty() && pieces.size() != transfer.getPicker().numPieces()) {
+            log.warn("{} file status pieces count {} mismatch to {}", endpoint, pieces.size(), transfer.getPicker().numPieces());
+            return;
+        }
+
+        transfer.getPicker().addAvailability(pieces);
+        availabilityRegistered = true;
+    }
+
+    /**
+     * @return pieces remote peer has or null when it is complete source or reported pieces can't be used
+     */
+    private BitField getAvailablePieces() {
+        return (availabilityRegistered && !remotePieces.empty())?remotePieces:null;
+    }
+
+    private void clearAvailability() {
+        if (availabilityRegistered) {
+            transfer.getPicker().removeAvailability(remotePieces);
+            availabilityRegistered = false;
+        }
+    }
+
     @Override
     public void onClientHashSetRequest(HashSetRequest value)
             throws JED2KException {
-        close(ErrorCode.NO_ERROR);
+        log.debug("{} << hash set request {}", endpoint, value);
+        Transfer t = getUploadTransfer(value);
+        if (t != null && !t.hashSet.isEmpty()) {
+            HashSetAnswer answer = new HashSetAnswer();
+            answer.hash.assign(value);
+            answer.parts.assignFrom(t.hashSet);
+            write(answer);
+        } else {
+            write(new NoFileStatus(value));
+        }
     }
 
     @Override
@@ -649,6 +845,66 @@ public class PeerConnection extends Connection {
         }
     }
 
+    @Override
+    public void onClientAichFileHashRequest(AichFileHashRequest value) throws JED2KException {
+        // AICH hashes of shared files are not stored, request is ignored like for file without AICH hash
+        log.debug("{} << {}", endpoint, value);
+    }
+
+    @Override
+    public void onClientAichFileHashAnswer(AichFileHashAnswer value) throws JED2KException {
+        log.debug("{} << {}", endpoint, value);
+        // one vote for master hash per connection
+        if (transfer != null && value.hash.equals(transfer.hash()) && !aichHashReported) {
+            aichHashReported = true;
+            transfer.addAichHashVote(value.masterHash);
+        }
+    }
+
+    @Override
+    public void onClientAichRequest(AichRequest value) throws JED2KException {
+        log.debug("{} << {}", endpoint, value);
+        // recovery data of shared files is not stored, empty answer lets remote peer ask another one
+        write(new AichAnswer(value.hash));
+    }
+
+    @Override
+    public void onClientAichAnswer(AichAnswer value) throws JED2KException {
+        log.debug("{} << {}", endpoint, value);
+        if (transfer == null || !value.hash.equals(transfer.hash()) || aichRequestedPiece == -1) return;
+        int pieceIndex = aichRequestedPiece;
+        aichRequestedPiece = -1;
+
+        if (value.isEmpty() || value.part.intValue() != pieceIndex) {
+            transfer.onAichRecoveryFailed(pieceIndex);
+        } else {
+            transfer.onAichRecoveryData(pieceIndex, value.masterHash, value.data);
+        }
+    }
+
+    private boolean supportsAich() {
+        return remotePeerInfo.misc1.aichVersion > 0;
+    }
+
+    /**
+     * @param pieceIndex piece index
+     * @return true if remote peer can send AICH recovery data of piece
+     */
+    boolean canRecoverPiece(int pieceIndex) {
+        return !isDisconnecting() && supportsAich() && aichRequestedPiece == -1 && remotePieces != null
+                && (remotePieces.empty() || (pieceIndex < remotePieces.size() && remotePieces.getBit(pieceIndex)));
+    }
+
+    /**
+     * @param pieceIndex piece with wrong hash
+     * @param masterHash trusted AICH master hash of file
+     */
+    void requestAichRecovery(int pieceIndex, final AichHash masterHash) {
+        assert aichRequestedPiece == -1;
+        aichRequestedPiece = pieceIndex;
+        write(new AichRequest(transfer.hash(), pieceIndex, masterHash));
+    }
+
     @Override
     public void onClientNoFileStatus(NoFileStatus value)
             throws JED2KException {
@@ -696,6 +952,237 @@ public class PeerConnection extends Connection {
         receiveCompressedData(value.beginOffset.longValue(), value.compressedLength.longValue(), value.bytesCount());
     }
 
+    @Override
+    public void onClientStartUpload(StartUpload value) throws JED2KException {
+        log.debug("{} << start upload {}", endpoint, value);
+        Transfer t = getUploadTransfer(value);
+        if (t != null) {
+            session.uploadScheduler.request(this, t.getUploadPriority(), Time.currentTime());
+        } else {
+            write(new NoFileStatus(value));
+        }
+    }
+
+    @Override
+    public void onClientRequestParts32(RequestParts32 value) throws JED2KException {
+        onRequestParts(value, false);
+    }
+
+    @Override
+    public void onClientRequestParts64(RequestParts64 value) throws JED2KException {
+        onRequestParts(value, true);
+    }
+
+    /**
+     * add requested ranges to upload queue, ranges must reference verified pieces
+     * @param value request from remote peer
+     * @param large request contains 64 bit offsets
+     * @throws JED2KException
+     */
+    void onRequestParts(final RequestParts<?> value, boolean large) throws JED2KException {
+        log.debug("{} << request parts {}", endpoint, value);
+        Transfer t = getUploadTransfer(value.getHash());
+        if (t == null) {
+            write(new NoFileStatus(value.getHash()));
+            return;
+        }
+
+        if (!session.uploadScheduler.isUploading(this)) {
+            log.debug("{} has no upload slot, ignore request", endpoint);
+            write(new OutOfParts());
+            return;
+        }
+
+        for(int i = 0; i < Constants.PARTS_IN_REQUEST; ++i) {
+            long begin = value.getBeginOffset(i).longValue();
+            long end = value.getEndOffset(i).longValue();
+            if (begin >= end) continue;
+
+            if (end > t.size() || end - begin > Constants.BLOCK_SIZE) {
+                log.warn("{} incorrect request range [{}..{}] for {}", endpoint, begin, end, t.hash());
+                continue;
+            }
+
+            boolean have = true;
+            for(int piece = (int)(begin / Constants.PIECE_SIZE); piece <= (int)((end - 1) / Constants.PIECE_SIZE) && have; ++piece) {
+                have = t.havePiece(piece);
+            }
+
+            if (!have) {
+                log.warn("{} request range [{}..{}] references not verified piece", endpoint, begin, end);
+                continue;
+            }
+
+            if (!isUploading(t.hash(), begin, end)) uploadQueue.add(new UploadRequest(t.hash(), begin, end, large));
+        }
+
+        if (uploadQueue.isEmpty()) {
+            write(new OutOfParts());
+        } else {
+            sendPart();
+        }
+    }
+
+    private boolean isUploading(final Hash h, long begin, long end) {
+        for(final UploadRequest r: uploadQueue) {
+            if (r.hash.equals(h) && r.begin <= begin && r.end >= end) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * add next sending part packet to outgoing order
+     * only one sending part is in order at the same time, next will be added after payload of previous was sent
+     */
+    void sendPart() {
+        if (uploadPartQueued || payloadLeft != 0 || uploadQueue.isEmpty()) return;
+        UploadRequest r = uploadQueue.peek();
+        long end = Math.min(r.begin + Constants.UPLOAD_PACKET_SIZE, r.end);
+        SendingPart<?> part = r.large?new SendingPart64():new SendingPart32();
+        part.hash.assign(r.hash);
+        part.beginOffset.assign(r.begin);
+        part.endOffset.assign(end);
+        r.begin = end;
+        if (r.isCompleted()) uploadQueue.poll();
+        uploadPartQueued = true;
+        write(part);
+    }
+
+    @Override
+    boolean onPacketSerialized(final Serializable packet) throws JED2KException {
+        if (!(packet instanceof SendingPart)) return false;
+        SendingPart<?> part = (SendingPart<?>)packet;
+        uploadPartQueued = false;
+
+        if (uploadChannel == null || !part.hash.equals(uploadChannelHash)) {
+            closeUploadChannel();
+            Transfer t = session.transfers.get(part.hash);
+            if (t == null) throw new JED2KException(ErrorCode.NO_TRANSFER);
+            uploadChannel = t.openReadChannel();
+            uploadChannelHash = part.hash;
+        }
+
+        payloadPosition = part.beginOffset.longValue();
+        payloadLeft = part.payloadSize();
+        return true;
+    }
+
+    /**
+     * transfer payload of current sending part from file to socket without copying it through heap
+     * @return true when payload sent completely
+     * @throws JED2KException
+     */
+    @Override
+    boolean writePayload() throws JED2KException {
+        if (payloadLeft == 0) return true;
+        assert uploadChannel != null;
+
+        long q = quota(BandwidthManager.UPLOAD);
+        if (q <= 0) {
+            throttle(BandwidthManager.UPLOAD);
+            return false;
+        }
+
+        try {
+            long n = uploadChannel.transferTo(payloadPosition, Math.min(payloadLeft, q), socket);
+            statistics().writeCall();
+            if (n == 0 && payloadPosition >= uploadChannel.size()) {
+                log.error("{} unable to read upload data at {} file size {}", endpoint, payloadPosition, uploadChannel.size());
+                throw new JED2KException(ErrorCode.FILE_IO_ERROR);
+            }
+
+            payloadPosition += n;
+            payloadLeft -= n;
+            consume(BandwidthManager.UPLOAD, n);
+            statistics().sendBytes(0, n);
+            if (n != 0) lastUpload = Time.currentTime();
+        } catch(IOException e) {
+            log.error("{} upload i/o error {}", endpoint, e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
+
+        if (payloadLeft == 0) {
+            sendPart();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    TokenBucket getTransferBucket(int direction) {
+        if (direction == BandwidthManager.DOWNLOAD) {
+            return (transfer != null)?transfer.getBucket(direction):null;
+        }
+
+        Transfer t = (uploadChannelHash != null)?session.transfers.get(uploadChannelHash):null;
+        return (t != null)?t.getBucket(direction):null;
+    }
+
+    @Override
+    long getRateLimit(int direction) {
+        return (direction == BandwidthManager.DOWNLOAD)?session.settings.peerDownloadRateLimit:session.settings.peerUploadRateLimit;
+    }
+
+    @Override
+    public Hash getUserHash() {
+        return remotePeerInfo.hash;
+    }
+
+    @Override
+    public long totalUploaded() {
+        return statistics().totalUpload();
+    }
+
+    @Override
+    public long totalDownloaded() {
+        return statistics().totalPayloadDownload();
+    }
+
+    @Override
+    public void acceptUpload() {
+        write(new AcceptUpload());
+    }
+
+    @Override
+    public void sendQueueRanking(int rank) {
+        QueueRanking qr = new QueueRanking();
+        qr.rank = (short)Math.min(rank, Short.MAX_VALUE);
+        write(qr);
+    }
+
+    /**
+     * upload slot was taken away, drop all requests
+     */
+    @Override
+    public void stopUpload() {
+        uploadQueue.clear();
+        write(new OutOfParts());
+    }
+
+    /**
+     * client can't wait for upload slot, remote side closes connection on out of parts
+     */
+    @Override
+    public void rejectUpload() {
+        log.debug("{} >> upload rejected", endpoint);
+        write(new OutOfParts());
+    }
+
+    private void closeUploadChannel() {
+        if (uploadChannel != null) {
+            try {
+                uploadChannel.close();
+            } catch(IOException e) {
+                log.error("{} unable to close upload channel {}", endpoint, e);
+            } finally {
+                uploadChannel = null;
+                uploadChannelHash = null;
+            }
+        }
+    }
+
     /**
      * prepare pending block according compressed block
      * prepare peer request
@@ -750,21 +1237,13 @@ public class PeerConnection extends Connection {
             return;
         }
 
-        // if pending block hasn't associated buffer - allocate it
-        if (pb.buffer == null) pb.buffer = session.allocatePoolBuffer();
-
-        /**
-         * if buffer pool hasn't free blocks we will get null buffer
-         * throw exception will lead of close connection with no memory error
-         */
-        if (pb.buffer == null) {
-            log.warn("{} can not allocate buffer for block {} current request {}", getEndpoint(), b, r);
-            throw new JED2KException(ErrorCode.NO_MEMORY);
+        if (pb.measureRtt) {
+            updateRtt(Time.currentTime() - pb.createTime);
+            pb.measureRtt = false;
         }
 
-        // prepare buffer for reading data into proper place
-        pb.buffer.position((int)r.inBlockOffset());
-        pb.buffer.limit((int)(r.inBlockOffset() + r.length));
+        // block without buffer gets it when connection reads it's data
+        if (pb.buffer != null) prepareBuffer(pb);
         onReceiveData();
     }
 
@@ -781,7 +1260,7 @@ public class PeerConnection extends Connection {
         buffer.limit((int)recvReq.length - recvPos);
 
         try {
-            int n = socket.read(buffer);
+            int n = readFromSocket(buffer);
             if (n == -1) throw new JED2KException(ErrorCode.END_OF_STREAM);
             recvPos += n;
             log.trace("{} recvpos {} recvlen {}", getEndpoint(), recvPos, recvReq);
@@ -827,20 +1306,21 @@ public class PeerConnection extends Connection {
 
         PieceBlock blockFinished = PieceBlock.mkBlock(recvReq);
 
-        assert pb.buffer != null;
-
         /**
          * if block already was downloaded(depends on piece picker politics) - skip data
          */
         if (transfer.getPicker().isBlockDownloaded(blockFinished)) {
             log.warn("{} request {} references to downloaded block {}, remove pending block and skip data", getEndpoint(), recvReq, blockFinished);
             downloadQueue.remove(pb);
+            releaseInflater(pb);
             skipData();
             return;
         }
 
+        if (pb.buffer == null && !allocateBuffer(pb)) return;
+
         try {
-            int n = socket.read(pb.buffer);
+            int n = recvReqCompressed?readCompressed(pb):readFromSocket(pb.buffer);
             if (n == -1) throw new JED2KException(ErrorCode.END_OF_STREAM);
             assert n != -1;
 
@@ -848,7 +1328,7 @@ public class PeerConnection extends Connection {
             if (n != 0) lastReceive = Time.currentTime();
             statistics().receiveBytes(0, n);
 
-            if (pb.buffer.remaining() == 0) {
+            if (recvReqCompressed?recvPos == recvReq.length:pb.buffer.remaining() == 0) {
                 log.trace("{} received {} bytes for block {}, buffer is full, turn off transferring data"
                         , getEndpoint()
                         , pb.block
@@ -875,13 +1355,8 @@ public class PeerConnection extends Connection {
                     // possibly block was already written in end game mode and/or finished
                     // in that case no need to re-write block to disk and request hash
                     if (wasDownloading) {
-                        // add write task to executor and add future to transfer
-                        transfer.aioFutures.addLast(asyncWrite(pb.block, pb.buffer, transfer));
-
-                        // run async hash calculation
-                        if (transfer.getPicker().isPieceFinished(recvReq.piece) && !wasFinished) {
-                            transfer.aioFutures.addLast(asyncHash(pb.block.pieceIndex, transfer));
-                        }
+                        // write block to disk or hold it until piece is assembled in memory
+                        transfer.writeBlock(pb.block, pb.buffer, wasFinished);
                     } else {
                         log.warn("{} block {} wasn't downloading, do not write"
                             , getEndpoint()
@@ -904,9 +1379,118 @@ public class PeerConnection extends Connection {
     }
 
     /**
-     * if request is compressed - inflate it and create real(uncompressed range)
-     * put inflated data back to the block's buffer
+     * allocate pool buffer for block of current request
+     * when pool or transfer's share of pool is exhausted connection leaves data in socket and stops requesting
+     * until buffers are returned to pool
+     * @param pb pending block without buffer
+     * @return false if connection waits for buffers
+     */
+    private boolean allocateBuffer(final PendingBlock pb) {
+        pb.buffer = session.allocatePoolBuffer(transfer);
+        if (pb.buffer == null) {
+            log.debug("{} can not allocate buffer for block {} current request {}, wait buffers", getEndpoint(), pb.block, recvReq);
+            pauseRead();
+            session.awaitPoolBuffers(this);
+            return false;
+        }
+
+        prepareBuffer(pb);
+        return true;
+    }
+
+    /**
+     * set buffer's window for data of current request
+     * @param pb pending block with buffer
+     */
+    private void prepareBuffer(final PendingBlock pb) {
+        if (recvReqCompressed) {
+            // compressed parts arrive in order and inflated directly to the block's buffer
+            // buffer position is count of inflated bytes, so keep it between parts
+            if (pb.inflater == null) {
+                pb.inflater = acquireInflater();
+                pb.buffer.clear();
+                pb.buffer.limit(pb.block.size(transfer.size()));
+            }
+        } else {
+            // prepare buffer for reading data into proper place
+            pb.buffer.position((int)recvReq.inBlockOffset());
+            pb.buffer.limit((int)(recvReq.inBlockOffset() + recvReq.length));
+        }
+    }
+
+    /**
+     * read next chunk of compressed data of current request and inflate it to the block's buffer
+     * @param pb pending block with inflater
+     * @return count of compressed bytes read from socket or -1 on end of stream
+     * @throws IOException
+     * @throws JED2KException
+     */
+    private int readCompressed(final PendingBlock pb) throws IOException, JED2KException {
+        assert pb.inflater != null;
+        if (zChunk == null) zChunk = ByteBuffer.allocate(Z_CHUNK_SIZE);
+        zChunk.clear();
+        zChunk.limit((int)Math.min(Z_CHUNK_SIZE, recvReq.length - recvPos));
+        int n = readFromSocket(zChunk);
+        if (n <= 0) return n;
+
+        pb.inflater.setInput(zChunk.array(), zChunk.arrayOffset(), n);
+
+        try {
+            while (!pb.inflater.needsInput() && !pb.inflater.finished()) {
+                int inflated;
+                if (pb.buffer.hasArray()) {
+                    inflated = pb.inflater.inflate(pb.buffer.array()
+                            , pb.buffer.arrayOffset() + pb.buffer.position()
+                            , pb.buffer.remaining());
+                    pb.buffer.position(pb.buffer.position() + inflated);
+                } else {
+                    if (zOutput == null) zOutput = new byte[Z_CHUNK_SIZE];
+                    inflated = pb.inflater.inflate(zOutput, 0, Math.min(pb.buffer.remaining(), Z_CHUNK_SIZE));
+                    pb.buffer.put(zOutput, 0, inflated);
+                }
+
+                // no progress means output is full or stream requires dictionary - both are wrong for block
+                if (inflated == 0 && !pb.inflater.needsInput() && !pb.inflater.finished()) {
+                    log.warn("{} inflate of block {} stalled, remaining output {}", getEndpoint(), pb.block, pb.buffer.remaining());
+                    throw new JED2KException(ErrorCode.INFLATE_ERROR);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new JED2KException(ErrorCode.INFLATE_ERROR);
+        }
+
+        return n;
+    }
+
+    /**
+     * take cached inflater of connection or create new when it is used by another block
+     * @return inflater ready to decompress new stream
+     */
+    private Inflater acquireInflater() {
+        Inflater res = inflater;
+        inflater = null;
+        return (res != null)?res:new Inflater();
+    }
+
+    /**
+     * return block's inflater to connection's cache or free it when cache is occupied
+     * @param pb pending block
+     */
+    private void releaseInflater(final PendingBlock pb) {
+        if (pb.inflater == null) return;
+        if (inflater == null && !isDisconnecting()) {
+            pb.inflater.reset();
+            inflater = pb.inflater;
+        } else {
+            pb.inflater.end();
+        }
+
+        pb.inflater = null;
+    }
+
+    /**
      * update range in pending block and check block is completed
+     * compressed block has been inflated to the block's buffer already, so check stream finished here
      * @param pb pending block from downloading queue
      * @return true if block completely downloaded
      * @throws JED2KException
@@ -918,34 +1502,13 @@ public class PeerConnection extends Connection {
 
         pb.dataLeft.sub(recvReq.range());
 
-        // when we receive compressed part inflate it to temporary buffer and put it into receive buffer again
         if (pb.isCompleted()) {
             if (recvReqCompressed) {
-                log.debug("compressed block completed {}", pb.dataSize);
-                byte[] temp = session.allocateTemporaryInflateBuffer();
-                byte[] zData = new byte[(int) pb.dataSize];
-                pb.buffer.clear();
-                pb.buffer.limit((int) pb.dataSize);
-                pb.buffer.get(zData);
-
-                Inflater decompresser = new Inflater();
-                decompresser.setInput(zData, 0, zData.length);
-                int resultLength = 0;
-                try {
-                    resultLength = decompresser.inflate(temp);
-                    log.trace("Compressed data dataSize {} uncompressed data dataSize {}", zData.length, resultLength);
-                } catch (DataFormatException e) {
-                    throw new JED2KException(ErrorCode.INFLATE_ERROR);
-                } finally {
-                    decompresser.end();
-                }
-
-                assert resultLength != 0;
-
-                // write inflated data into receive buffer and prepare buffer for reading
-                pb.buffer.clear();
-                pb.buffer.limit(resultLength);
-                pb.buffer.put(temp, 0, resultLength);
+                boolean finished = pb.inflater != null && pb.inflater.finished();
+                log.debug("compressed block completed {} uncompressed {}", pb.dataSize, pb.buffer.position());
+                releaseInflater(pb);
+                if (!finished || pb.buffer.position() == 0) throw new JED2KException(ErrorCode.INFLATE_ERROR);
+                // prepare buffer for reading
                 pb.buffer.flip();
             }
             else {
@@ -978,6 +1541,10 @@ public class PeerConnection extends Connection {
         return this.speed;
     }
 
+    final boolean hasTransfer() {
+        return transfer != null;
+    }
+
     public Peer getPeer() {
         return peerInfo;
     }
@@ -1008,44 +1575,128 @@ public class PeerConnection extends Connection {
 
     /**
      * request new blocks from associated transfer's picker
+     * download queue is topped up to depth adapted to this peer, so remote always has requests to answer
+     * and we do not wait full round trip after each block
      */
     void requestBlocks() {
-        if (transfer == null || !transfer.hasPicker() || transferringData || !downloadQueue.isEmpty()) return;
+        if (transfer == null || !transfer.hasPicker()) return;
+
+        // do not request new blocks while disk queue is too long
+        if (session.diskBackpressure.isStalled()) {
+            session.diskBackpressure.await(this);
+            return;
+        }
+
+        int depth = requestQueueDepth(statistics().downloadPayloadRate()
+                , rtt
+                , session.availablePoolBuffers(transfer)
+                , session.settings.maxRequestQueueSize);
+
+        // do not request blocks which can't be received, pool buffers are held by blocks in memory
+        // requested blocks may hold buffers and wait for data, so idle connection only stops reading
+        if (depth == 0) {
+            if (downloadQueue.isEmpty()) pauseRead();
+            session.awaitPoolBuffers(this);
+            return;
+        }
+
+        if (downloadQueue.size() >= depth) return;
+
+        boolean idle = downloadQueue.isEmpty();
         LinkedList<PieceBlock> blocks = new LinkedList<PieceBlock>();
         PiecePicker picker = transfer.getPicker();
-        picker.pickPieces(blocks, Constants.REQUEST_QUEUE_SIZE, getPeer(), speed());
+        picker.pickPieces(blocks, depth - downloadQueue.size(), getPeer(), speed(), getAvailablePieces());
         RequestParts64 reqp = new RequestParts64(transfer.hash());
 
-        while(!blocks.isEmpty() && downloadQueue.size() < Constants.REQUEST_QUEUE_SIZE) {
+        while(!blocks.isEmpty() && downloadQueue.size() < depth) {
             PieceBlock b = blocks.poll();
-            downloadQueue.add(new PendingBlock(b, transfer.size()));
-            assert !reqp.isFool();
+            PendingBlock pb = new PendingBlock(b, transfer.size());
+            pb.measureRtt = idle;
+            downloadQueue.add(pb);
             reqp.append(b.range(transfer.size()));
-            // do not flush (write) structure to remote here like in libed2k since order always contain no more than 3 blocks
+            // request packet contains no more than 3 ranges, so flush it and continue with new one
+            if (reqp.isFool()) {
+                write(reqp);
+                reqp = new RequestParts64(transfer.hash());
+            }
         }
 
-        log.debug("request blocks completed, download queue dataSize {}", downloadQueue.size());
+        // return blocks which were picked over depth
+        for(final PieceBlock b: blocks) {
+            picker.abortDownload(b, getPeer());
+        }
+
+        log.debug("request blocks completed, download queue size {} depth {}", downloadQueue.size(), depth);
         if (!reqp.isEmpty()) {
             write(reqp);
         }
-        else {
+        else if (downloadQueue.isEmpty()) {
             close(ErrorCode.NO_ERROR);
         }
     }
 
+    /**
+     * update smoothed round trip time by new sample
+     * @param sample measured time in milliseconds
+     */
+    private void updateRtt(long sample) {
+        if (sample < 0) return;
+        rtt = (rtt == 0)?sample:(rtt*7 + sample)/8;
+    }
+
+    /**
+     * count of blocks requested from peer simultaneously
+     * base queue plus blocks to cover bandwidth-delay product of connection
+     * @param rate current download payload rate in bytes per second
+     * @param rtt round trip time in milliseconds
+     * @param availableBuffers buffers transfer can allocate in session's buffer pool
+     * @param maxDepth configured upper bound
+     * @return depth of download queue, zero means no buffers to receive blocks now
+     */
+    public static int requestQueueDepth(long rate, long rtt, int availableBuffers, int maxDepth) {
+        long bdp = rate * rtt / 1000;
+        long depth = Constants.REQUEST_QUEUE_SIZE + (bdp + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+        depth = Math.min(depth, Math.max(maxDepth, 1));
+        // each requested block requires buffer for receiving
+        return (int)Math.max(Math.min(depth, availableBuffers), 0);
+    }
+
+    /**
+     * disk backpressure stall is over, continue reading data and requesting blocks
+     */
+    void onDiskResumed() {
+        resumeReceive();
+    }
+
+    /**
+     * buffers were returned to pool, try to continue receiving of block or request new blocks
+     */
+    void onPoolBuffersReleased() {
+        resumeReceive();
+    }
+
+    private void resumeReceive() {
+        // pause time is not remote's silence
+        lastReceive = Time.currentTime();
+        resumeRead();
+        if (!transferringData) requestBlocks();
+    }
+
     void abortAllRequests() {
         if (transfer != null && transfer.hasPicker()) {
             PiecePicker picker = transfer.getPicker();
             while(!downloadQueue.isEmpty()) {
                 PendingBlock pb = downloadQueue.poll();
+                releaseInflater(pb);
                 picker.abortDownload(pb.block, getPeer());
                 if (pb.buffer != null) {
                     pb.buffer.clear();
-                    session.bufferPool.deallocate(pb.buffer, Time.currentTime());
+                    session.deallocatePoolBuffer(transfer, pb.buffer);
                 }
             }
         }
         else {
+            for(final PendingBlock pb: downloadQueue) releaseInflater(pb);
             downloadQueue.clear();
         }
     }
@@ -1054,29 +1705,6 @@ public class PeerConnection extends Connection {
         return remotePieces;
     }
 
-    /**
-     * submit task to executor service to async write block to disk
-     * and return future
-     * @param b completed block
-     * @param buffer data buffer
-     * @param t actual transfer
-     * @return future of result for async operation
-     */
-    Future<AsyncOperationResult> asyncWrite(final PieceBlock b, final ByteBuffer buffer, final Transfer t) {
-        transfer.getPicker().markAsWriting(b);
-        return session.submitDiskTask(new AsyncWrite(b, buffer, t));
-    }
-
-    /**
-     * submit hashing task to executor
-     * @param pieceIndex index of piece which hash should be calculated
-     * @param t - transfer ?
-     * @return future of hasshing operation result
-     */
-    Future<AsyncOperationResult> asyncHash(int pieceIndex, final Transfer t) {
-        return session.submitDiskTask(new AsyncHash(t, pieceIndex));
-    }
-
     /**
      *
      * @return information about remote peer
@@ -2,15 +2,24 @@ package org.dkf.jed2k;
 
 import lombok.extern.slf4j.Slf4j;
 import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.disk.WriteCombiner;
+import org.dkf.jed2k.disk.WriteStatistics;
 import org.dkf.jed2k.exception.ErrorCode;
 import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.AichTree;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.AichHash;
 import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PieceHashState;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
 
 /**
  * Created by inkpot on 15.07.2016.
@@ -20,52 +29,127 @@ import java.util.LinkedList;
 public class PieceManager extends BlocksEnumerator {
     private final FileHandler handler;
     private LinkedList<BlockManager> blockMgrs = new LinkedList<BlockManager>();
+    private final WriteCombiner combiner;
+    private final WriteStatistics statistics;
 
     public PieceManager(final FileHandler handler, int pieceCount, int blocksInLastPiece) {
+        this(handler, pieceCount, blocksInLastPiece, null);
+    }
+
+    /**
+     * @param statistics write calls counters, can be null
+     */
+    public PieceManager(final FileHandler handler, int pieceCount, int blocksInLastPiece, final WriteStatistics statistics) {
         super(pieceCount, blocksInLastPiece);
         this.handler = handler;
+        this.combiner = new WriteCombiner(statistics);
+        this.statistics = statistics;
         assert handler != null;
     }
 
-    private BlockManager getBlockManager(int piece) {
+    private synchronized BlockManager findBlockManager(int piece) {
         for(BlockManager mgr: blockMgrs) {
             if (mgr.getPieceIndex() == piece) return mgr;
         }
 
+        return null;
+    }
+
+    private synchronized BlockManager getBlockManager(int piece) {
+        BlockManager mgr = findBlockManager(piece);
+        if (mgr != null) return mgr;
         blockMgrs.addLast(new BlockManager(piece, blocksInPiece(piece)));
         return blockMgrs.getLast();
     }
 
+    private synchronized void removeBlockManager(final BlockManager mgr) {
+        blockMgrs.remove(mgr);
+    }
+
     /**
-     * actual write data to file
+     * queue block for write, called on submit of write task so adjacent queued blocks can be written by one call
+     * thread safe
+     * @param b block
+     * @param buffer data source, must not be changed until write completed
+     * @return queued write for write block call
+     */
+    public WriteCombiner.Entry queueBlock(PieceBlock b, final ByteBuffer buffer) {
+        assert(buffer.hasRemaining());
+        return combiner.queue(b.blocksOffset()*Constants.BLOCK_SIZE, buffer);
+    }
+
+    /**
+     * actual write data to file and hash it in the same thread
      * @param b block
      * @param buffer data source
      */
     public LinkedList<ByteBuffer> writeBlock(PieceBlock b, final ByteBuffer buffer) throws JED2KException {
+        writeBlock(b, queueBlock(b, buffer));
+        return hashBlock(b, buffer);
+    }
+
+    /**
+     * actual write of queued block to file, block can be already written with previous adjacent block
+     * block's buffer is not used by write, so it can be hashed at the same time
+     * @param b block
+     * @param entry queued write of block
+     */
+    public void writeBlock(PieceBlock b, final WriteCombiner.Entry entry) throws JED2KException {
         FileChannel c = handler.getWriteChannel();
         assert c != null;
-        long bytesOffset = b.blocksOffset()* Constants.BLOCK_SIZE;
-        BlockManager mgr = getBlockManager(b.pieceIndex);
-        assert(mgr != null);
 
-        // TODO - add error handling here with correct buffer return to requester
         try {
             log.debug("write block {} started", b);
-            // stage 1 - write block to disk, possibly error occurred
-            // buffer must have remaining data
-            assert(buffer.hasRemaining());
-            handler.getWriteChannel().position(bytesOffset);
-            while(buffer.hasRemaining()) handler.getWriteChannel().write(buffer);
-            buffer.rewind();
+            combiner.write(entry, c);
             log.debug("write block {} finished", b);
         }
         catch(IOException e) {
             log.error("i/o error on write block {}", e);
             throw new JED2KException(ErrorCode.IO_EXCEPTION);
         }
+    }
 
-        // stage 2 - prepare hash and return obsolete blocks if possible
-        return mgr.registerBlock(b.pieceBlock, buffer);
+    /**
+     * prepare hash of piece and return obsolete blocks if possible
+     * blocks of one piece must be hashed sequentially, blocks of different pieces can be hashed in parallel
+     * @param b block
+     * @param buffer block data, will be consumed
+     * @return buffers of hashed blocks
+     */
+    public LinkedList<ByteBuffer> hashBlock(PieceBlock b, final ByteBuffer buffer) {
+        return getBlockManager(b.pieceIndex).registerBlock(b.pieceBlock, buffer);
+    }
+
+    /**
+     * write whole verified piece by vectored write, piece doesn't need hashing through block manager
+     * @param pieceIndex piece index
+     * @param buffers blocks of piece in order, buffers positions are not changed
+     * @throws JED2KException
+     */
+    public void writePiece(int pieceIndex, final ByteBuffer[] buffers) throws JED2KException {
+        FileChannel c = handler.getWriteChannel();
+        assert c != null;
+        long bytesOffset = new PieceBlock(pieceIndex, 0).blocksOffset()*Constants.BLOCK_SIZE;
+        ByteBuffer[] data = new ByteBuffer[buffers.length];
+        long remaining = 0;
+        for(int i = 0; i < buffers.length; ++i) {
+            data[i] = buffers[i].duplicate();
+            remaining += data[i].remaining();
+        }
+
+        long bytes = remaining;
+
+        try {
+            log.debug("write piece {} started", pieceIndex);
+            c.position(bytesOffset);
+            while(remaining > 0) remaining -= c.write(data);
+            if (statistics != null) statistics.record(bytes);
+            log.debug("write piece {} finished", pieceIndex);
+        }
+        catch(IOException e) {
+            log.error("i/o error on write piece {}", e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
     }
 
     /**
@@ -105,14 +189,144 @@ public class PieceManager extends BlocksEnumerator {
         return mgr.registerBlock(b.pieceBlock, buffer);
     }
 
+    /**
+     * hashing state of partially downloaded piece for resume data
+     * thread safe
+     * @param pieceIndex piece index
+     * @param writtenBlocks count of blocks from piece start which are written to file
+     * @return state after hashed and written blocks or null when piece has no such state
+     */
+    public PieceHashState hashState(int pieceIndex, int writtenBlocks) {
+        BlockManager mgr = findBlockManager(pieceIndex);
+        if (mgr == null) return null;
+        int blocks = Math.min(mgr.hashedBlocks(), writtenBlocks);
+        if (blocks == 0 || blocks >= blocksInPiece(pieceIndex)) return null;
+        byte[] context = mgr.getContext(blocks);
+        return (context != null)?new PieceHashState(pieceIndex, blocks, context):null;
+    }
+
+    /**
+     * restore hashing state of piece from resume data instead of reading it's first blocks from file
+     * @param state saved state
+     */
+    public synchronized void restoreHashState(final PieceHashState state) {
+        int pieceIndex = state.pieceIndex.intValue();
+        assert findBlockManager(pieceIndex) == null;
+        blockMgrs.addLast(new BlockManager(pieceIndex, blocksInPiece(pieceIndex), state.blocks.intValue(), state.getContext()));
+    }
+
     public Hash hashPiece(int pieceIndex) {
         BlockManager mgr = getBlockManager(pieceIndex);
         assert(mgr != null);
         assert(mgr.getByteBuffersCount() == 0); // all buffers must be released
-        blockMgrs.remove(mgr);
+        removeBlockManager(mgr);
         return mgr.pieceHash();
     }
 
+    /**
+     * drop hashing state of piece
+     * @param pieceIndex piece index
+     * @return buffers of blocks registered but not hashed yet
+     */
+    public LinkedList<ByteBuffer> releasePiece(int pieceIndex) {
+        BlockManager mgr = findBlockManager(pieceIndex);
+        if (mgr == null) return new LinkedList<ByteBuffer>();
+        removeBlockManager(mgr);
+        return mgr.releaseBuffers();
+    }
+
+    /**
+     * drop hashing state of all pieces
+     * @return buffers of blocks registered but not hashed yet
+     */
+    public synchronized LinkedList<ByteBuffer> releasePieces() {
+        LinkedList<ByteBuffer> res = new LinkedList<ByteBuffer>();
+        for(final BlockManager mgr: blockMgrs) res.addAll(mgr.releaseBuffers());
+        blockMgrs.clear();
+        return res;
+    }
+
+    /**
+     * hash piece data stored in file, thread safe when each thread uses own channel
+     * @param pieceIndex piece index
+     * @param fileSize size of file associated with transfer
+     * @param c channel for reading, is used by positional reads only
+     * @param buffer buffer for reading, size of buffer is size of one read
+     * @return hash of data or null when file has no whole piece
+     * @throws JED2KException on i/o error
+     */
+    public Hash hashPiece(int pieceIndex, long fileSize, final FileChannel c, final ByteBuffer buffer) throws JED2KException {
+        long offset = pieceIndex*Constants.PIECE_SIZE;
+        long end = Math.min(offset + Constants.PIECE_SIZE, fileSize);
+        assert offset < end;
+        MD4 hasher = new MD4();
+
+        try {
+            while(offset < end) {
+                buffer.clear();
+                if (end - offset < buffer.capacity()) buffer.limit((int)(end - offset));
+                while(buffer.hasRemaining()) {
+                    int n = c.read(buffer, offset + buffer.position());
+                    if (n == -1) return null;
+                }
+
+                buffer.flip();
+                offset += buffer.remaining();
+                hasher.update(buffer);
+            }
+        }
+        catch(IOException e) {
+            log.error("i/o error on hash piece {} {}", pieceIndex, e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
+
+        return Hash.fromBytes(hasher.digest());
+    }
+
+    /**
+     * compare AICH hashes of piece data stored in file with trusted hashes of piece's AICH blocks
+     * thread safe when each thread uses own channel
+     * @param pieceIndex piece index
+     * @param fileSize size of file associated with transfer
+     * @param c channel for reading, is used by positional reads only
+     * @param hashes trusted hashes of AICH blocks of piece
+     * @return sorted indexes of piece blocks overlapped by AICH blocks with wrong data
+     * @throws JED2KException on i/o error
+     */
+    public List<Integer> findCorruptedBlocks(int pieceIndex, long fileSize, final FileChannel c, final List<AichHash> hashes) throws JED2KException {
+        long pieceOffset = pieceIndex*Constants.PIECE_SIZE;
+        long pieceSize = Math.min(Constants.PIECE_SIZE, fileSize - pieceOffset);
+        assert hashes.size() == AichTree.partBlocksCount(pieceSize);
+        ByteBuffer buffer = ByteBuffer.allocate((int)AichTree.BLOCK_SIZE);
+        TreeSet<Integer> res = new TreeSet<Integer>();
+
+        try {
+            for(int i = 0; i < hashes.size(); ++i) {
+                long begin = i*AichTree.BLOCK_SIZE;
+                long end = Math.min(begin + AichTree.BLOCK_SIZE, pieceSize);
+                boolean eof = false;
+                buffer.clear();
+                buffer.limit((int)(end - begin));
+                while(buffer.hasRemaining() && !eof) {
+                    eof = c.read(buffer, pieceOffset + begin + buffer.position()) == -1;
+                }
+
+                buffer.flip();
+                if (eof || !AichTree.blockHash(buffer).equals(hashes.get(i))) {
+                    for(long b = begin / Constants.BLOCK_SIZE; b <= (end - 1) / Constants.BLOCK_SIZE; ++b) {
+                        res.add((int)b);
+                    }
+                }
+            }
+        }
+        catch(IOException e) {
+            log.error("i/o error on AICH check of piece {} {}", pieceIndex, e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
+
+        return new ArrayList<Integer>(res);
+    }
+
     /**
      * close file and release resources
      * @throws JED2KException
@@ -128,6 +342,14 @@ public class PieceManager extends BlocksEnumerator {
         handler.deleteFile();
     }
 
+    /**
+     * @return new independent read only channel for sending data to peers
+     * @throws JED2KException
+     */
+    public FileChannel openReadChannel() throws JED2KException {
+        return handler.openReadChannel();
+    }
+
     final File getFile() {
         return handler.getFile();
     }
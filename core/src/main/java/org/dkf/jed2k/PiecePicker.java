@@ -1,6 +1,7 @@
 package org.dkf.jed2k;
 
 import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.protocol.BitField;
 
 import java.util.*;
 
@@ -21,21 +22,185 @@ public class PiecePicker extends BlocksEnumerator {
         }
     }
 
-    private class PiecePos {
-        public int peersCount = 0;
-        public int full = 0;
-        public int priority = 0;
-        public int indx = 0;
+    /**
+     * pieces in NONE state which have the same availability
+     * piece removal swaps last piece into free position, so all operations are O(1)
+     */
+    private static class AvailabilityBucket {
+        int[] pieces = new int[4];
+        int size = 0;
+
+        int add(int pieceIndex) {
+            if (size == pieces.length) pieces = Arrays.copyOf(pieces, size*2);
+            pieces[size] = pieceIndex;
+            return size++;
+        }
+
+        /**
+         * @return index of piece moved into position or -1
+         */
+        int removeAt(int position) {
+            assert position < size;
+            --size;
+            if (position == size) return -1;
+            pieces[position] = pieces[size];
+            return pieces[position];
+        }
     }
 
     private byte pieceStatus[];
     private LinkedList<DownloadingPiece> downloadingPieces = new LinkedList<DownloadingPiece>();
 
+    /**
+     * downloading pieces by piece index for constant time lookup, list above keeps download order
+     */
+    private DownloadingPiece[] downloadingIndex;
+
+    /**
+     * count of partial sources which have piece, complete sources are counted separately in seeds
+     * since they do not change order of pieces
+     */
+    private int[] availability;
+
+    /**
+     * position of piece in availability bucket, valid only for pieces in NONE state
+     */
+    private int[] bucketPosition;
+    private ArrayList<AvailabilityBucket> buckets = new ArrayList<AvailabilityBucket>();
+
+    /**
+     * pieces in NONE state as bit set in order of BitField words for fast intersection with remote pieces
+     */
+    private long[] noneWords;
+    private int seeds = 0;
+    private int partialSources = 0;
+
+    /**
+     * start position of sequential search when we have no information about sources
+     */
+    private int sequentialCursor = 0;
+    private final Random random = new Random();
+
     public PiecePicker(int pieceCount, int blocksInLastPiece) {
         super(pieceCount, blocksInLastPiece);
     	assert(pieceCount > 0);
         pieceStatus = new byte[pieceCount];
+        downloadingIndex = new DownloadingPiece[pieceCount];
         Arrays.fill(pieceStatus, (byte)PieceState.NONE.value);
+        availability = new int[pieceCount];
+        bucketPosition = new int[pieceCount];
+        AvailabilityBucket bucket = new AvailabilityBucket();
+        buckets.add(bucket);
+        for(int i = 0; i < pieceCount; ++i) bucketPosition[i] = bucket.add(i);
+        noneWords = new long[Utils.divCeil(pieceCount, 64)];
+        for(int i = 0; i < pieceCount; ++i) noneWords[i / 64] |= wordMask(i);
+    }
+
+    private static long wordMask(int pieceIndex) {
+        return 0x8000000000000000L >>> (pieceIndex & 63);
+    }
+
+    /**
+     * @param pieces remote pieces
+     * @return true if remote peer has at least one piece in NONE state
+     */
+    private boolean hasNonePieces(final BitField pieces) {
+        for(int i = 0; i < noneWords.length; ++i) {
+            if ((pieces.getWord(i) & noneWords[i]) != 0) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param pieces remote pieces or null when remote peer has all pieces
+     * @param pieceIndex index of piece
+     * @return true if remote peer has piece
+     */
+    private static boolean remoteHas(final BitField pieces, int pieceIndex) {
+        return pieces == null || pieces.getBit(pieceIndex);
+    }
+
+    private AvailabilityBucket getBucket(int level) {
+        while(buckets.size() <= level) buckets.add(new AvailabilityBucket());
+        return buckets.get(level);
+    }
+
+    private void insertPiece(int pieceIndex) {
+        bucketPosition[pieceIndex] = getBucket(availability[pieceIndex]).add(pieceIndex);
+    }
+
+    private void erasePiece(int pieceIndex) {
+        int moved = buckets.get(availability[pieceIndex]).removeAt(bucketPosition[pieceIndex]);
+        if (moved != -1) bucketPosition[moved] = bucketPosition[pieceIndex];
+    }
+
+    /**
+     * change piece state and keep availability buckets contain only pieces in NONE state
+     */
+    private void setState(int pieceIndex, final PieceState state) {
+        boolean wasNone = pieceStatus[pieceIndex] == PieceState.NONE.value;
+        pieceStatus[pieceIndex] = state.value;
+        if (wasNone && state != PieceState.NONE) {
+            erasePiece(pieceIndex);
+            noneWords[pieceIndex / 64] &= ~wordMask(pieceIndex);
+        } else if (!wasNone && state == PieceState.NONE) {
+            insertPiece(pieceIndex);
+            noneWords[pieceIndex / 64] |= wordMask(pieceIndex);
+            sequentialCursor = Math.min(sequentialCursor, pieceIndex);
+        }
+    }
+
+    private void changeAvailability(int pieceIndex, int delta) {
+        boolean none = pieceStatus[pieceIndex] == PieceState.NONE.value;
+        if (none) erasePiece(pieceIndex);
+        availability[pieceIndex] += delta;
+        assert availability[pieceIndex] >= 0;
+        if (none) insertPiece(pieceIndex);
+    }
+
+    /**
+     * register pieces of new source, call it when remote peer reports its file status
+     * @param pieces remote peer's pieces, null or empty bit field means complete source
+     */
+    public void addAvailability(final BitField pieces) {
+        if (pieces == null || pieces.empty()) {
+            ++seeds;
+            return;
+        }
+
+        assert pieces.size() == pieceStatus.length;
+        ++partialSources;
+        for(int i = 0; i < pieceStatus.length; ++i) {
+            if (pieces.getBit(i)) changeAvailability(i, 1);
+        }
+    }
+
+    /**
+     * unregister pieces of source, call it when remote peer disconnected
+     * @param pieces the same bit field was passed into addAvailability
+     */
+    public void removeAvailability(final BitField pieces) {
+        if (pieces == null || pieces.empty()) {
+            assert seeds > 0;
+            --seeds;
+            return;
+        }
+
+        assert pieces.size() == pieceStatus.length;
+        assert partialSources > 0;
+        --partialSources;
+        for(int i = 0; i < pieceStatus.length; ++i) {
+            if (pieces.getBit(i)) changeAvailability(i, -1);
+        }
+    }
+
+    /**
+     * @param pieceIndex index of piece
+     * @return count of sources which have piece
+     */
+    public int getAvailability(int pieceIndex) {
+        return availability[pieceIndex] + seeds;
     }
 
     /**
@@ -45,13 +210,21 @@ public class PiecePicker extends BlocksEnumerator {
      */
     public DownloadingPiece getDownloadingPiece(int index) {
     	assert(index >=0);
-        Iterator<DownloadingPiece> itr = downloadingPieces.iterator();
-        while(itr.hasNext()) {
-            DownloadingPiece dp = itr.next();
-            if (dp.pieceIndex == index) return dp;
-        }
+        return downloadingIndex[index];
+    }
 
-        return null;
+    private DownloadingPiece addDownloadingPiece(int pieceIndex) {
+        assert downloadingIndex[pieceIndex] == null;
+        DownloadingPiece dp = new DownloadingPiece(pieceIndex, blocksInPiece(pieceIndex));
+        downloadingPieces.addLast(dp);
+        downloadingIndex[pieceIndex] = dp;
+        setState(pieceIndex, PieceState.DOWNLOADING);
+        return dp;
+    }
+
+    private void removeDownloadingPiece(final DownloadingPiece dp) {
+        downloadingPieces.remove(dp);
+        downloadingIndex[dp.pieceIndex] = null;
     }
 
     /**
@@ -122,8 +295,7 @@ public class PiecePicker extends BlocksEnumerator {
         assert pieceIndex < pieceStatus.length;
         assert pieceStatus[pieceIndex] != PieceState.HAVE.value;
         if (pieceStatus[pieceIndex] == PieceState.NONE.value) {
-            downloadingPieces.add(new DownloadingPiece(pieceIndex, blocksInPiece(pieceIndex)));
-            pieceStatus[pieceIndex] = PieceState.DOWNLOADING.value;
+            addDownloadingPiece(pieceIndex);
         }
 
         DownloadingPiece dp = getDownloadingPiece(pieceIndex);
@@ -135,22 +307,55 @@ public class PiecePicker extends BlocksEnumerator {
      * @return true if new piece in download queue
      */
     public boolean chooseNextPiece() {
-        // start from first piece due to slow operation of writing data into end of file!
-        int roundRobin = 0;
-        for(int i = 0; i < pieceStatus.length; ++i) {
-            if (roundRobin == pieceStatus.length) roundRobin = 0;
-            int current = roundRobin;
+        return chooseNextPiece(null);
+    }
 
-            if (pieceStatus[current] == PieceState.NONE.value) {
-                downloadingPieces.add(new DownloadingPiece(current, blocksInPiece(current)));
-                pieceStatus[current] = PieceState.DOWNLOADING.value;
-                return true;
+    /**
+     * choose next piece which remote peer has and add it to download queue
+     * pieces are chosen rarest first with random choice between pieces of the same availability
+     * when no source reported its pieces yet pieces are chosen sequentially from the begin of file
+     * due to slow operation of writing data into end of file
+     * @param pieces remote pieces or null when remote peer has all pieces
+     * @return true if new piece in download queue
+     */
+    public boolean chooseNextPiece(final BitField pieces) {
+        assert pieces == null || pieces.size() == pieceStatus.length;
+        // cheap check remote has something interesting before search
+        if (pieces != null && !hasNonePieces(pieces)) return false;
+        int current = -1;
+
+        if (seeds == 0 && partialSources == 0) {
+            while(sequentialCursor < pieceStatus.length && pieceStatus[sequentialCursor] != PieceState.NONE.value) {
+                ++sequentialCursor;
             }
 
-            ++roundRobin;
+            for(int i = sequentialCursor; i < pieceStatus.length && current == -1; ++i) {
+                if (pieceStatus[i] == PieceState.NONE.value && remoteHas(pieces, i)) current = i;
+            }
+        } else {
+            // pieces nobody has are not available without complete sources
+            for(int level = (seeds != 0)?0:1; level < buckets.size() && current == -1; ++level) {
+                current = pickRandom(buckets.get(level), pieces);
+            }
         }
 
-        return false;
+        if (current == -1) return false;
+        addDownloadingPiece(current);
+        return true;
+    }
+
+    /**
+     * @return random piece from bucket which remote peer has or -1
+     */
+    private int pickRandom(final AvailabilityBucket bucket, final BitField pieces) {
+        if (bucket.size == 0) return -1;
+        int start = random.nextInt(bucket.size);
+        for(int i = 0; i < bucket.size; ++i) {
+            int piece = bucket.pieces[(start + i) % bucket.size];
+            if (remoteHas(pieces, piece)) return piece;
+        }
+
+        return -1;
     }
 
     /**
@@ -160,11 +365,13 @@ public class PiecePicker extends BlocksEnumerator {
      * @param peer - Policy peer connection info
      * @param speed - speed of requester
      * @param endGame - can we take already downloading blocks
+     * @param pieces - remote pieces or null when remote peer has all pieces
      */
     private int addDownloadingBlocks(Collection<PieceBlock> rq, int orderLength, final Peer peer, PeerConnection.PeerSpeed speed,
-                                      boolean endGame) {
+                                      boolean endGame, final BitField pieces) {
         int res = 0;
         for(final DownloadingPiece dp: downloadingPieces) {
+            if (!remoteHas(pieces, dp.pieceIndex)) continue;
             res += dp.pickBlocks(rq, orderLength - res, peer, speed, endGame);
             assert res <= orderLength;
             if (res == orderLength) break;
@@ -181,15 +388,28 @@ public class PiecePicker extends BlocksEnumerator {
      * @param speed - PeerConnection's speed
      */
     public void pickPieces(Collection<PieceBlock> rq, int orderLength, final Peer peer, PeerConnection.PeerSpeed speed) {
-        int numRequested = addDownloadingBlocks(rq, orderLength, peer, speed, false);
+        pickPieces(rq, orderLength, peer, speed, null);
+    }
+
+    /**
+     *
+     * @param rq - request queue
+     * @param orderLength - prefer blocks count for request
+     * @param peer - PeerConnection's Peer information from policy
+     * @param speed - PeerConnection's speed
+     * @param pieces - remote pieces, blocks are picked only from them, null when remote peer has all pieces
+     */
+    public void pickPieces(Collection<PieceBlock> rq, int orderLength, final Peer peer, PeerConnection.PeerSpeed speed,
+                           final BitField pieces) {
+        int numRequested = addDownloadingBlocks(rq, orderLength, peer, speed, false, pieces);
 
         // for medium and fast peers in end game more re-request blocks from already downloading pieces
         if (speed != PeerConnection.PeerSpeed.SLOW && numRequested < orderLength && isEndGame()) {
-            numRequested += addDownloadingBlocks(rq, orderLength - numRequested, peer, speed, true);
+            numRequested += addDownloadingBlocks(rq, orderLength - numRequested, peer, speed, true, pieces);
         }
 
-        if (numRequested < orderLength && chooseNextPiece()) {
-            pickPieces(rq, orderLength - numRequested, peer, speed);
+        if (numRequested < orderLength && chooseNextPiece(pieces)) {
+            pickPieces(rq, orderLength - numRequested, peer, speed, pieces);
         }
     }
 
@@ -201,8 +421,19 @@ public class PiecePicker extends BlocksEnumerator {
     public final void restorePiece(int pieceIndex) {
         assert(pieceIndex < pieceStatus.length); // correct piece index
         DownloadingPiece dp = getDownloadingPiece(pieceIndex);
-        if (dp != null) downloadingPieces.remove(dp);
-        pieceStatus[pieceIndex] = PieceState.NONE.value;
+        if (dp != null) removeDownloadingPiece(dp);
+        setState(pieceIndex, PieceState.NONE);
+    }
+
+    /**
+     * make finished block of downloading piece available for downloading again
+     * it happens when block level verification found wrong data in block
+     * @param b block
+     */
+    public void restoreBlock(final PieceBlock b) {
+        DownloadingPiece dp = getDownloadingPiece(b.pieceIndex);
+        assert dp != null;
+        dp.restoreBlock(b.pieceBlock);
     }
 
     /**
@@ -250,13 +481,13 @@ public class PiecePicker extends BlocksEnumerator {
         assert(pieceIndex < pieceStatus.length);
         DownloadingPiece dp = getDownloadingPiece(pieceIndex);
         assert(dp != null);
-        downloadingPieces.remove(dp);
-        pieceStatus[pieceIndex] = PieceState.HAVE.value;
+        removeDownloadingPiece(dp);
+        setState(pieceIndex, PieceState.HAVE);
     }
 
     public void restoreHave(int pieceIndex) {
         assert(downloadingPieces.isEmpty());
-        pieceStatus[pieceIndex] = PieceState.HAVE.value;
+        setState(pieceIndex, PieceState.HAVE);
     }
 
     public boolean havePiece(int pieceIndex) {
@@ -286,9 +517,7 @@ public class PiecePicker extends BlocksEnumerator {
         DownloadingPiece p = getDownloadingPiece(b.pieceIndex);
 
         if (p == null) {
-            p = new DownloadingPiece(b.pieceIndex, blocksInPiece(b.pieceIndex));
-            downloadingPieces.addLast(p);
-            pieceStatus[b.pieceIndex] = PieceState.DOWNLOADING.value;
+            p = addDownloadingPiece(b.pieceIndex);
         }
 
         assert(p != null);
@@ -292,6 +292,41 @@ public class ServerConnection extends Connection {
         throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
     }
 
+    @Override
+    public void onClientStartUpload(StartUpload value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientRequestParts32(RequestParts32 value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientRequestParts64(RequestParts64 value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientAichFileHashRequest(AichFileHashRequest value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientAichFileHashAnswer(AichFileHashAnswer value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientAichRequest(AichRequest value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
+    @Override
+    public void onClientAichAnswer(AichAnswer value) throws JED2KException {
+        throw new JED2KException(ErrorCode.SERVER_CONN_UNSUPPORTED_PACKET);
+    }
+
     @Override
     void secondTick(long currentSessionTime) {
 
@@ -4,6 +4,9 @@ import org.bitlet.weupnp.GatewayDevice;
 import org.bitlet.weupnp.GatewayDiscover;
 import org.bitlet.weupnp.PortMappingEntry;
 import org.dkf.jed2k.alert.*;
+import org.dkf.jed2k.disk.DiskIOEngine;
+import org.dkf.jed2k.disk.DiskIOStatus;
+import org.dkf.jed2k.disk.WriteStatistics;
 import org.dkf.jed2k.exception.BaseErrorCode;
 import org.dkf.jed2k.exception.ErrorCode;
 import org.dkf.jed2k.exception.JED2KException;
@@ -39,8 +42,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Session extends Thread {
     private static Logger log = LoggerFactory.getLogger(Session.class);
-    Selector selector = null;
-    private ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+    volatile Selector selector = null;
+    private ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<Command>();
+    private LatencyHistogram commandsLatency = new LatencyHistogram();
+
+    /**
+     * transfers which have completed disk operations, posted by disk workers
+     */
+    private ConcurrentLinkedQueue<Transfer> diskCompletions = new ConcurrentLinkedQueue<Transfer>();
     ServerConnection serverConection = null;
     private ServerSocketChannel ssc = null;
 
@@ -50,10 +59,19 @@ public class Session extends Thread {
     long lastTick = Time.currentTime();
     HashMap<Integer, Hash> callbacks = new HashMap<Integer, Hash>();
     private ByteBuffer skipDataBuffer = null;
-    private byte[] zBuffer = null;
-    long zBufferLastAllocatedTime = 0;
     BufferPool bufferPool = null;
-    private ExecutorService diskIOService = Executors.newSingleThreadExecutor();
+    BufferManager bufferManager = null;
+    DiskBackpressure diskBackpressure = null;
+
+    /**
+     * connections which stopped reading and requesting until pool buffers are returned
+     */
+    private final LinkedHashSet<PeerConnection> bufferWaiters = new LinkedHashSet<PeerConnection>();
+    private boolean poolBuffersReleased = false;
+    private DiskIOEngine diskIO = null;
+    private DiskIOEngine hashIO = null;
+    UploadScheduler uploadScheduler = null;
+    BandwidthManager bandwidthManager = null;
     private ExecutorService upnpService = Executors.newSingleThreadExecutor();
     private AtomicBoolean finished = new AtomicBoolean(false);
     private boolean aborted = false;
@@ -66,6 +84,18 @@ public class Session extends Thread {
      */
     private WeakReference<DhtTracker> dhtTracker = new WeakReference<DhtTracker>(null);
 
+    /**
+     * user's command with time of enqueue for latency measurement
+     */
+    private static class Command {
+        final Runnable task;
+        final long enqueueTime = System.nanoTime();
+
+        Command(final Runnable task) {
+            this.task = task;
+        }
+    }
+
     /**
      * sources search result callback
      */
@@ -80,7 +110,7 @@ public class Session extends Thread {
 
         @Override
         public void process(final List<KadSearchEntry> data) {
-            session.commands.add(new Runnable() {
+            session.postCommand(new Runnable() {
                 @Override
                 public void run() {
                     Transfer transfer = weakTransfer.get();
@@ -219,6 +249,13 @@ public class Session extends Thread {
         // TODO - validate settings before usage
         settings = st;
         bufferPool = new BufferPool(st.bufferPoolSize);
+        bufferPool.setMaxIdleTime(st.bufferIdleTime*1000);
+        bufferManager = new BufferManager(bufferPool, transfers.values(), st);
+        diskBackpressure = new DiskBackpressure(st);
+        diskIO = new DiskIOEngine(st.diskIOThreads);
+        hashIO = new DiskIOEngine(Math.max(st.hashThreads, 1), "hash-io");
+        uploadScheduler = new UploadScheduler(st);
+        bandwidthManager = new BandwidthManager(st);
     }
 
     void closeListenSocket() {
@@ -294,14 +331,19 @@ public class Session extends Thread {
                         // a connection was established with a remote server/peer.
                         //log.trace("Key is connectable");
                         ((Connection)key.attachment()).onConnectable();
-                    } else if (key.isReadable()) {
-                        // a channel is ready for reading
-                        //log.trace("Key is readable");
-                        ((Connection)key.attachment()).onReadable();
-                    } else if (key.isWritable()) {
-                        // a channel is ready for writing
-                        //log.trace("Key is writeable");
-                        ((Connection)key.attachment()).onWriteable();
+                    } else {
+                        // connection can be ready for reading and writing at the same time
+                        if (key.isReadable()) {
+                            // a channel is ready for reading
+                            //log.trace("Key is readable");
+                            ((Connection)key.attachment()).onReadable();
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            // a channel is ready for writing
+                            //log.trace("Key is writeable");
+                            ((Connection)key.attachment()).onWriteable();
+                        }
                     }
                 }
 
@@ -309,6 +351,17 @@ public class Session extends Thread {
             }
         }
 
+        // re-arm connections throttled by bandwidth limits
+        bandwidthManager.process();
+
+        // disk workers wake up selector on each completed operation
+        processDiskCompletions();
+
+        // user's commands wake up selector too
+        processCommands();
+
+        if (poolBuffersReleased) resumeBufferWaiters();
+
         /**
          * handle user's command and process internal tasks in
          * transfers, peers and other structures every 1 second
@@ -329,15 +382,19 @@ public class Session extends Thread {
         // second tick on server connection
         if (serverConection != null) serverConection.secondTick(tickIntervalMS);
 
-        // TODO - run second tick on peer connections
-        // execute user's commands
-        Runnable r = commands.poll();
-        while(r != null) {
-            r.run();
-            r = commands.poll();
+        // connections without transfer, for instance incoming connections which only download from us
+        ArrayList<PeerConnection> localConnections = new ArrayList<PeerConnection>(connections);
+        for(final PeerConnection c: localConnections) {
+            if (c.hasTransfer() || c.isDisconnecting()) continue;
+            accumulator.add(c.statistics());
+            c.secondTick(tickIntervalMS);
         }
 
+        uploadScheduler.secondTick(currentSessionTime);
         accumulator.secondTick(tickIntervalMS);
+        bufferPool.secondTick(currentSessionTime);
+        // transfer's share of pool grows when other transfers become inactive, not only on buffer return
+        resumeBufferWaiters();
         connectNewPeers();
         //log.trace(bufferPool.toString());
     }
@@ -351,7 +408,8 @@ public class Session extends Thread {
             listen();
 
             while(!aborted && !interrupted()) {
-                int channelCount = selector.select(1000);
+                // wake up more frequently while connections wait for bandwidth
+                int channelCount = selector.select(bandwidthManager.selectTimeout());
                 Time.updateCachedTime();
                 on_tick(ErrorCode.NO_ERROR, channelCount);
             }
@@ -362,6 +420,9 @@ public class Session extends Thread {
         finally {
             log.info("Session is closing");
             commands.clear();
+            diskCompletions.clear();
+            bandwidthManager.clear();
+            bufferWaiters.clear();
 
             try {
                 if (selector != null) selector.close();
@@ -396,7 +457,8 @@ public class Session extends Thread {
             connections.clear();
 
             // stop service
-            diskIOService.shutdown();
+            diskIO.shutdown();
+            hashIO.shutdown();
             upnpService.shutdown();
             stopUPnPImpl("TCP");
             stopUPnPImpl("UDP");
@@ -435,7 +497,7 @@ public class Session extends Thread {
     }
 
     public void connectoTo(final String id, final InetSocketAddress point) {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 if (serverConection != null) {
@@ -456,7 +518,7 @@ public class Session extends Thread {
     }
 
     public void connectoTo(final String id, final String host, final int port) {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -485,7 +547,7 @@ public class Session extends Thread {
     }
 
     public void disconnectFrom() {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 if (serverConection != null) {
@@ -501,7 +563,7 @@ public class Session extends Thread {
     }
 
     public void search(final SearchRequest value) {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 if (serverConection != null) {
@@ -513,7 +575,7 @@ public class Session extends Thread {
 
     public void searchDhtKeyword(final String keyword, final long minSize, final long maxSize, final int sources, final int completeSources) {
         final Session s = this;
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 DhtTracker tracker = dhtTracker.get();
@@ -530,7 +592,7 @@ public class Session extends Thread {
 
 
     public void searchMore() {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 if (serverConection != null) {
@@ -542,7 +604,7 @@ public class Session extends Thread {
 
     // TODO - remove only
     public void connectToPeer(final Endpoint point) {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                     try {
@@ -569,11 +631,16 @@ public class Session extends Thread {
      * @param s contains configuration parameters for session
      */
     public void configureSession(final Settings s) {
-    	commands.add(new Runnable() {
+    	postCommand(new Runnable() {
 			@Override
 			public void run() {
 				boolean relisten = (settings.listenPort != s.listenPort);
 				settings = s;
+				uploadScheduler.configure(s);
+				bandwidthManager.configure(s);
+				bufferPool.setMaxIdleTime(s.bufferIdleTime*1000);
+				bufferManager.configure(s);
+				diskBackpressure.configure(s);
 				listen();
 			}
     	});
@@ -657,7 +724,7 @@ public class Session extends Thread {
     }
 
     public void removeTransfer(final Hash h, final boolean removeFile) {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                     Transfer t = transfers.get(h);
@@ -748,11 +815,60 @@ public class Session extends Thread {
     }
 
     /**
-     * allocate new fixed size byte buffer from session's buffer pool
-     * @return byte buffer from common session buffer pool
+     * allocate new fixed size byte buffer from session's buffer pool within transfer's share of pool
+     * @param t transfer will hold the buffer
+     * @return byte buffer from common session buffer pool or null if transfer can not get buffer now
+     */
+    public ByteBuffer allocatePoolBuffer(final Transfer t) {
+        return bufferManager.allocate(t);
+    }
+
+    /**
+     * return buffer allocated by allocatePoolBuffer to pool
+     * @param t transfer held the buffer
+     * @param buffer byte buffer
+     */
+    public void deallocatePoolBuffer(final Transfer t, final ByteBuffer buffer) {
+        bufferManager.deallocate(t, buffer, Time.currentTime());
+        if (!bufferWaiters.isEmpty()) poolBuffersReleased = true;
+    }
+
+    /**
+     * register connection to be resumed when pool buffers are returned
+     * @param c peer connection which can't get buffer for block
+     */
+    void awaitPoolBuffers(final PeerConnection c) {
+        bufferWaiters.add(c);
+    }
+
+    /**
+     * waiters are resumed by session's loop, not inside code which returns buffers
+     * connection which still can't get buffer registers itself again
+     */
+    private void resumeBufferWaiters() {
+        poolBuffersReleased = false;
+        if (bufferWaiters.isEmpty()) return;
+        PeerConnection[] resumed = bufferWaiters.toArray(new PeerConnection[bufferWaiters.size()]);
+        bufferWaiters.clear();
+        for(final PeerConnection c: resumed) {
+            if (!c.isDisconnecting()) c.onPoolBuffersReleased();
+        }
+    }
+
+    /**
+     * @param t transfer
+     * @return count of pool buffers reserved for transfer
+     */
+    public int poolBuffersReservation(final Transfer t) {
+        return bufferManager.reservation(t);
+    }
+
+    /**
+     * @param t transfer
+     * @return count of buffers transfer still can allocate from session's buffer pool
      */
-    public ByteBuffer allocatePoolBuffer() {
-        return bufferPool.allocate();
+    public int availablePoolBuffers(final Transfer t) {
+        return bufferManager.available(t);
     }
 
     /**
@@ -769,22 +885,123 @@ public class Session extends Thread {
     }
 
     /**
-     * provide one per session temporary buffer for inflate z data
-     * @return common z buffer for decompress compressed data
+     * execute async disk operation
+     * operations of one transfer are executed sequentially in submit order
+     * @param t transfer owns the operation
+     * @param task special task
+     * @return future
      */
-    byte[] allocateTemporaryInflateBuffer() {
-        zBufferLastAllocatedTime = Time.currentTime();
-        if (zBuffer == null) zBuffer = new byte[Constants.BLOCK_SIZE_INT];
-        return zBuffer;
+    public Future<AsyncOperationResult> submitDiskTask(final Transfer t, Callable<AsyncOperationResult> task) {
+        return diskIO.submit(t.hash(), task, completion(t));
     }
 
     /**
-     * execute async disk operation
+     * execute async hashing operation
+     * operations of one piece are executed sequentially in submit order, different pieces are hashed in parallel
+     * @param t transfer owns the operation
+     * @param pieceIndex piece of operation
      * @param task special task
      * @return future
      */
-    public Future<AsyncOperationResult> submitDiskTask(Callable<AsyncOperationResult> task) {
-        return diskIOService.submit(task);
+    public Future<AsyncOperationResult> submitHashTask(final Transfer t, int pieceIndex, Callable<AsyncOperationResult> task) {
+        return hashIO.submit(t.hash().hashCode()*31 + pieceIndex, task, completion(t));
+    }
+
+    private Runnable completion(final Transfer t) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                diskCompletions.add(t);
+                Selector s = selector;
+                if (s != null) s.wakeup();
+            }
+        };
+    }
+
+    /**
+     * enqueue command for execution in session thread and wake up session loop
+     * @param r command
+     */
+    void postCommand(final Runnable r) {
+        commands.add(new Command(r));
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    /**
+     * execute not more than settings.commandsPerIteration commands to avoid network I/O starvation
+     * when commands remain in queue the next select will return immediately
+     */
+    void processCommands() {
+        int budget = Math.max(settings.commandsPerIteration, 1);
+        Command c = null;
+        while(budget-- > 0 && (c = commands.poll()) != null) {
+            c.task.run();
+            commandsLatency.record(System.nanoTime() - c.enqueueTime);
+        }
+
+        if (!commands.isEmpty() && selector != null) selector.wakeup();
+    }
+
+    /**
+     * thread safe
+     * @return histogram of user's commands latency from enqueue to execution completed
+     */
+    public LatencyHistogram getCommandsLatency() {
+        return commandsLatency;
+    }
+
+    /**
+     * process results of completed disk operations in session thread
+     * transfer can be posted few times, extra calls do nothing
+     */
+    void processDiskCompletions() {
+        Transfer t = diskCompletions.poll();
+        while(t != null) {
+            t.processCompletedDiskTasks();
+            t = diskCompletions.poll();
+        }
+    }
+
+    /**
+     * thread safe
+     * @return disk I/O engine counters: queue depth and latency and backpressure state
+     */
+    public synchronized DiskIOStatus getDiskIOStatus() {
+        DiskIOStatus status = diskIO.getStatus();
+        diskBackpressure.fillStatus(status, Time.currentTime());
+        return status;
+    }
+
+    /**
+     * thread safe
+     * @return hashing engine counters: queue depth and latency
+     */
+    public DiskIOStatus getHashIOStatus() {
+        return hashIO.getStatus();
+    }
+
+    /**
+     * @return write calls counters for transfer's piece manager
+     */
+    WriteStatistics getDiskWriteStatistics() {
+        return diskIO.getWriteStatistics();
+    }
+
+    /**
+     * account block submitted to disk for backpressure
+     * @param bytes block size
+     */
+    void diskWriteSubmitted(long bytes) {
+        diskBackpressure.submitted(bytes, Time.currentTime());
+    }
+
+    /**
+     * account block completed by disk, resumes stalled connections when disk queue is short enough
+     * @param bytes block size
+     */
+    void diskWriteCompleted(long bytes) {
+        diskBackpressure.completed(bytes, Time.currentTime());
     }
 
     @Override
@@ -816,7 +1033,7 @@ public class Session extends Thread {
      * guarantees all previous commands were completed
      */
     public void abort() {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 aborted = true;
@@ -828,7 +1045,7 @@ public class Session extends Thread {
      * save resume data on all transfers needs to save resume data
      */
     public void saveResumeData() {
-        commands.add(new Runnable() {
+        postCommand(new Runnable() {
             @Override
             public void run() {
                 for(final Transfer t: transfers.values()) {
@@ -18,10 +18,89 @@ public class Settings {
     public int peerConnectionTimeout = 5;
     public int sessionConnectionsLimit = 20;
     public int bufferPoolSize = 250;    // dataSize of buffer pool in blocks of 180K
+    public long bufferIdleTime = 60;    // seconds, unused cached buffers of pool are freed after it, zero means never
+
+    /**
+     * percent of buffer pool divided equally between active transfers as guaranteed reservations
+     * and percent of pool one transfer can hold at most
+     */
+    public int transferBufferReserve = 50;
+    public int transferBufferLimit = 80;
+
+    /**
+     * bytes of blocks queued to disk when peers stop receiving data and bytes when they resume
+     * zero high watermark disables backpressure
+     */
+    public long diskQueueHighWatermark = 16*1024*1024;
+    public long diskQueueLowWatermark = 8*1024*1024;
+
+    /**
+     * assemble whole piece in pool buffers and verify it before write, saves disk writes of corrupted pieces
+     * pieces are written block by block when pool has not enough buffers for transfer
+     */
+    public boolean verifyPieceInMemory = false;
+
+    /**
+     * ignore hashing states of partial pieces in resume data and read all downloaded blocks from file on restore
+     */
+    public boolean verifyResumeData = false;
     public int maxConnectionsPerSecond = 10;    // for testing purposes
     public int compressionVersion = 0;  // use 1 for activate compression
     public int serverSearchTimeout = 15;    // seconds
 
+    /**
+     * count of disk I/O worker threads, operations of one transfer always executed by the same thread
+     */
+    public int diskIOThreads = 1;
+
+    /**
+     * count of hashing threads, blocks of one piece are always hashed by the same thread
+     * pieces of all transfers and pieces of force recheck are hashed in parallel
+     */
+    public int hashThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * max count of user's commands executed in one session loop iteration
+     */
+    public int commandsPerIteration = 64;
+
+    /**
+     * count of simultaneously uploading clients
+     */
+    public int uploadSlots = 3;
+
+    /**
+     * bytes uploaded to client before slot will be given to next waiting client
+     */
+    public long uploadSlotQuota = Constants.PIECE_SIZE;
+
+    /**
+     * max count of clients in upload waiting queue
+     */
+    public int uploadQueueSize = 1000;
+
+    /**
+     * bandwidth limits in bytes per second for session, each transfer and each peer connection
+     * zero means unlimited
+     */
+    public long downloadRateLimit = 0;
+    public long uploadRateLimit = 0;
+    public long transferDownloadRateLimit = 0;
+    public long transferUploadRateLimit = 0;
+    public long peerDownloadRateLimit = 0;
+    public long peerUploadRateLimit = 0;
+
+    /**
+     * upper bound of blocks requested from one peer without waiting answer
+     * actual depth is adapted to peer's download rate and round trip time
+     */
+    public int maxRequestQueueSize = 16;
+
+    /**
+     * max bytes of queued packets serialized and sent to socket by one gathering write
+     */
+    public int maxWriteCoalesceSize = 16*1024;
+
     /**
      * send ping message to server every serverPingTimeout seconds
      */
@@ -45,10 +124,31 @@ public class Settings {
                 ", peerConnectionTimeout=" + peerConnectionTimeout +
                 ", sessionConnectionsLimit=" + sessionConnectionsLimit +
                 ", bufferPoolSize=" + bufferPoolSize +
+                ", bufferIdleTime=" + bufferIdleTime +
+                ", transferBufferReserve=" + transferBufferReserve +
+                ", transferBufferLimit=" + transferBufferLimit +
+                ", diskQueueHighWatermark=" + diskQueueHighWatermark +
+                ", diskQueueLowWatermark=" + diskQueueLowWatermark +
+                ", verifyPieceInMemory=" + verifyPieceInMemory +
+                ", verifyResumeData=" + verifyResumeData +
                 ", maxConnectionsPerSecond=" + maxConnectionsPerSecond +
                 ", compressionVersion=" + compressionVersion +
                 ", serverSearchTimeout=" + serverSearchTimeout +
                 ", serverPingTimeout=" + serverPingTimeout +
+                ", diskIOThreads=" + diskIOThreads +
+                ", hashThreads=" + hashThreads +
+                ", commandsPerIteration=" + commandsPerIteration +
+                ", uploadSlots=" + uploadSlots +
+                ", uploadSlotQuota=" + uploadSlotQuota +
+                ", uploadQueueSize=" + uploadQueueSize +
+                ", downloadRateLimit=" + downloadRateLimit +
+                ", uploadRateLimit=" + uploadRateLimit +
+                ", transferDownloadRateLimit=" + transferDownloadRateLimit +
+                ", transferUploadRateLimit=" + transferUploadRateLimit +
+                ", peerDownloadRateLimit=" + peerDownloadRateLimit +
+                ", peerUploadRateLimit=" + peerUploadRateLimit +
+                ", maxRequestQueueSize=" + maxRequestQueueSize +
+                ", maxWriteCoalesceSize=" + maxWriteCoalesceSize +
                 '}';
     }
 }
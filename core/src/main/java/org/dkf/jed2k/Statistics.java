@@ -18,6 +18,12 @@ public class Statistics {
 
 	StatChannel channels[] = new StatChannel[ChannelsNames.CHANNELS_COUNT.value];
 
+	/**
+	 * count of socket write calls and count of packets sent by them
+	 */
+	private long writeCalls = 0;
+	private long packetsSent = 0;
+
 	public Statistics() {
 		for(int i = 0; i < channels.length; ++i) channels[i] = new StatChannel();
 	}
@@ -27,6 +33,8 @@ public class Statistics {
 		for (int i = 0; i < ChannelsNames.CHANNELS_COUNT.value; ++i) {
 			channels[i].add(stat.channels[i]);
 		}
+		writeCalls += stat.writeCalls;
+		packetsSent += stat.packetsSent;
 		return this;
 	}
 
@@ -40,6 +48,8 @@ public class Statistics {
 		for(final StatChannel sc: channels) {
 			sc.clear();
 		}
+		writeCalls = 0;
+		packetsSent = 0;
 	}
 
 	public void receiveBytes(long protocolBytes, long payloadBytes) {
@@ -52,6 +62,30 @@ public class Statistics {
 		channels[ChannelsNames.UPLOAD_PAYLOAD.value].add(payloadBytes);
 	}
 
+	public void writeCall() {
+		++writeCalls;
+	}
+
+	public void sendPackets(long packets) {
+		packetsSent += packets;
+	}
+
+	public long writeCalls() {
+		return writeCalls;
+	}
+
+	public long packetsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 *
+	 * @return average count of socket write calls per sent packet including payload writes
+	 */
+	public double writeCallsPerPacket() {
+		return (packetsSent != 0)?(double)writeCalls/packetsSent:0;
+	}
+
 	/**
 	 *
 	 * @return payload bytes count were received
@@ -0,0 +1,63 @@
+package org.dkf.jed2k;
+
+/**
+ * token bucket for bandwidth limitation
+ * refilled lazily on each access using session time, burst size is one second of rate
+ * tokens can go below zero when consumed more than available, debt will be paid by next refills
+ * not thread safe, used only from session thread
+ */
+public class TokenBucket {
+    /**
+     * bytes per second, zero means unlimited
+     */
+    private long rate = 0;
+
+    /**
+     * tokens in thousandths of byte to avoid loss of fractions on small time intervals
+     */
+    private long milliTokens = 0;
+    private long lastUpdate = 0;
+
+    public void setRate(long rate) {
+        assert rate >= 0;
+        if (this.rate != rate) {
+            this.rate = rate;
+            milliTokens = Math.min(milliTokens, rate*1000);
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isLimited() {
+        return rate != 0;
+    }
+
+    private void refill(long now) {
+        if (now > lastUpdate) {
+            milliTokens = Math.min(milliTokens + rate*(now - lastUpdate), rate*1000);
+            lastUpdate = now;
+        }
+    }
+
+    /**
+     * @param now current session time in milliseconds
+     * @return bytes available now, Long.MAX_VALUE for unlimited bucket
+     */
+    public long available(long now) {
+        if (!isLimited()) return Long.MAX_VALUE;
+        refill(now);
+        return milliTokens / 1000;
+    }
+
+    /**
+     * @param bytes transferred bytes
+     * @param now current session time in milliseconds
+     */
+    public void consume(long bytes, long now) {
+        if (!isLimited()) return;
+        refill(now);
+        milliTokens -= bytes*1000;
+    }
+}
@@ -5,15 +5,20 @@ import org.dkf.jed2k.data.PieceBlock;
 import org.dkf.jed2k.exception.BaseErrorCode;
 import org.dkf.jed2k.exception.ErrorCode;
 import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.AichTree;
+import org.dkf.jed2k.protocol.AichHash;
+import org.dkf.jed2k.protocol.AichRecoveryData;
 import org.dkf.jed2k.protocol.BitField;
 import org.dkf.jed2k.protocol.Endpoint;
 import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PieceHashState;
 import org.dkf.jed2k.protocol.TransferResumeData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -21,6 +26,17 @@ import java.util.concurrent.Future;
 public class Transfer {
     public static long INVALID_ETA = -1;
 
+    /**
+     * AICH master hash is trusted when it is reported by this count of peers and by this percent of all reports
+     */
+    static final int AICH_TRUST_VOTES = 2;
+    static final int AICH_TRUST_PERCENT = 92;
+
+    /**
+     * time to wait AICH recovery data before piece with wrong hash is downloaded again completely
+     */
+    static final long AICH_REQUEST_TIMEOUT = Time.seconds(30);
+
     private Logger log = LoggerFactory.getLogger(Transfer.class);
 
     /**
@@ -60,6 +76,39 @@ public class Transfer {
 
     private boolean pause = false;
     private boolean abort = false;
+
+    /**
+     * force recheck was requested and waits for completion of disk operations
+     * or pieces are being checked, count of pieces not checked yet
+     */
+    private boolean recheckPending = false;
+    private boolean checking = false;
+    private int piecesToCheck = 0;
+
+    /**
+     * trusted AICH master hash of file, null when peers didn't agree on it yet
+     */
+    private AichHash aichHash = null;
+    private HashMap<AichHash, Integer> aichHashVotes = new HashMap<AichHash, Integer>();
+
+    /**
+     * pieces with wrong hash waiting for AICH recovery data, value is session time of request timeout
+     * and pieces under AICH recovery: corrupted blocks are searched or downloaded again
+     */
+    private HashMap<Integer, Long> aichRequests = new HashMap<Integer, Long>();
+    private HashSet<Integer> aichPieces = new HashSet<Integer>();
+
+    /**
+     * count of session's pool buffers held by this transfer
+     */
+    int poolBuffers = 0;
+
+    /**
+     * pieces assembled in memory before verification and write, buffers are indexed by block
+     * and pieces which have blocks passed to piece manager by per block write path
+     */
+    private HashMap<Integer, ByteBuffer[]> memoryPieces = new HashMap<Integer, ByteBuffer[]>();
+    private HashSet<Integer> diskPieces = new HashSet<Integer>();
     private HashSet<PeerConnection> connections = new HashSet<PeerConnection>();
 
     /**
@@ -82,6 +131,21 @@ public class Transfer {
      */
     LinkedList<Future<AsyncOperationResult> > aioFutures = new LinkedList<Future<AsyncOperationResult>>();
 
+    /**
+     * bytes of blocks submitted to disk by this transfer and not completed yet, part of session's disk backpressure
+     */
+    private long diskQueuedBytes = 0;
+
+    /**
+     * pool buffers of received blocks passed to disk operations and not returned to pool yet
+     */
+    private final Set<ByteBuffer> diskBuffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    /**
+     * operations dropped by abort which are still executed, buffers can't be returned until all of them finished
+     */
+    private final LinkedList<Future<AsyncOperationResult>> abortedFutures = new LinkedList<Future<AsyncOperationResult>>();
+
     /**
      * hashes of file's pieces
      */
@@ -98,6 +162,9 @@ public class Transfer {
 
     private SpeedMonitor speedMon = new SpeedMonitor(30);
 
+    private UploadScheduler.Priority uploadPriority = UploadScheduler.Priority.NORMAL;
+    private final TokenBucket[] buckets = { new TokenBucket(), new TokenBucket() };
+
     public Transfer(Session s, final AddTransferParams atp) throws JED2KException {
         assert(s != null);
         this.hash = atp.getHash();
@@ -114,7 +181,7 @@ public class Transfer {
         // create piece picker always now
         picker = new PiecePicker(numPieces, blocksInLastPiece);
         policy = new Policy(this);
-        pm = new PieceManager(atp.getHandler(), numPieces, blocksInLastPiece);
+        pm = new PieceManager(atp.getHandler(), numPieces, blocksInLastPiece, s.getDiskWriteStatistics());
 
         if (atp.resumeData.haveData()) {
             restore(atp.resumeData.getData());
@@ -145,7 +212,8 @@ public class Transfer {
     /**
      * restore transfer's state using saved resume data
      * set have pieces directly into picker
-     * restore partial pieces using step by step: allocate buffer -> async restore -> precess result
+     * blocks covered by saved hashing state of piece are marked as finished without reading
+     * restore other partial pieces using step by step: allocate buffer -> async restore -> precess result
      * @param rd resume data
      */
     void restore(final TransferResumeData rd) {
@@ -155,9 +223,30 @@ public class Transfer {
             if (rd.pieces.getBit(i)) picker.restoreHave(i);
         }
 
+        Set<PieceBlock> downloaded = new HashSet<PieceBlock>();
+        for(final PieceBlock b: rd.downloadedBlocks) downloaded.add(b);
+        Map<Integer, Integer> hashedBlocks = new HashMap<Integer, Integer>();
+
+        if (rd.hashStates.size() != 0 && !session.settings.verifyResumeData) {
+            for(final PieceHashState hs: rd.hashStates) {
+                if (isValidHashState(hs, downloaded) && !hashedBlocks.containsKey(hs.pieceIndex.intValue())) {
+                    pm.restoreHashState(hs);
+                    hashedBlocks.put(hs.pieceIndex.intValue(), hs.blocks.intValue());
+                    // piece hashing continues from state, so the rest of piece goes by per block path
+                    diskPieces.add(hs.pieceIndex.intValue());
+                }
+            }
+        }
+
         for(final PieceBlock b: rd.downloadedBlocks) {
             picker.downloadPiece(b.pieceIndex);
-            ByteBuffer buffer = session.allocatePoolBuffer();
+            Integer hashed = hashedBlocks.get(b.pieceIndex);
+            if (hashed != null && b.pieceBlock < hashed) {
+                picker.markAsFinished(b);
+                continue;
+            }
+
+            ByteBuffer buffer = session.allocatePoolBuffer(this);
             if (buffer == null) {
                 log.warn("{} have no enough buffers to restore transfer {} ",
                         session.bufferPool, b);
@@ -170,7 +259,26 @@ public class Transfer {
             //aioFutures.addLast(session.submitDiskTask(new AsyncRestore(this, b, size, buffer)));
         }
 
-        if (isFinished()) setState(TransferStatus.TransferState.FINISHED);
+        if (isFinished()) {
+            setState(TransferStatus.TransferState.FINISHED);
+        } else if (lastResumeBlock == null) {
+            setState(TransferStatus.TransferState.DOWNLOADING);
+        }
+    }
+
+    /**
+     * saved hashing state can be used only for partial piece when all blocks of state are downloaded
+     */
+    private boolean isValidHashState(final PieceHashState hs, final Set<PieceBlock> downloaded) {
+        int pieceIndex = hs.pieceIndex.intValue();
+        int blocks = hs.blocks.intValue();
+        if (pieceIndex >= numPieces || picker.havePiece(pieceIndex)) return false;
+        if (blocks == 0 || blocks >= picker.blocksInPiece(pieceIndex)) return false;
+        for(int i = 0; i < blocks; ++i) {
+            if (!downloaded.contains(new PieceBlock(pieceIndex, i))) return false;
+        }
+
+        return true;
     }
 
     public Hash hash() {
@@ -211,6 +319,47 @@ public class Transfer {
         //return numPieces() - picker.numHave() == 0;
     }
 
+    /**
+     * @param pieceIndex index of piece
+     * @return true if piece was downloaded and verified
+     */
+    public boolean havePiece(int pieceIndex) {
+        return (picker == null) || picker.havePiece(pieceIndex);
+    }
+
+    /**
+     * transfer shares pieces we already have with other peers
+     * @return true if transfer has at least one verified piece
+     */
+    public boolean canUpload() {
+        return !isAborted() && numHave() > 0;
+    }
+
+    /**
+     * @param direction download or upload
+     * @return transfer level bandwidth bucket with rate from current session settings
+     */
+    TokenBucket getBucket(int direction) {
+        buckets[direction].setRate((direction == BandwidthManager.DOWNLOAD)?session.settings.transferDownloadRateLimit:session.settings.transferUploadRateLimit);
+        return buckets[direction];
+    }
+
+    public UploadScheduler.Priority getUploadPriority() {
+        return uploadPriority;
+    }
+
+    void setUploadPriority(final UploadScheduler.Priority priority) {
+        uploadPriority = priority;
+    }
+
+    /**
+     * @return new read only channel for uploading data, caller must close it
+     * @throws JED2KException
+     */
+    FileChannel openReadChannel() throws JED2KException {
+        return pm.openReadChannel();
+    }
+
     void weHave(int pieceIndex) {
         assert(picker != null);
         picker.weHave(pieceIndex);
@@ -224,8 +373,19 @@ public class Transfer {
         return abort;
     }
 
+    /**
+     * @return true if force recheck requested or in progress
+     */
+    final boolean isChecking() {
+        return checking || recheckPending;
+    }
+
+    final int numConnections() {
+        return connections.size();
+    }
+
     final boolean wantMorePeers() {
-        return !isPaused() && !isFinished() && policy.numConnectCandidates() > 0;
+        return !isPaused() && !isChecking() && !isFinished() && policy.numConnectCandidates() > 0;
     }
 
     void addStats(Statistics s) {
@@ -257,6 +417,7 @@ public class Transfer {
     void attachPeer(PeerConnection c) throws JED2KException {
         if (isPaused()) throw new JED2KException(ErrorCode.TRANSFER_PAUSED);
         if (isAborted()) throw new JED2KException(ErrorCode.TRANSFER_ABORTED);
+        if (isChecking()) throw new JED2KException(ErrorCode.TRANSFER_CHECKING);
         if (isFinished()) throw new JED2KException(ErrorCode.TRANSFER_FINISHED);
         policy.newConnection(c);
         connections.add(c);
@@ -284,7 +445,7 @@ public class Transfer {
     }
 
 	void secondTick(final Statistics accumulator, long tickIntervalMS) {
-        if (!isPaused() && !isAborted() && !isFinished() && connections.isEmpty()) {
+        if (!isPaused() && !isAborted() && !isChecking() && !isFinished() && connections.isEmpty()) {
 
             if (nextTimeForSourcesRequest < Time.currentTime()) {
                 log.debug("[transfer] request peers on server {}", hash);
@@ -312,6 +473,29 @@ public class Transfer {
 
         speedMon.addSample(stat.downloadRate());
 
+        // recovery data wasn't received in time, download whole piece again
+        Iterator<Map.Entry<Integer, Long>> aichItr = aichRequests.entrySet().iterator();
+        while(aichItr.hasNext()) {
+            Map.Entry<Integer, Long> e = aichItr.next();
+            if (e.getValue() < Time.currentTime()) {
+                log.debug("{} AICH request of piece {} timed out", hash, e.getKey());
+                aichItr.remove();
+                picker.restorePiece(e.getKey());
+                needSaveResumeData = true;
+            }
+        }
+
+        // usually completions are processed immediately by session, here just for the case of missed wakeup
+        processCompletedDiskTasks();
+    }
+
+    /**
+     * finish completed async disk operations in submit order
+     * stops on first incomplete operation since operations of transfer are executed sequentially
+     */
+    void processCompletedDiskTasks() {
+        releaseAbortedBuffers();
+
         while(!aioFutures.isEmpty()) {
             Future<AsyncOperationResult> res = aioFutures.peek();
             if (!res.isDone()) break;
@@ -321,12 +505,20 @@ public class Transfer {
             } catch (InterruptedException e) {
                 // TODO - handle it
             } catch( ExecutionException e) {
-                // TODO - handle it
+                log.error("{} async operation failed {}", hash, e.getCause());
             }
             finally {
                 aioFutures.poll();
             }
         }
+
+        // failed operation never completes it's bytes, all bytes must be completed when no operations left
+        if (aioFutures.isEmpty() && diskQueuedBytes != 0) {
+            log.warn("{} release {} bytes of failed disk operations", hash, diskQueuedBytes);
+            diskWriteCompleted(diskQueuedBytes);
+        }
+
+        if (recheckPending && !abort && aioFutures.isEmpty()) startRecheck();
     }
 
     public Statistics statistics() {
@@ -355,18 +547,60 @@ public class Transfer {
         abort = true;
         disconnectAll(ErrorCode.TRANSFER_ABORTED);
 
-        // cancel all async operations
+        // cancel all async operations, results of operations which are running already will be dropped
         for(Future<AsyncOperationResult> f: aioFutures) {
             f.cancel(false);
         }
 
+        abortedFutures.addAll(aioFutures);
         aioFutures.clear();
-        aioFutures.addLast(session.submitDiskTask(new AsyncRelease(this)));
+
+        // results of dropped operations will not be processed, so their bytes must not stall other transfers
+        diskWriteCompleted(diskQueuedBytes);
+
+        for(final ByteBuffer[] buffers: memoryPieces.values()) {
+            for(final ByteBuffer b: buffers) {
+                if (b != null) releasePoolBuffer(b);
+            }
+        }
+
+        memoryPieces.clear();
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncRelease(this)));
+        releaseAbortedBuffers();
+    }
+
+    /**
+     * return buffers of operations dropped by abort to pool when all of these operations are finished
+     * cancelled operations never use buffers, other ones could use buffers of blocks they were combined
+     * or hashed with, so buffers are returned all together including buffers held by pieces hashing state
+     */
+    private void releaseAbortedBuffers() {
+        if (!abort) return;
+
+        Iterator<Future<AsyncOperationResult>> itr = abortedFutures.iterator();
+        while(itr.hasNext()) {
+            if (itr.next().isDone()) itr.remove();
+        }
+
+        if (!abortedFutures.isEmpty() || diskBuffers.isEmpty()) return;
+        log.debug("{} return {} buffers of aborted operations", hash, diskBuffers.size());
+        ByteBuffer[] buffers = diskBuffers.toArray(new ByteBuffer[diskBuffers.size()]);
+        for(final ByteBuffer b: buffers) releasePoolBuffer(b);
+    }
+
+    /**
+     * return buffer of received block to pool
+     * @param buffer pool buffer
+     */
+    private void releasePoolBuffer(final ByteBuffer buffer) {
+        diskBuffers.remove(buffer);
+        session.deallocatePoolBuffer(this, buffer);
     }
 
     void pause() {
         pause = true;
         disconnectAll(ErrorCode.TRANSFER_PAUSED);
+        spillMemoryPieces();
         needSaveResumeData = true;
         session.pushAlert(new TransferPausedAlert(hash));
     }
@@ -378,7 +612,7 @@ public class Transfer {
     }
 
     void deleteFile() {
-        aioFutures.addLast(session.submitDiskTask(new AsyncDeleteFile(this)));
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncDeleteFile(this)));
     }
 
     void setHashSet(final Hash hash, final AbstractCollection<Hash> hs) {
@@ -411,7 +645,7 @@ public class Transfer {
         // policy will know transfer is finished automatically via call isFinished on transfer
         // async release file
         setState(TransferStatus.TransferState.FINISHED);
-        aioFutures.addLast(session.submitDiskTask(new AsyncRelease(this)));
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncRelease(this)));
         needSaveResumeData = true;
         session.pushAlert(new TransferFinishedAlert(hash()));
     }
@@ -419,11 +653,12 @@ public class Transfer {
     void onBlockWriteCompleted(final PieceBlock b, final LinkedList<ByteBuffer> buffers, final BaseErrorCode ec) {
         log.debug("block {} write completed: {} free buffers: {}",
                 b, ec, (buffers!=null)?buffers.size():0);
+        diskWriteCompleted(b.size(size));
 
         // return buffers to pool
         if (buffers != null) {
             for (ByteBuffer buffer : buffers) {
-                session.bufferPool.deallocate(buffer, Time.currentTime());
+                releasePoolBuffer(buffer);
             }
 
             buffers.clear();
@@ -433,7 +668,11 @@ public class Transfer {
             picker.markAsFinished(b);
             needSaveResumeData = true;
         } else {
-            picker.abortDownload(b, null);  // state of block must be writing!
+            // block was hashed independently of write, so whole piece must be downloaded again
+            picker.restorePiece(b.pieceIndex);
+            diskPieces.remove(b.pieceIndex);
+            aichPieces.remove(b.pieceIndex);
+            aioFutures.addLast(session.submitHashTask(this, b.pieceIndex, new AsyncReleasePiece(this, b.pieceIndex)));
             session.pushAlert(new TransferDiskIOErrorAlert(hash, ec));
             pause();
         }
@@ -444,13 +683,33 @@ public class Transfer {
         }
     }
 
+    /**
+     * return buffers of hashed blocks to pool
+     * @param buffers buffers of blocks hashed by piece manager
+     */
+    void onBlockHashCompleted(final LinkedList<ByteBuffer> buffers) {
+        if (buffers == null) return;
+        for(final ByteBuffer buffer: buffers) {
+            releasePoolBuffer(buffer);
+        }
+
+        buffers.clear();
+    }
+
     void onPieceHashCompleted(final int pieceIndex, final Hash hash) {
         assert(hash != null);
+        diskPieces.remove(pieceIndex);
+
+        // piece was restored due to write error after hash was submitted
+        if (!picker.isPieceFinished(pieceIndex)) {
+            log.debug("{} ignore hash of restored piece {}", this.hash, pieceIndex);
+            return;
+        }
 
         if (hash != null && (hashSet.get(pieceIndex).compareTo(hash) != 0)) {
-            log.error("restore piece due to expected hash {} is not equal with calculated {}",
-                    hashSet.get(pieceIndex), hash);
-            picker.restorePiece(pieceIndex);
+            log.error("piece {} expected hash {} is not equal with calculated {}",
+                    pieceIndex, hashSet.get(pieceIndex), hash);
+            if (!requestAichRecovery(pieceIndex)) picker.restorePiece(pieceIndex);
         }
         else {
             piecePassed(pieceIndex);
@@ -459,6 +718,349 @@ public class Transfer {
         needSaveResumeData = true;
     }
 
+    /**
+     * write received block to disk
+     * when verify in memory mode is on and pool has enough buffers for transfer whole piece is assembled in memory,
+     * verified and written by one operation, otherwise block is written immediately and piece is hashed after write
+     * @param b block in writing state
+     * @param buffer block data
+     * @param wasFinished piece was finished before this block
+     */
+    void writeBlock(final PieceBlock b, final ByteBuffer buffer, boolean wasFinished) {
+        diskBuffers.add(buffer);
+
+        if (aichPieces.contains(b.pieceIndex)) {
+            // piece under AICH recovery has no hashing state, it is hashed from file after write of all blocks
+            diskPieces.add(b.pieceIndex);
+            diskWriteSubmitted(b.size(size));
+            aioFutures.addLast(session.submitDiskTask(this, new AsyncWrite(b, buffer, this, true)));
+            if (picker.isPieceFinished(b.pieceIndex) && !wasFinished) {
+                aioFutures.addLast(session.submitDiskTask(this, new AsyncCheckPiece(this, b.pieceIndex, size)));
+            }
+            return;
+        }
+
+        ByteBuffer[] piece = memoryPieces.get(b.pieceIndex);
+        int blocks = picker.blocksInPiece(b.pieceIndex);
+
+        if (piece == null
+                && session.settings.verifyPieceInMemory
+                && !diskPieces.contains(b.pieceIndex)
+                && b.pieceIndex < hashSet.size()
+                && session.availablePoolBuffers(this) >= blocks) {
+            piece = new ByteBuffer[blocks];
+            memoryPieces.put(b.pieceIndex, piece);
+        }
+
+        if (piece == null) {
+            diskPieces.add(b.pieceIndex);
+            asyncWrite(b, buffer);
+            if (picker.isPieceFinished(b.pieceIndex) && !wasFinished) asyncHash(b.pieceIndex);
+            return;
+        }
+
+        assert piece[b.pieceBlock] == null;
+        piece[b.pieceBlock] = buffer;
+
+        if (picker.isPieceFinished(b.pieceIndex)) {
+            memoryPieces.remove(b.pieceIndex);
+            long bytes = 0;
+            for(final ByteBuffer bb: piece) bytes += bb.remaining();
+            diskWriteSubmitted(bytes);
+            aioFutures.addLast(session.submitHashTask(this, b.pieceIndex, new AsyncHashPiece(this, b.pieceIndex, piece)));
+        } else if (session.availablePoolBuffers(this) == 0) {
+            // pool is under pressure, buffers of this piece can't wait for the rest of blocks
+            spillMemoryPiece(b.pieceIndex);
+        }
+    }
+
+    /**
+     * submit task to executor service to async write block to disk
+     * block is queued in piece manager right now to be combined with adjacent blocks already queued
+     * and at the same time is hashed by hashing thread of it's piece, buffer is returned to pool by hash result
+     * @param b completed block
+     * @param buffer data buffer
+     */
+    private void asyncWrite(final PieceBlock b, final ByteBuffer buffer) {
+        diskWriteSubmitted(b.size(size));
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncWrite(b, buffer, this)));
+        aioFutures.addLast(session.submitHashTask(this, b.pieceIndex, new AsyncHashBlock(this, b, buffer)));
+    }
+
+    /**
+     * submit hashing task to executor, it will be executed after hashing of all blocks of piece
+     * @param pieceIndex index of piece which hash should be calculated
+     */
+    private void asyncHash(int pieceIndex) {
+        aioFutures.addLast(session.submitHashTask(this, pieceIndex, new AsyncHash(this, pieceIndex)));
+    }
+
+    /**
+     * switch partially assembled piece to per block write path
+     * @param pieceIndex piece index
+     */
+    private void spillMemoryPiece(int pieceIndex) {
+        ByteBuffer[] piece = memoryPieces.remove(pieceIndex);
+        if (piece == null) return;
+        log.debug("{} spill piece {} to disk", hash, pieceIndex);
+        diskPieces.add(pieceIndex);
+        for(int i = 0; i < piece.length; ++i) {
+            if (piece[i] != null) asyncWrite(new PieceBlock(pieceIndex, i), piece[i]);
+        }
+    }
+
+    private void spillMemoryPieces() {
+        Integer[] pieces = memoryPieces.keySet().toArray(new Integer[memoryPieces.size()]);
+        for(final Integer p: pieces) spillMemoryPiece(p);
+    }
+
+    /**
+     * piece verified in memory was written or verification failed
+     * @param pieceIndex piece index
+     * @param buffers blocks buffers
+     * @param passed hash of piece is equal to expected one
+     * @param ec result of write
+     */
+    void onPieceWriteCompleted(final int pieceIndex, final ByteBuffer[] buffers, boolean passed, final BaseErrorCode ec) {
+        long bytes = 0;
+        for(final ByteBuffer b: buffers) {
+            bytes += b.limit();
+            releasePoolBuffer(b);
+        }
+
+        diskWriteCompleted(bytes);
+
+        if (ec != ErrorCode.NO_ERROR) {
+            for(int i = 0; i < buffers.length; ++i) picker.abortDownload(new PieceBlock(pieceIndex, i), null);
+            session.pushAlert(new TransferDiskIOErrorAlert(hash, ec));
+            pause();
+            return;
+        }
+
+        for(int i = 0; i < buffers.length; ++i) picker.markAsFinished(new PieceBlock(pieceIndex, i));
+
+        if (passed) {
+            piecePassed(pieceIndex);
+        } else if (!requestAichRecovery(pieceIndex)) {
+            log.error("restore piece {} verified in memory due to hash mismatch", pieceIndex);
+            picker.restorePiece(pieceIndex);
+        }
+
+        needSaveResumeData = true;
+    }
+
+    /**
+     * piece assembled in memory was hashed, write it when hash is correct
+     * @param pieceIndex piece index
+     * @param buffers blocks buffers
+     * @param hash hash of buffers
+     */
+    void onMemoryPieceHashCompleted(final int pieceIndex, final ByteBuffer[] buffers, final Hash hash) {
+        if (hashSet.get(pieceIndex).compareTo(hash) == 0) {
+            aioFutures.addLast(session.submitDiskTask(this, new AsyncWritePiece(this, pieceIndex, buffers)));
+        } else if (aichSource(pieceIndex) != null) {
+            // corrupted blocks can be found by AICH in file only
+            aioFutures.addLast(session.submitDiskTask(this, new AsyncWritePiece(this, pieceIndex, buffers, false)));
+        } else {
+            onPieceWriteCompleted(pieceIndex, buffers, false, ErrorCode.NO_ERROR);
+        }
+    }
+
+    /**
+     * re-verify existing file: hash all pieces from file in parallel and rebuild picker state by result
+     * peers are disconnected and partially downloaded pieces are dropped, check starts after
+     * completion of submitted disk operations
+     */
+    void forceRecheck() {
+        if (isAborted() || isChecking()) return;
+        if (hashSet.size() < numPieces) {
+            log.warn("{} can't recheck without hash set, have {} hashes of {}", hash, hashSet.size(), numPieces);
+            return;
+        }
+
+        log.debug("{} force recheck", hash);
+        recheckPending = true;
+        disconnectAll(ErrorCode.TRANSFER_CHECKING);
+        spillMemoryPieces();
+        processCompletedDiskTasks();
+    }
+
+    private void startRecheck() {
+        assert aioFutures.isEmpty();
+        recheckPending = false;
+        checking = true;
+
+        // drop hashing state of partial pieces and return their buffers
+        for(final ByteBuffer buffer: pm.releasePieces()) {
+            releasePoolBuffer(buffer);
+        }
+
+        diskPieces.clear();
+        aichRequests.clear();
+        aichPieces.clear();
+        lastResumeBlock = null;
+        picker = new PiecePicker(numPieces, picker.blocksInPiece(numPieces - 1));
+        piecesToCheck = numPieces;
+
+        for(int i = 0; i < numPieces; ++i) {
+            aioFutures.addLast(session.submitHashTask(this, i, new AsyncCheckPiece(this, i, size)));
+        }
+    }
+
+    /**
+     * piece of force recheck was hashed
+     * @param pieceIndex piece index
+     * @param hash hash of data in file, null if file has no whole piece
+     * @param ec result of read
+     */
+    void onPieceCheckCompleted(int pieceIndex, final Hash hash, final BaseErrorCode ec) {
+        if (!checking) {
+            onRecoveredPieceCheckCompleted(pieceIndex, hash, ec);
+            return;
+        }
+
+        if (ec == ErrorCode.NO_ERROR && hash != null && hashSet.get(pieceIndex).compareTo(hash) == 0) {
+            picker.restoreHave(pieceIndex);
+        }
+
+        if (--piecesToCheck == 0) {
+            checking = false;
+            setState(isFinished()?TransferStatus.TransferState.FINISHED:TransferStatus.TransferState.DOWNLOADING);
+            needSaveResumeData = true;
+            log.debug("{} recheck finished, have {} of {}", this.hash, numHave(), numPieces);
+            session.pushAlert(new TransferCheckedAlert(this.hash, numHave()));
+        }
+    }
+
+    /**
+     * @return trusted AICH master hash or null
+     */
+    final AichHash getAichHash() {
+        return aichHash;
+    }
+
+    /**
+     * remote peer reported AICH master hash of file, hash becomes trusted when most of peers agree on it
+     * @param h master hash
+     */
+    void addAichHashVote(final AichHash h) {
+        Integer votes = aichHashVotes.get(h);
+        aichHashVotes.put(new AichHash(h), (votes == null)?1:votes + 1);
+
+        int total = 0;
+        for(final Integer v: aichHashVotes.values()) total += v;
+
+        AichHash trusted = null;
+        for(final Map.Entry<AichHash, Integer> e: aichHashVotes.entrySet()) {
+            if (e.getValue() >= AICH_TRUST_VOTES && e.getValue()*100 >= total*AICH_TRUST_PERCENT) trusted = e.getKey();
+        }
+
+        if (trusted != null && !trusted.equals(aichHash)) log.debug("{} AICH master hash {} trusted", hash, trusted);
+        aichHash = trusted;
+    }
+
+    /**
+     * @param pieceIndex piece index
+     * @return connected peer which can send AICH recovery data of piece or null
+     */
+    private PeerConnection aichSource(int pieceIndex) {
+        // piece of one AICH block has nothing to recover by blocks
+        if (aichHash == null || size - pieceIndex*Constants.PIECE_SIZE <= AichTree.BLOCK_SIZE) return null;
+        for(final PeerConnection c: connections) {
+            if (c.canRecoverPiece(pieceIndex)) return c;
+        }
+
+        return null;
+    }
+
+    /**
+     * request AICH recovery data of written piece with wrong hash, blocks of piece stay finished until answer
+     * @param pieceIndex piece index
+     * @return false when no peer can send recovery data
+     */
+    private boolean requestAichRecovery(int pieceIndex) {
+        PeerConnection c = aichSource(pieceIndex);
+        if (c == null) return false;
+        log.debug("{} request AICH recovery data of piece {} from {}", hash, pieceIndex, c.getEndpoint());
+        c.requestAichRecovery(pieceIndex, aichHash);
+        aichRequests.put(pieceIndex, Time.currentTime() + AICH_REQUEST_TIMEOUT);
+        return true;
+    }
+
+    /**
+     * remote peer has no AICH recovery data of piece, download whole piece again
+     * @param pieceIndex piece index
+     */
+    void onAichRecoveryFailed(int pieceIndex) {
+        if (aichRequests.remove(pieceIndex) == null) return;
+        log.debug("{} no AICH recovery data of piece {}", hash, pieceIndex);
+        picker.restorePiece(pieceIndex);
+        needSaveResumeData = true;
+    }
+
+    /**
+     * verify recovery data against trusted master hash and check blocks of piece in file by it
+     * @param pieceIndex piece index
+     * @param masterHash master hash of recovery data
+     * @param data recovery data
+     */
+    void onAichRecoveryData(int pieceIndex, final AichHash masterHash, final AichRecoveryData data) {
+        if (!aichRequests.containsKey(pieceIndex)) return;
+        List<AichHash> hashes = masterHash.equals(aichHash)?AichTree.verifyRecoveryData(size, pieceIndex, masterHash, data):null;
+
+        if (hashes == null) {
+            log.warn("{} AICH recovery data of piece {} doesn't match master hash", hash, pieceIndex);
+            onAichRecoveryFailed(pieceIndex);
+            return;
+        }
+
+        aichRequests.remove(pieceIndex);
+        aichPieces.add(pieceIndex);
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncAichCheck(this, pieceIndex, size, hashes)));
+    }
+
+    /**
+     * corrupted blocks of piece were found, download them again
+     * @param pieceIndex piece index
+     * @param blocks sorted indexes of corrupted blocks
+     * @param ec result of read
+     */
+    void onAichCheckCompleted(int pieceIndex, final List<Integer> blocks, final BaseErrorCode ec) {
+        if (!aichPieces.contains(pieceIndex)) return;
+
+        if (ec == ErrorCode.NO_ERROR && !blocks.isEmpty()) {
+            log.debug("{} AICH found {} corrupted blocks of piece {}", hash, blocks.size(), pieceIndex);
+            for(final Integer b: blocks) picker.restoreBlock(new PieceBlock(pieceIndex, b));
+        } else {
+            log.debug("{} AICH check of piece {} failed {}", hash, pieceIndex, ec);
+            aichPieces.remove(pieceIndex);
+            picker.restorePiece(pieceIndex);
+        }
+
+        needSaveResumeData = true;
+    }
+
+    /**
+     * piece recovered by AICH was hashed from file
+     * @param pieceIndex piece index
+     * @param hash hash of data in file, null if file has no whole piece
+     * @param ec result of read
+     */
+    private void onRecoveredPieceCheckCompleted(int pieceIndex, final Hash hash, final BaseErrorCode ec) {
+        diskPieces.remove(pieceIndex);
+        if (!aichPieces.remove(pieceIndex)) return;
+
+        if (ec == ErrorCode.NO_ERROR && hash != null && hashSet.get(pieceIndex).compareTo(hash) == 0) {
+            log.debug("{} piece {} recovered by AICH", this.hash, pieceIndex);
+            piecePassed(pieceIndex);
+        } else {
+            log.error("restore piece {} recovered by AICH due to hash mismatch", pieceIndex);
+            picker.restorePiece(pieceIndex);
+        }
+
+        needSaveResumeData = true;
+    }
+
     void onReleaseFile(final BaseErrorCode c) {
         log.debug("release file completed {}", c);
     }
@@ -481,9 +1083,14 @@ public class Transfer {
 
             List<DownloadingPiece> downloadingQueue = picker.getDownloadingQueue();
             for(final DownloadingPiece dp: downloadingQueue) {
+                int writtenBlocks = 0;
                 for(int j = 0; j < dp.getBlocksCount(); ++j) {
                     if (dp.isFinished(j)) trd.downloadedBlocks.add(new PieceBlock(dp.pieceIndex, j));
+                    if (dp.isFinished(j) && writtenBlocks == j) ++writtenBlocks;
                 }
+
+                PieceHashState hs = pm.hashState(dp.pieceIndex, writtenBlocks);
+                if (hs != null) trd.hashStates.add(hs);
             }
         }
 
@@ -538,12 +1145,15 @@ public class Transfer {
         getBytesDone(status);
 
         status.paused = isPaused();
+        status.checking = isChecking();
         status.downloadPayload = stat.totalPayloadDownload();
         status.downloadProtocol = stat.totalProtocolDownload();
         status.downloadRate = (int)stat.downloadRate();
         status.downloadPayloadRate = (int)stat.downloadPayloadRate();
         status.upload = stat.totalUpload();
         status.uploadRate = (int)stat.uploadRate();
+        status.poolBuffers = poolBuffers;
+        status.poolBuffersReserved = (session != null)?session.poolBuffersReservation(this):0;
 
         if (status.totalWanted == 0)        {
             status.progressPPM = 1000000;
@@ -582,8 +1192,30 @@ public class Transfer {
         return status;
     }
 
+    /**
+     * account block submitted to disk for transfer and session backpressure
+     * @param bytes block size
+     */
+    private void diskWriteSubmitted(long bytes) {
+        diskQueuedBytes += bytes;
+        session.diskWriteSubmitted(bytes);
+    }
+
+    /**
+     * account block completed by disk, completions of operations dropped by abort are ignored
+     * @param bytes block size
+     */
+    private void diskWriteCompleted(long bytes) {
+        long completed = Math.min(bytes, diskQueuedBytes);
+        diskQueuedBytes -= completed;
+        session.diskWriteCompleted(completed);
+    }
+
     public void asyncRestoreBlock(final PieceBlock b, final ByteBuffer buffer) {
-        aioFutures.addLast(session.submitDiskTask(new AsyncRestore(this, b, size, buffer)));
+        diskBuffers.add(buffer);
+        diskPieces.add(b.pieceIndex);
+        diskWriteSubmitted(b.size(size));
+        aioFutures.addLast(session.submitDiskTask(this, new AsyncRestore(this, b, size, buffer)));
     }
 
     public final List<PeerInfo> getPeersInfo() {
@@ -96,6 +96,40 @@ public class TransferHandle implements Comparable<TransferHandle> {
         }
     }
 
+    /**
+     * re-verify existing partial or complete file by hashing all pieces in parallel
+     * transfer disconnects peers until check completed, TransferCheckedAlert is posted on completion
+     * has no effect when transfer has no hash set yet
+     */
+    public final void forceRecheck() {
+        Transfer t = transfer.get();
+        if (t != null) {
+            synchronized (ses) {
+                t.forceRecheck();
+            }
+        }
+    }
+
+    public final void setUploadPriority(final UploadScheduler.Priority priority) {
+        Transfer t = transfer.get();
+        if (t != null) {
+            synchronized (ses) {
+                t.setUploadPriority(priority);
+            }
+        }
+    }
+
+    public final UploadScheduler.Priority getUploadPriority() {
+        Transfer t = transfer.get();
+        if (t != null) {
+            synchronized (ses) {
+                return t.getUploadPriority();
+            }
+        }
+
+        return UploadScheduler.Priority.NORMAL;
+    }
+
     public final boolean isPaused() {
         boolean res = false;
         Transfer t = transfer.get();
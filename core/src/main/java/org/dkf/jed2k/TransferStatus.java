@@ -17,6 +17,11 @@ public class TransferStatus {
     };
 
     public boolean paused;
+
+    /**
+     * force recheck of file is in progress
+     */
+    public boolean checking;
     public float progress   = 0f;
     public int progressPPM          = 0;
     public long downloadPayload     = 0;
@@ -31,11 +36,14 @@ public class TransferStatus {
     public long eta                 = 0;
     public BitField pieces;
     public int numPieces            = 0;
+    public int poolBuffers          = 0;
+    public int poolBuffersReserved  = 0;
 
     @Override
     public String toString() {
         return "TransferStatus{" +
                 "paused=" + paused +
+                ", checking=" + checking +
                 ", progress=" + progress +
                 ", progressPPM=" + progressPPM +
                 ", downloadPayload=" + downloadPayload +
@@ -50,6 +58,8 @@ public class TransferStatus {
                 ", eta=" + eta +
                 ", pieces=" + pieces +
                 ", numPieces=" + numPieces +
+                ", poolBuffers=" + poolBuffers +
+                ", poolBuffersReserved=" + poolBuffersReserved +
                 '}';
     }
 }
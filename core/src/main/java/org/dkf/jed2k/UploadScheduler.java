@@ -0,0 +1,334 @@
+package org.dkf.jed2k;
+
+import lombok.extern.slf4j.Slf4j;
+import org.dkf.jed2k.protocol.Hash;
+
+import java.util.*;
+
+/**
+ * upload slots scheduler
+ * bounded count of remote clients are uploading, all others wait in queue ordered by score
+ * score is combination of wait time, credits(how much client gave us relative to what it took) and file priority
+ * to keep order independent of current time credits and priority converted to additive bonus to wait time:
+ * client with bigger bonus looks like it came into queue earlier
+ * waiting queue is ordered set, so insert/remove/poll cost O(log n)
+ * ranks are recomputed by second tick in one pass over queue only when queue was changed,
+ * requested ranks are sent after recomputation
+ * clients are remembered by user hash while waiting so reconnected client keeps position in queue,
+ * client without user hash(hello wasn't received) and client which doesn't fit in queue are rejected
+ */
+@Slf4j
+public class UploadScheduler {
+
+    /**
+     * remote side of upload, usually peer connection
+     */
+    public interface Client {
+        Hash getUserHash();
+        long totalUploaded();
+        long totalDownloaded();
+        void acceptUpload();
+        void sendQueueRanking(int rank);
+        void stopUpload();
+        void rejectUpload();
+    }
+
+    public enum Priority {
+        LOW(0.5),
+        NORMAL(1.0),
+        HIGH(1.5),
+        RELEASE(3.0);
+
+        public final double multiplier;
+
+        Priority(double m) {
+            multiplier = m;
+        }
+    }
+
+    /**
+     * wait time bonus for each unit of score multiplier over 1
+     */
+    static final long BONUS_UNIT = Time.minutes(10);
+
+    /**
+     * disconnected waiting client is forgotten after this timeout
+     */
+    static final long FORGET_TIMEOUT = Time.hours(1);
+
+    private static final long MB = 1024*1024l;
+
+    private static class Entry {
+        final Hash userHash;
+        Client client = null;
+        /**
+         * position in waiting queue, valid when hasPosition is true
+         * disconnected client keeps position to restore it on reconnect
+         */
+        boolean hasPosition = false;
+        boolean waiting = false;
+        long key = 0;
+        long seq = 0;
+        long lastSeen = 0;
+        /**
+         * position in waiting queue starting from 1, valid when ranks aren't dirty
+         */
+        int rank = 0;
+        boolean rankRequested = false;
+        Priority priority = Priority.NORMAL;
+        boolean uploading = false;
+        long slotStartUploaded = 0;
+
+        /**
+         * totals of previous connections
+         */
+        long downloadedBefore = 0;
+        long uploadedBefore = 0;
+
+        Entry(final Hash userHash) {
+            this.userHash = userHash;
+        }
+
+        long downloaded() {
+            return downloadedBefore + ((client != null)?client.totalDownloaded():0);
+        }
+
+        long uploaded() {
+            return uploadedBefore + ((client != null)?client.totalUploaded():0);
+        }
+    }
+
+    private final TreeSet<Entry> waiting = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.key != o2.key) return (o1.key < o2.key)?-1:1;
+            if (o1.seq != o2.seq) return (o1.seq < o2.seq)?-1:1;
+            return 0;
+        }
+    });
+
+    /**
+     * all known clients in last seen order, oldest first
+     */
+    private final LinkedHashMap<Hash, Entry> clients = new LinkedHashMap<Hash, Entry>();
+    private final ArrayList<Entry> slots = new ArrayList<Entry>();
+    private long sequence = 0;
+    private boolean ranksDirty = false;
+
+    private int maxSlots;
+    private long slotQuota;
+    private int maxQueueSize;
+
+    public UploadScheduler(final Settings settings) {
+        configure(settings);
+    }
+
+    public void configure(final Settings settings) {
+        maxSlots = settings.uploadSlots;
+        slotQuota = settings.uploadSlotQuota;
+        maxQueueSize = settings.uploadQueueSize;
+    }
+
+    /**
+     * credits of client like in eMule: uploaded to us relative to downloaded from us in range [1, 10]
+     */
+    static double credits(long downloaded, long uploaded) {
+        if (downloaded < MB) return 1.0;
+        double ratio = (uploaded == 0)?10.0:(2.0*downloaded/uploaded);
+        ratio = Math.min(ratio, Math.sqrt((double)downloaded/MB + 2.0));
+        return Math.max(1.0, Math.min(ratio, 10.0));
+    }
+
+    private Entry touch(final Hash userHash, long now) {
+        Entry e = clients.remove(userHash);
+        // client's hash can be re-assigned by next hello, so entry owns copy
+        if (e == null) e = new Entry(new Hash(userHash));
+        e.lastSeen = now;
+        clients.put(e.userHash, e);
+        return e;
+    }
+
+    private void enqueue(final Entry e, long now) {
+        double multiplier = credits(e.downloaded(), e.uploaded())*e.priority.multiplier;
+        e.key = now - (long)((multiplier - 1.0)*BONUS_UNIT);
+        e.seq = sequence++;
+        e.hasPosition = true;
+        e.waiting = true;
+        waiting.add(e);
+        ranksDirty = true;
+    }
+
+    /**
+     * send rank of waiting client now when ranks are actual or on next second tick
+     */
+    private void requestRank(final Entry e) {
+        if (ranksDirty) {
+            e.rankRequested = true;
+        } else {
+            e.client.sendQueueRanking(e.rank);
+        }
+    }
+
+    /**
+     * client asks for upload slot
+     * @param c client
+     * @param priority priority of requested file
+     * @param now current session time
+     */
+    public void request(final Client c, final Priority priority, long now) {
+        if (c.getUserHash().equals(Hash.INVALID)) {
+            log.debug("[upload] client without user hash, reject");
+            c.rejectUpload();
+            return;
+        }
+
+        Entry e = touch(c.getUserHash(), now);
+        e.priority = priority;
+
+        if (e.uploading) {
+            if (e.client != c) {
+                // client reconnected while uploading, move slot to new connection
+                e.uploadedBefore += e.client.totalUploaded();
+                e.downloadedBefore += e.client.totalDownloaded();
+                e.client = c;
+                e.slotStartUploaded = e.uploaded();
+            }
+
+            c.acceptUpload();
+            return;
+        }
+
+        if (!e.waiting && waiting.isEmpty() && slots.size() < maxSlots) {
+            e.client = c;
+            grant(e);
+            return;
+        }
+
+        if (!e.waiting) {
+            if (waiting.size() >= maxQueueSize) {
+                log.debug("[upload] queue is full, reject {}", c.getUserHash());
+                c.rejectUpload();
+                return;
+            }
+
+            e.client = c;
+            // restore position of known client or enter queue now
+            if (e.hasPosition) {
+                e.waiting = true;
+                waiting.add(e);
+                ranksDirty = true;
+            } else {
+                enqueue(e, now);
+            }
+        } else if (e.client != c) {
+            e.client = c;
+        }
+
+        requestRank(e);
+    }
+
+    /**
+     * client disconnected, slot will be freed, waiting client keeps position
+     * @param c client
+     */
+    public void remove(final Client c) {
+        Entry e = clients.get(c.getUserHash());
+        if (e == null || e.client != c) return;
+
+        if (e.uploading) {
+            e.uploading = false;
+            slots.remove(e);
+        } else if (e.waiting) {
+            e.waiting = false;
+            e.rankRequested = false;
+            waiting.remove(e);
+            ranksDirty = true;
+        }
+
+        e.uploadedBefore += c.totalUploaded();
+        e.downloadedBefore += c.totalDownloaded();
+        e.client = null;
+    }
+
+    /**
+     * @param c client
+     * @return true if client owns upload slot
+     */
+    public boolean isUploading(final Client c) {
+        Entry e = clients.get(c.getUserHash());
+        return e != null && e.uploading && e.client == c;
+    }
+
+    private void grant(final Entry e) {
+        assert e.client != null;
+        e.uploading = true;
+        e.waiting = false;
+        e.hasPosition = false;
+        e.slotStartUploaded = e.uploaded();
+        slots.add(e);
+        log.debug("[upload] slot granted to {}", e.userHash);
+        e.client.acceptUpload();
+    }
+
+    public void secondTick(long now) {
+        // rotate slots which have uploaded quota when somebody waits
+        if (!waiting.isEmpty()) {
+            Iterator<Entry> itr = slots.iterator();
+            while(itr.hasNext()) {
+                Entry e = itr.next();
+                if (e.uploaded() - e.slotStartUploaded >= slotQuota) {
+                    log.debug("[upload] slot quota exceeded for {}", e.userHash);
+                    itr.remove();
+                    e.uploading = false;
+                    e.client.stopUpload();
+                    enqueue(e, now);
+                    e.rankRequested = true;
+                }
+            }
+        }
+
+        while(slots.size() < maxSlots && !waiting.isEmpty()) {
+            Entry e = waiting.pollFirst();
+            e.waiting = false;
+            e.rankRequested = false;
+            ranksDirty = true;
+            grant(e);
+        }
+
+        if (ranksDirty) {
+            int rank = 0;
+            for(final Entry e: waiting) {
+                e.rank = ++rank;
+                if (e.rankRequested) {
+                    e.rankRequested = false;
+                    e.client.sendQueueRanking(e.rank);
+                }
+            }
+
+            ranksDirty = false;
+        }
+
+        // forget disconnected clients, connected clients are moved to the end of order
+        List<Entry> connected = new LinkedList<Entry>();
+        Iterator<Entry> itr = clients.values().iterator();
+        while(itr.hasNext()) {
+            Entry e = itr.next();
+            if (now - e.lastSeen < FORGET_TIMEOUT) break;
+            itr.remove();
+            if (e.client != null) connected.add(e);
+        }
+
+        for(final Entry e: connected) {
+            e.lastSeen = now;
+            clients.put(e.userHash, e);
+        }
+    }
+
+    public int getSlotsCount() {
+        return slots.size();
+    }
+
+    public int getQueueSize() {
+        return waiting.size();
+    }
+}
@@ -0,0 +1,20 @@
+package org.dkf.jed2k.alert;
+
+import org.dkf.jed2k.protocol.Hash;
+
+/**
+ * force recheck of transfer's file completed
+ */
+public class TransferCheckedAlert extends TransferAlert {
+    public final int numHave;
+
+    public TransferCheckedAlert(final Hash h, int numHave) {
+        super(h);
+        this.numHave = numHave;
+    }
+
+    @Override
+    public String toString() {
+        return "transfer checked " + super.toString() + " have pieces " + numHave;
+    }
+}
@@ -0,0 +1,256 @@
+package org.dkf.jed2k.disk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.dkf.jed2k.AsyncOperationResult;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * disk I/O engine with fixed count of worker threads
+ * each worker owns own queue of tasks, tasks are assigned to worker by hash of the key(usually transfer's hash)
+ * so all operations on one file are executed in submit order, but operations on different files
+ * can be executed in parallel
+ */
+@Slf4j
+public class DiskIOEngine {
+    private final ExecutorService[] workers;
+
+    /**
+     * tasks submitted but not completed yet
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+    private final AtomicLong completedTasks = new AtomicLong(0);
+
+    /**
+     * summary time from submit to completion in nanoseconds
+     */
+    private final AtomicLong totalLatency = new AtomicLong(0);
+    private final AtomicLong maxLatency = new AtomicLong(0);
+
+    /**
+     * summary time of execution only in nanoseconds
+     */
+    private final AtomicLong totalExecutionTime = new AtomicLong(0);
+
+    /**
+     * write calls of all files
+     */
+    private final WriteStatistics writeStatistics = new WriteStatistics();
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+
+        WorkerThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            return t;
+        }
+    }
+
+    /**
+     * task wrapper for collecting statistics
+     * statistics are updated once on completion or cancellation
+     */
+    private final class MeasuredTask extends FutureTask<AsyncOperationResult> {
+        private final long submitTime = System.nanoTime();
+        private final Runnable completion;
+
+        /**
+         * worker can finish task while it is cancelled by another thread, so only first of them counts it
+         */
+        private final AtomicBoolean counted = new AtomicBoolean(false);
+
+        MeasuredTask(final Callable<AsyncOperationResult> task, final Runnable completion) {
+            super(task);
+            this.completion = completion;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            try {
+                super.run();
+            } finally {
+                totalExecutionTime.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+
+        /**
+         * statistics are updated before result is published to make them consistent for waiters of future
+         */
+        @Override
+        protected void set(final AsyncOperationResult result) {
+            finish(false);
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(final Throwable t) {
+            finish(false);
+            super.setException(t);
+        }
+
+        private void finish(boolean cancelled) {
+            if (counted.compareAndSet(false, true)) onTaskFinished(System.nanoTime() - submitTime, cancelled);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) finish(true);
+            if (completion != null) {
+                try {
+                    completion.run();
+                } catch(Exception e) {
+                    log.error("[disk io] completion handler failed {}", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param threads count of worker threads, must be positive
+     */
+    public DiskIOEngine(int threads) {
+        this(threads, "disk-io");
+    }
+
+    /**
+     * @param threads count of workers
+     * @param name prefix of workers threads names
+     */
+    public DiskIOEngine(int threads, final String name) {
+        assert threads > 0;
+        workers = new ExecutorService[Math.max(threads, 1)];
+        for(int i = 0; i < workers.length; ++i) {
+            workers[i] = Executors.newSingleThreadExecutor(new WorkerThreadFactory(name + "-" + i));
+        }
+
+        log.debug("[disk io] {} started with {} threads", name, workers.length);
+    }
+
+    /**
+     * submit task to worker associated with key
+     * @param key ordering key, tasks with equal keys are executed sequentially in submit order
+     * @param task disk operation
+     * @return future of operation result
+     */
+    public Future<AsyncOperationResult> submit(final Object key, final Callable<AsyncOperationResult> task) {
+        return submit(key, task, null);
+    }
+
+    /**
+     * submit task to worker associated with key and notify about completion
+     * @param key ordering key, tasks with equal keys are executed sequentially in submit order
+     * @param task disk operation
+     * @param completion executed in worker thread right after task finished or was cancelled, can be null
+     * @return future of operation result, completion is executed right after future is done
+     */
+    public Future<AsyncOperationResult> submit(final Object key
+            , final Callable<AsyncOperationResult> task
+            , final Runnable completion) {
+        assert key != null;
+        onTaskSubmitted();
+
+        MeasuredTask f = new MeasuredTask(task, completion);
+
+        try {
+            workers[workerIndex(key)].execute(f);
+        } catch(RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            throw e;
+        }
+
+        return f;
+    }
+
+    int workerIndex(final Object key) {
+        // spread hash bits since Hash.hashCode has poor low bits distribution for similar hashes
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % workers.length;
+    }
+
+    private void onTaskSubmitted() {
+        int depth = queueDepth.incrementAndGet();
+        int max = maxQueueDepth.get();
+        while(depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    private void onTaskFinished(long latency, boolean cancelled) {
+        queueDepth.decrementAndGet();
+        if (cancelled) return;
+        completedTasks.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max = maxLatency.get();
+        while(latency > max && !maxLatency.compareAndSet(max, latency)) {
+            max = maxLatency.get();
+        }
+    }
+
+    public int getThreadsCount() {
+        return workers.length;
+    }
+
+    /**
+     * thread safe
+     * @return snapshot of disk engine counters
+     */
+    public DiskIOStatus getStatus() {
+        DiskIOStatus status = new DiskIOStatus();
+        status.threads = workers.length;
+        status.queueDepth = queueDepth.get();
+        status.maxQueueDepth = maxQueueDepth.get();
+        status.completedTasks = completedTasks.get();
+        long completed = status.completedTasks;
+        status.averageLatencyMicros = (completed != 0)?totalLatency.get() / completed / 1000:0;
+        status.averageExecutionMicros = (completed != 0)?totalExecutionTime.get() / completed / 1000:0;
+        status.maxLatencyMicros = maxLatency.get() / 1000;
+        status.writeCalls = writeStatistics.writeCalls();
+        status.writtenBytes = writeStatistics.writtenBytes();
+        status.averageWriteBytes = writeStatistics.averageWriteBytes();
+        return status;
+    }
+
+    /**
+     * @return write calls counters shared by files of engine's tasks
+     */
+    public WriteStatistics getWriteStatistics() {
+        return writeStatistics;
+    }
+
+    /**
+     * stop accept new tasks, already submitted tasks will be executed
+     */
+    public void shutdown() {
+        for(final ExecutorService w: workers) {
+            w.shutdown();
+        }
+    }
+
+    /**
+     * for testing purposes
+     * @param timeout wait time
+     * @param unit time unit
+     * @return true if all workers were terminated
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(final ExecutorService w: workers) {
+            if (!w.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package org.dkf.jed2k.disk;
+
+/**
+ * snapshot of disk I/O engine counters
+ */
+public class DiskIOStatus {
+    public int threads                  = 0;
+    public int queueDepth               = 0;
+    public int maxQueueDepth            = 0;
+    public long completedTasks          = 0;
+    public long averageLatencyMicros    = 0;
+    public long averageExecutionMicros  = 0;
+    public long maxLatencyMicros        = 0;
+
+    /**
+     * disk to network backpressure: bytes of blocks queued to disk, stall state, count of stalls and total stall time
+     */
+    public long queuedBytes             = 0;
+    public boolean stalled              = false;
+    public int stalls                   = 0;
+    public long stallTimeMillis         = 0;
+
+    /**
+     * file write calls, bytes written by them and average bytes per call
+     */
+    public long writeCalls              = 0;
+    public long writtenBytes            = 0;
+    public long averageWriteBytes       = 0;
+
+    @Override
+    public String toString() {
+        return "DiskIOStatus{" +
+                "threads=" + threads +
+                ", queueDepth=" + queueDepth +
+                ", maxQueueDepth=" + maxQueueDepth +
+                ", completedTasks=" + completedTasks +
+                ", averageLatencyMicros=" + averageLatencyMicros +
+                ", averageExecutionMicros=" + averageExecutionMicros +
+                ", maxLatencyMicros=" + maxLatencyMicros +
+                ", queuedBytes=" + queuedBytes +
+                ", stalled=" + stalled +
+                ", stalls=" + stalls +
+                ", stallTimeMillis=" + stallTimeMillis +
+                ", writeCalls=" + writeCalls +
+                ", writtenBytes=" + writtenBytes +
+                ", averageWriteBytes=" + averageWriteBytes +
+                '}';
+    }
+}
@@ -0,0 +1,152 @@
+package org.dkf.jed2k.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * combines queued writes of contiguous regions of one file into one write call
+ * writes are queued by owner thread on submit of disk task and executed by the disk worker of the file, so when
+ * worker executes the first of several adjacent queued writes it writes all of them at once
+ * and following tasks find their data already written
+ * single region is written by positional write, run of regions by gathering write
+ * JDK has no positional gathering write, so channel position is set before it, channel must be used by one worker only
+ */
+public class WriteCombiner {
+    /**
+     * max bytes written by one call
+     */
+    static final long MAX_RUN_BYTES = 4*1024*1024;
+
+    /**
+     * queued write of data to offset in file
+     */
+    public static final class Entry {
+        final long offset;
+        final ByteBuffer buffer;
+
+        /**
+         * view of data taken on queue, so buffer's position can be moved by another thread before write
+         */
+        final ByteBuffer data;
+        private boolean done = false;
+        private IOException error = null;
+
+        Entry(long offset, final ByteBuffer buffer) {
+            this.offset = offset;
+            this.buffer = buffer;
+            this.data = buffer.duplicate();
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        long end() {
+            return offset + data.remaining();
+        }
+    }
+
+    private final LinkedList<Entry> pending = new LinkedList<Entry>();
+    private final WriteStatistics statistics;
+
+    /**
+     * @param statistics write calls counters, can be null
+     */
+    public WriteCombiner(final WriteStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * queue data for write, content of buffer must not be changed until write completed
+     * @param offset position in file
+     * @param buffer data, position and limit of buffer are not used and not changed by write
+     * @return entry for write call
+     */
+    public synchronized Entry queue(long offset, final ByteBuffer buffer) {
+        Entry e = new Entry(offset, buffer);
+        pending.add(e);
+        return e;
+    }
+
+    /**
+     * write entry data to channel or do nothing if it was already written with previous queued entry
+     * @param e queued entry
+     * @param channel file channel
+     * @throws IOException on write error of entry or of run which entry was part of
+     */
+    public void write(final Entry e, final FileChannel channel) throws IOException {
+        ArrayList<Entry> run = takeRun(e);
+
+        if (run != null) {
+            try {
+                long bytes = write(run, channel);
+                if (statistics != null) statistics.record(bytes);
+                for(final Entry r: run) r.done = true;
+            } catch(IOException ex) {
+                for(final Entry r: run) r.error = ex;
+            }
+        }
+
+        if (e.error != null) throw e.error;
+        assert e.done;
+    }
+
+    /**
+     * @param e entry to write
+     * @return entry and queued entries adjacent to it in file or null if entry was already written
+     */
+    private synchronized ArrayList<Entry> takeRun(final Entry e) {
+        if (e.done || e.error != null) return null;
+        boolean removed = pending.remove(e);
+        assert removed;
+
+        ArrayList<Entry> res = new ArrayList<Entry>();
+        res.add(e);
+        long end = e.end();
+        long bytes = e.data.remaining();
+        boolean found = true;
+
+        while(found && bytes < MAX_RUN_BYTES) {
+            found = false;
+            Iterator<Entry> itr = pending.iterator();
+            while(itr.hasNext()) {
+                Entry next = itr.next();
+                if (next.offset == end && bytes + next.data.remaining() <= MAX_RUN_BYTES) {
+                    itr.remove();
+                    res.add(next);
+                    end = next.end();
+                    bytes += next.data.remaining();
+                    found = true;
+                    break;
+                }
+            }
+        }
+
+        return res;
+    }
+
+    private static long write(final ArrayList<Entry> run, final FileChannel channel) throws IOException {
+        if (run.size() == 1) {
+            ByteBuffer data = run.get(0).data.duplicate();
+            long position = run.get(0).offset;
+            while(data.hasRemaining()) position += channel.write(data, position);
+            return run.get(0).data.remaining();
+        }
+
+        ByteBuffer[] data = new ByteBuffer[run.size()];
+        long remaining = 0;
+        for(int i = 0; i < data.length; ++i) {
+            data[i] = run.get(i).data.duplicate();
+            remaining += data[i].remaining();
+        }
+
+        long bytes = remaining;
+        channel.position(run.get(0).offset);
+        while(remaining > 0) remaining -= channel.write(data);
+        return bytes;
+    }
+}
@@ -0,0 +1,32 @@
+package org.dkf.jed2k.disk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * thread safe counters of file write calls
+ */
+public class WriteStatistics {
+    private final AtomicLong writeCalls = new AtomicLong(0);
+    private final AtomicLong writtenBytes = new AtomicLong(0);
+
+    public void record(long bytes) {
+        writeCalls.incrementAndGet();
+        writtenBytes.addAndGet(bytes);
+    }
+
+    public long writeCalls() {
+        return writeCalls.get();
+    }
+
+    public long writtenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return average bytes written by one write call
+     */
+    public long averageWriteBytes() {
+        long calls = writeCalls.get();
+        return (calls != 0)?writtenBytes.get()/calls:0;
+    }
+}
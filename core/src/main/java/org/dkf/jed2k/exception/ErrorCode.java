@@ -46,6 +46,7 @@ public enum ErrorCode implements BaseErrorCode {
     TRANSFER_FINISHED(50, "Transfer finished"),
     TRANSFER_PAUSED(51, "Transfer paused"),
     TRANSFER_ABORTED(52, "Transfer aborted"),
+    TRANSFER_CHECKING(53, "Transfer checking files"),
 
     NO_MEMORY(60, "No memory available"),
     SESSION_STOPPING(61, "Session stopping"),
@@ -0,0 +1,255 @@
+package org.dkf.jed2k.hash;
+
+import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.protocol.AichHash;
+import org.dkf.jed2k.protocol.AichRecoveryData;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * AICH hash tree of file in eMule layout
+ * leaves are SHA-1 hashes of 180kb blocks which never cross part boundary, node hash is SHA-1 of children hashes
+ * nodes above parts split data by parts, nodes of part split it by blocks, left branch gets bigger half of odd count
+ * tree is built lazily, so it is used for both complete tree of file and sparse tree of recovery data
+ */
+public class AichTree {
+    public static final long BLOCK_SIZE = 180*1024l;
+    public static final long PART_SIZE = Constants.PIECE_SIZE;
+
+    /**
+     * files bigger than this use 32 bit identifiers in recovery data
+     */
+    public static final long MAX_SMALL_FILE_SIZE = 4290048000l;
+
+    private final long dataSize;
+    private final long baseSize;
+    private final boolean leftBranch;
+    private AichHash hash = null;
+    private AichTree left = null;
+    private AichTree right = null;
+
+    private AichTree(long dataSize, boolean leftBranch) {
+        assert dataSize > 0;
+        this.dataSize = dataSize;
+        this.leftBranch = leftBranch;
+        this.baseSize = (dataSize <= PART_SIZE)?BLOCK_SIZE:PART_SIZE;
+    }
+
+    /**
+     * @param fileSize size of file
+     */
+    public AichTree(long fileSize) {
+        this(fileSize, true);
+    }
+
+    /**
+     * @param fileSize size of file
+     * @param blockHashes hashes of all blocks of file in file order
+     * @return complete tree or null when count of hashes doesn't match file size
+     */
+    public static AichTree build(long fileSize, final List<AichHash> blockHashes) {
+        if (blockHashes.size() != blocksCount(fileSize)) return null;
+        AichTree res = new AichTree(fileSize);
+        res.assignBlocks(blockHashes.iterator());
+        return res;
+    }
+
+    /**
+     * @param fileSize size of file
+     * @return count of tree leaves
+     */
+    public static int blocksCount(long fileSize) {
+        long fullParts = fileSize / PART_SIZE;
+        long tail = fileSize % PART_SIZE;
+        return (int)(fullParts*partBlocksCount(PART_SIZE) + partBlocksCount(tail));
+    }
+
+    /**
+     * @param partSize size of part
+     * @return count of AICH blocks in part
+     */
+    public static int partBlocksCount(long partSize) {
+        return (int)((partSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * @return SHA-1 of remaining bytes of buffer, buffer is consumed
+     */
+    public static AichHash blockHash(final ByteBuffer data) {
+        MessageDigest md = sha1();
+        md.update(data);
+        return AichHash.fromBytes(md.digest());
+    }
+
+    public AichHash getHash() {
+        return hash;
+    }
+
+    /**
+     * recovery data of part for remote peer, tree must be complete
+     * @param part index of part
+     * @return hashes to verify part and hashes of part's blocks or null when tree has no required hashes
+     */
+    public AichRecoveryData createRecoveryData(int part) {
+        long start = part*PART_SIZE;
+        if (start >= dataSize) return null;
+        AichRecoveryData res = new AichRecoveryData(dataSize > MAX_SMALL_FILE_SIZE);
+        return writeRecoveryData(start, Math.min(PART_SIZE, dataSize - start), 0, res)?res:null;
+    }
+
+    /**
+     * build sparse tree by recovery data and check it against master hash
+     * @param fileSize size of file
+     * @param part index of part
+     * @param master trusted root hash
+     * @param data recovery data of part
+     * @return hashes of part's blocks in file order or null when data is incomplete or doesn't match master hash
+     */
+    public static List<AichHash> verifyRecoveryData(long fileSize, int part, final AichHash master, final AichRecoveryData data) {
+        long start = part*PART_SIZE;
+        if (start >= fileSize) return null;
+
+        AichTree root = new AichTree(fileSize);
+        for(final AichRecoveryData.Entry e: data.entries) {
+            AichTree node = root.find(e.ident);
+            if (node == null) return null;
+            node.hash = e.hash;
+        }
+
+        AichTree partNode = root.find(start, Math.min(PART_SIZE, fileSize - start));
+        List<AichHash> res = new ArrayList<AichHash>();
+        if (partNode == null || !partNode.collectBlocks(res)) return null;
+        if (!root.computeHash() || !root.hash.equals(master)) return null;
+        return res;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static AichHash combine(final AichHash l, final AichHash r) {
+        MessageDigest md = sha1();
+        md.update(l.getBytes());
+        md.update(r.getBytes());
+        return AichHash.fromBytes(md.digest());
+    }
+
+    private boolean isLeaf() {
+        return dataSize <= baseSize;
+    }
+
+    private long leftSize() {
+        long blocks = (dataSize + baseSize - 1) / baseSize;
+        return ((leftBranch?blocks + 1:blocks) / 2)*baseSize;
+    }
+
+    private AichTree getLeft() {
+        if (left == null) left = new AichTree(leftSize(), true);
+        return left;
+    }
+
+    private AichTree getRight() {
+        if (right == null) right = new AichTree(dataSize - leftSize(), false);
+        return right;
+    }
+
+    private long ident(long parentIdent) {
+        return (parentIdent << 1) | (leftBranch?1:0);
+    }
+
+    private void assignBlocks(final Iterator<AichHash> itr) {
+        if (isLeaf()) {
+            hash = itr.next();
+        } else {
+            getLeft().assignBlocks(itr);
+            getRight().assignBlocks(itr);
+            hash = combine(left.hash, right.hash);
+        }
+    }
+
+    private boolean writeRecoveryData(long start, long size, long parentIdent, final AichRecoveryData data) {
+        if (start == 0 && size == dataSize) return writeBlocks(parentIdent, data);
+        if (isLeaf()) return false;
+
+        long ident = ident(parentIdent);
+        long leftSize = leftSize();
+
+        if (start < leftSize) {
+            if (start + size > leftSize || getRight().hash == null) return false;
+            data.add(right.ident(ident), right.hash);
+            return getLeft().writeRecoveryData(start, size, ident, data);
+        }
+
+        if (getLeft().hash == null) return false;
+        data.add(left.ident(ident), left.hash);
+        return getRight().writeRecoveryData(start - leftSize, size, ident, data);
+    }
+
+    private boolean writeBlocks(long parentIdent, final AichRecoveryData data) {
+        long ident = ident(parentIdent);
+        if (isLeaf()) {
+            if (hash == null) return false;
+            data.add(ident, hash);
+            return true;
+        }
+
+        return getLeft().writeBlocks(ident, data) && getRight().writeBlocks(ident, data);
+    }
+
+    /**
+     * @param ident identifier of node from recovery data
+     * @return node or null when identifier points outside of tree
+     */
+    private AichTree find(long ident) {
+        // leading one is branch flag of root which is always left
+        if (ident <= 0) return null;
+        AichTree node = this;
+        for(int i = 62 - Long.numberOfLeadingZeros(ident); i >= 0; --i) {
+            if (node.isLeaf()) return null;
+            node = (((ident >> i) & 1) == 1)?node.getLeft():node.getRight();
+        }
+
+        return node;
+    }
+
+    private AichTree find(long start, long size) {
+        if (start == 0 && size == dataSize) return this;
+        if (isLeaf() || start + size > dataSize) return null;
+        long leftSize = leftSize();
+        if (start < leftSize) return (start + size > leftSize)?null:getLeft().find(start, size);
+        return getRight().find(start - leftSize, size);
+    }
+
+    /**
+     * collect leaves hashes of subtree, all leaves must be present
+     */
+    private boolean collectBlocks(final List<AichHash> res) {
+        if (isLeaf()) {
+            if (hash == null) return false;
+            res.add(hash);
+            return true;
+        }
+
+        if (left == null || right == null) return false;
+        return left.collectBlocks(res) && right.collectBlocks(res);
+    }
+
+    /**
+     * calculate hashes of inner nodes, node without children keeps received hash
+     */
+    private boolean computeHash() {
+        if (isLeaf() || (left == null && right == null)) return hash != null;
+        if (!getLeft().computeHash() || !getRight().computeHash()) return false;
+        hash = combine(left.hash, right.hash);
+        return true;
+    }
+}
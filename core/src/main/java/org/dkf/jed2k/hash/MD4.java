@@ -19,6 +19,7 @@
 package org.dkf.jed2k.hash;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 
 /**
@@ -31,6 +32,9 @@ import java.security.MessageDigest;
  *        The MD4 Message-Digest Algorithm</a>",
  *        IETF RFC-1320 (informational).
  * </ol>
+ * <p>
+ * Whole input blocks are transformed in place from byte arrays and from heap or direct byte buffers,
+ * only partial blocks are copied into internal buffer. Rounds are unrolled and work on local variables.
  *
  * <p><b>$Revision: 1.2 $</b>
  * @author  Raif S. Naffah
@@ -49,7 +53,10 @@ public  class MD4 extends MessageDigest implements Cloneable
     /**
      * 4 32-bit words (interim result)
      */
-    private int[] context = new int[4];
+    private int context0;
+    private int context1;
+    private int context2;
+    private int context3;
 
     /**
      * Number of bytes processed so far mod. 2 power of 64.
@@ -61,11 +68,6 @@ public  class MD4 extends MessageDigest implements Cloneable
      */
     private byte[] buffer = new byte[BLOCK_LENGTH];
 
-    /**
-     * 512 bits work buffer = 16 x 32-bit words
-     */
-    private int[] X = new int[16];
-
 
 // Constructors
 //...........................................................................
@@ -80,7 +82,10 @@ public  class MD4 extends MessageDigest implements Cloneable
      */
     private MD4 (MD4 md) {
         this();
-        context = (int[])md.context.clone();
+        context0 = md.context0;
+        context1 = md.context1;
+        context2 = md.context2;
+        context3 = md.context3;
         buffer = (byte[])md.buffer.clone();
         count = md.count;
     }
@@ -95,9 +100,45 @@ public  class MD4 extends MessageDigest implements Cloneable
     public Object clone() { return new MD4(this); }
 
 
+    /**
+     * intermediate state for resume of hashing, hashed input length must be multiple of 64 bytes,
+     * so state has no buffered bytes
+     * @return chaining value of hashed input in the same byte order as digest
+     */
+    public byte[] getContext() {
+        assert count % BLOCK_LENGTH == 0;
+        byte[] res = new byte[HASH_SIZE];
+        putInt(res, 0, context0);
+        putInt(res, 4, context1);
+        putInt(res, 8, context2);
+        putInt(res, 12, context3);
+        return res;
+    }
+
+    /**
+     * continue hashing from intermediate state
+     * @param context chaining value returned by getContext
+     * @param count bytes hashed to context, multiple of 64 bytes
+     */
+    public void setContext(byte[] context, long count) {
+        assert context.length == HASH_SIZE;
+        assert count % BLOCK_LENGTH == 0;
+        context0 = getInt(context, 0);
+        context1 = getInt(context, 4);
+        context2 = getInt(context, 8);
+        context3 = getInt(context, 12);
+        this.count = count;
+    }
+
+
 // JCE methods
 //...........................................................................
 
+    @Override
+    protected int engineGetDigestLength() {
+        return HASH_SIZE;
+    }
+
     /**
      * Resets this object disregarding any temporary data present at the
      * time of the invocation of this call.
@@ -105,13 +146,11 @@ public  class MD4 extends MessageDigest implements Cloneable
     public void engineReset () {
         // initial values of MD4 i.e. A, B, C, D
         // as per rfc-1320; they are low-order byte first
-        context[0] = 0x67452301;
-        context[1] = 0xEFCDAB89;
-        context[2] = 0x98BADCFE;
-        context[3] = 0x10325476;
+        context0 = 0x67452301;
+        context1 = 0xEFCDAB89;
+        context2 = 0x98BADCFE;
+        context3 = 0x10325476;
         count = 0L;
-        for (int i = 0; i < BLOCK_LENGTH; i++)
-            buffer[i] = 0;
     }
 
     /**
@@ -149,12 +188,13 @@ public  class MD4 extends MessageDigest implements Cloneable
         int partLen = BLOCK_LENGTH - bufferNdx;
         int i = 0;
         if (len >= partLen) {
-            System.arraycopy(input, offset, buffer, bufferNdx, partLen);
-
-
-            transform(buffer, 0);
+            if (bufferNdx != 0) {
+                System.arraycopy(input, offset, buffer, bufferNdx, partLen);
+                transform(buffer, 0);
+                i = partLen;
+            }
 
-            for (i = partLen; i + BLOCK_LENGTH - 1 < len; i+= BLOCK_LENGTH)
+            for (; i + BLOCK_LENGTH - 1 < len; i+= BLOCK_LENGTH)
                 transform(input, offset + i);
             bufferNdx = 0;
         }
@@ -163,22 +203,42 @@ public  class MD4 extends MessageDigest implements Cloneable
             System.arraycopy(input, offset + i, buffer, bufferNdx, len - i);
     }
 
+    /**
+     * heap buffers are hashed from backing array, direct buffers are read in place by little endian ints
+     * buffer's position is moved to limit
+     * @param input data
+     */
     public void engineUpdate(final ByteBuffer input) {
+        if (input.hasArray()) {
+            int len = input.remaining();
+            engineUpdate(input.array(), input.arrayOffset() + input.position(), len);
+            input.position(input.position() + len);
+            return;
+        }
+
         int bufferNdx = (int)(count % BLOCK_LENGTH);    // offset of free space in buffer after last operation
         int partLen = BLOCK_LENGTH - bufferNdx; // free space in buffer after last operation
         count += input.remaining(); // new total bytes
 
         if (input.remaining() >= partLen) {
             // complement last partial buffer and process it
-            input.get(buffer, bufferNdx, partLen);
-            transform(buffer, 0);
-
-            // process all remain whole blocks
-            while(input.remaining() >= BLOCK_LENGTH) {
-                input.get(buffer);
+            if (bufferNdx != 0) {
+                input.get(buffer, bufferNdx, partLen);
                 transform(buffer, 0);
             }
 
+            // process all remain whole blocks without copying, order is restored for caller
+            ByteOrder order = input.order();
+            input.order(ByteOrder.LITTLE_ENDIAN);
+            int pos = input.position();
+            int end = input.limit() - BLOCK_LENGTH;
+            try {
+                for(; pos <= end; pos += BLOCK_LENGTH) transform(input, pos);
+            } finally {
+                input.order(order);
+            }
+
+            input.position(pos);
             bufferNdx = 0;
         }
 
@@ -215,10 +275,11 @@ public  class MD4 extends MessageDigest implements Cloneable
         engineUpdate(tail, 0, tail.length);
 
         byte[] result = new byte[HASH_SIZE];
-        // cast this MD4's context (array of 4 ints) into an array of 16 bytes.
-        for (int i = 0; i < 4; i++)
-            for (int j = 0; j < 4; j++)
-                result[i * 4 + j] = (byte)(context[i] >>> (8 * j));
+        // cast this MD4's context (4 ints) into an array of 16 bytes.
+        putInt(result, 0, context0);
+        putInt(result, 4, context1);
+        putInt(result, 8, context2);
+        putInt(result, 12, context3);
 
         // reset the engine
         engineReset();
@@ -229,6 +290,20 @@ public  class MD4 extends MessageDigest implements Cloneable
 // own methods
 //...........................................................................
 
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset]     = (byte)value;
+        dst[offset + 1] = (byte)(value >>> 8);
+        dst[offset + 2] = (byte)(value >>> 16);
+        dst[offset + 3] = (byte)(value >>> 24);
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF)             |
+               (src[offset + 1] & 0xFF) <<  8   |
+               (src[offset + 2] & 0xFF) << 16   |
+               (src[offset + 3] & 0xFF) << 24;
+    }
+
     /**
      *    MD4 basic transformation.
      *    <p>
@@ -239,90 +314,109 @@ public  class MD4 extends MessageDigest implements Cloneable
      *    @param    offset    starting position of sub-array.
      */
     private void transform (byte[] block, int offset) {
+        transform(getInt(block, offset),      getInt(block, offset + 4),
+                  getInt(block, offset + 8),  getInt(block, offset + 12),
+                  getInt(block, offset + 16), getInt(block, offset + 20),
+                  getInt(block, offset + 24), getInt(block, offset + 28),
+                  getInt(block, offset + 32), getInt(block, offset + 36),
+                  getInt(block, offset + 40), getInt(block, offset + 44),
+                  getInt(block, offset + 48), getInt(block, offset + 52),
+                  getInt(block, offset + 56), getInt(block, offset + 60));
+    }
 
-        // encodes 64 bytes from input block into an array of 16 32-bit
-        // entities. Use A as a temp var.
-        for (int i = 0; i < 16; i++)
-            X[i] = (block[offset++] & 0xFF)       |
-                   (block[offset++] & 0xFF) <<  8 |
-                   (block[offset++] & 0xFF) << 16 |
-                   (block[offset++] & 0xFF) << 24;
-
-
-        int A = context[0];
-        int B = context[1];
-        int C = context[2];
-        int D = context[3];
-
-        A = FF(A, B, C, D, X[ 0],  3);
-        D = FF(D, A, B, C, X[ 1],  7);
-        C = FF(C, D, A, B, X[ 2], 11);
-        B = FF(B, C, D, A, X[ 3], 19);
-        A = FF(A, B, C, D, X[ 4],  3);
-        D = FF(D, A, B, C, X[ 5],  7);
-        C = FF(C, D, A, B, X[ 6], 11);
-        B = FF(B, C, D, A, X[ 7], 19);
-        A = FF(A, B, C, D, X[ 8],  3);
-        D = FF(D, A, B, C, X[ 9],  7);
-        C = FF(C, D, A, B, X[10], 11);
-        B = FF(B, C, D, A, X[11], 19);
-        A = FF(A, B, C, D, X[12],  3);
-        D = FF(D, A, B, C, X[13],  7);
-        C = FF(C, D, A, B, X[14], 11);
-        B = FF(B, C, D, A, X[15], 19);
-
-        A = GG(A, B, C, D, X[ 0],  3);
-        D = GG(D, A, B, C, X[ 4],  5);
-        C = GG(C, D, A, B, X[ 8],  9);
-        B = GG(B, C, D, A, X[12], 13);
-        A = GG(A, B, C, D, X[ 1],  3);
-        D = GG(D, A, B, C, X[ 5],  5);
-        C = GG(C, D, A, B, X[ 9],  9);
-        B = GG(B, C, D, A, X[13], 13);
-        A = GG(A, B, C, D, X[ 2],  3);
-        D = GG(D, A, B, C, X[ 6],  5);
-        C = GG(C, D, A, B, X[10],  9);
-        B = GG(B, C, D, A, X[14], 13);
-        A = GG(A, B, C, D, X[ 3],  3);
-        D = GG(D, A, B, C, X[ 7],  5);
-        C = GG(C, D, A, B, X[11],  9);
-        B = GG(B, C, D, A, X[15], 13);
-
-        A = HH(A, B, C, D, X[ 0],  3);
-        D = HH(D, A, B, C, X[ 8],  9);
-        C = HH(C, D, A, B, X[ 4], 11);
-        B = HH(B, C, D, A, X[12], 15);
-        A = HH(A, B, C, D, X[ 2],  3);
-        D = HH(D, A, B, C, X[10],  9);
-        C = HH(C, D, A, B, X[ 6], 11);
-        B = HH(B, C, D, A, X[14], 15);
-        A = HH(A, B, C, D, X[ 1],  3);
-        D = HH(D, A, B, C, X[ 9],  9);
-        C = HH(C, D, A, B, X[ 5], 11);
-        B = HH(B, C, D, A, X[13], 15);
-        A = HH(A, B, C, D, X[ 3],  3);
-        D = HH(D, A, B, C, X[11],  9);
-        C = HH(C, D, A, B, X[ 7], 11);
-        B = HH(B, C, D, A, X[15], 15);
-
-        context[0] += A;
-        context[1] += B;
-        context[2] += C;
-        context[3] += D;
+    /**
+     *    MD4 basic transformation of 512 bits from little endian buffer starting from index
+     */
+    private void transform (ByteBuffer block, int index) {
+        transform(block.getInt(index),      block.getInt(index + 4),
+                  block.getInt(index + 8),  block.getInt(index + 12),
+                  block.getInt(index + 16), block.getInt(index + 20),
+                  block.getInt(index + 24), block.getInt(index + 28),
+                  block.getInt(index + 32), block.getInt(index + 36),
+                  block.getInt(index + 40), block.getInt(index + 44),
+                  block.getInt(index + 48), block.getInt(index + 52),
+                  block.getInt(index + 56), block.getInt(index + 60));
+    }
+
+    /**
+     *    MD4 rounds over 16 32-bit words of input block
+     */
+    private void transform (int x0, int x1, int x2, int x3, int x4, int x5, int x6, int x7,
+                            int x8, int x9, int x10, int x11, int x12, int x13, int x14, int x15) {
+        int A = context0;
+        int B = context1;
+        int C = context2;
+        int D = context3;
+
+        A = FF(A, B, C, D, x0,  3);
+        D = FF(D, A, B, C, x1,  7);
+        C = FF(C, D, A, B, x2, 11);
+        B = FF(B, C, D, A, x3, 19);
+        A = FF(A, B, C, D, x4,  3);
+        D = FF(D, A, B, C, x5,  7);
+        C = FF(C, D, A, B, x6, 11);
+        B = FF(B, C, D, A, x7, 19);
+        A = FF(A, B, C, D, x8,  3);
+        D = FF(D, A, B, C, x9,  7);
+        C = FF(C, D, A, B, x10, 11);
+        B = FF(B, C, D, A, x11, 19);
+        A = FF(A, B, C, D, x12,  3);
+        D = FF(D, A, B, C, x13,  7);
+        C = FF(C, D, A, B, x14, 11);
+        B = FF(B, C, D, A, x15, 19);
+
+        A = GG(A, B, C, D, x0,  3);
+        D = GG(D, A, B, C, x4,  5);
+        C = GG(C, D, A, B, x8,  9);
+        B = GG(B, C, D, A, x12, 13);
+        A = GG(A, B, C, D, x1,  3);
+        D = GG(D, A, B, C, x5,  5);
+        C = GG(C, D, A, B, x9,  9);
+        B = GG(B, C, D, A, x13, 13);
+        A = GG(A, B, C, D, x2,  3);
+        D = GG(D, A, B, C, x6,  5);
+        C = GG(C, D, A, B, x10,  9);
+        B = GG(B, C, D, A, x14, 13);
+        A = GG(A, B, C, D, x3,  3);
+        D = GG(D, A, B, C, x7,  5);
+        C = GG(C, D, A, B, x11,  9);
+        B = GG(B, C, D, A, x15, 13);
+
+        A = HH(A, B, C, D, x0,  3);
+        D = HH(D, A, B, C, x8,  9);
+        C = HH(C, D, A, B, x4, 11);
+        B = HH(B, C, D, A, x12, 15);
+        A = HH(A, B, C, D, x2,  3);
+        D = HH(D, A, B, C, x10,  9);
+        C = HH(C, D, A, B, x6, 11);
+        B = HH(B, C, D, A, x14, 15);
+        A = HH(A, B, C, D, x1,  3);
+        D = HH(D, A, B, C, x9,  9);
+        C = HH(C, D, A, B, x5, 11);
+        B = HH(B, C, D, A, x13, 15);
+        A = HH(A, B, C, D, x3,  3);
+        D = HH(D, A, B, C, x11,  9);
+        C = HH(C, D, A, B, x7, 11);
+        B = HH(B, C, D, A, x15, 15);
+
+        context0 += A;
+        context1 += B;
+        context2 += C;
+        context3 += D;
     }
 
     // The basic MD4 atomic functions.
 
-    private int FF (int a, int b, int c, int d, int x, int s) {
+    private static int FF (int a, int b, int c, int d, int x, int s) {
         int t = a + ((b & c) | (~b & d)) + x;
         return t << s | t >>> (32 - s);
     }
-    private int GG (int a, int b, int c, int d, int x, int s) {
+    private static int GG (int a, int b, int c, int d, int x, int s) {
         int t = a + ((b & (c | d)) | (c & d)) + x + 0x5A827999;
         return t << s | t >>> (32 - s);
     }
-    private int HH (int a, int b, int c, int d, int x, int s) {
+    private static int HH (int a, int b, int c, int d, int x, int s) {
         int t = a + (b ^ c ^ d) + x + 0x6ED9EBA1;
         return t << s | t >>> (32 - s);
     }
-}
\ No newline at end of file
+}
@@ -3,26 +3,102 @@ package org.dkf.jed2k.pool;
 import org.dkf.jed2k.Constants;
 
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 
 /**
  * Created by inkpot on 08.07.2016.
+ * buffers of block size are slices of large direct memory slabs, so socket reads and file writes
+ * avoid intermediate copy to temporary direct buffer NIO uses for heap buffers
+ * slab memory is released when all slices of slab were destroyed by pool
  */
 public class BufferPool extends Pool<ByteBuffer> {
-    private int maxBuffersCount = 0;
-    private int allocatedBuffersCount = 0;
-    private int maxAllocatedCount = 0;
-    LinkedList<ByteBuffer>  freeBuffers = new LinkedList<ByteBuffer>();
-    LinkedList<Long> bufferReleaseTimes = new LinkedList<Long>();
+    static final int SLAB_BLOCKS = 8;
 
+    private static class Slab {
+        final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+        int used = 0;
+
+        Slab(int blocks) {
+            ByteBuffer region = ByteBuffer.allocateDirect(blocks*Constants.BLOCK_SIZE_INT);
+            for(int i = 0; i < blocks; ++i) {
+                region.limit((i + 1)*Constants.BLOCK_SIZE_INT);
+                region.position(i*Constants.BLOCK_SIZE_INT);
+                free.add(region.slice());
+            }
+        }
+    }
+
+    private final boolean direct;
+    private final IdentityHashMap<ByteBuffer, Slab> owners = new IdentityHashMap<ByteBuffer, Slab>();
+
+    /**
+     * slabs which have free slices
+     */
+    private final LinkedList<Slab> partialSlabs = new LinkedList<Slab>();
+    private int slabsCount = 0;
 
     public BufferPool(int maxBuffers) {
+        this(maxBuffers, true);
+    }
+
+    /**
+     * @param maxBuffers max count of buffers allocated at the same time
+     * @param direct use slabs of direct memory, otherwise each buffer is separate heap buffer
+     */
+    public BufferPool(int maxBuffers, boolean direct) {
         super(maxBuffers);
-        maxBuffersCount = maxBuffers;
+        this.direct = direct;
     }
 
     @Override
     protected ByteBuffer createObject() {
-        return ByteBuffer.allocate(Constants.BLOCK_SIZE_INT);
+        if (!direct) return ByteBuffer.allocate(Constants.BLOCK_SIZE_INT);
+
+        // fill the most used slab first, so less used slabs have chance to become free
+        Slab slab = null;
+        for(final Slab candidate: partialSlabs) {
+            if (slab == null || candidate.used > slab.used) slab = candidate;
+        }
+
+        if (slab == null) {
+            slab = new Slab(SLAB_BLOCKS);
+            partialSlabs.add(slab);
+            slabsCount++;
+        }
+
+        ByteBuffer res = slab.free.poll();
+        slab.used++;
+        if (slab.free.isEmpty()) partialSlabs.remove(slab);
+        owners.put(res, slab);
+        res.clear();
+        return res;
+    }
+
+    @Override
+    protected void destroyObject(ByteBuffer b) {
+        Slab slab = owners.remove(b);
+        if (slab == null) return;
+        if (slab.free.isEmpty()) partialSlabs.add(slab);
+        slab.free.add(b);
+        slab.used--;
+
+        // no slices in use - drop slab and let GC free it's memory
+        if (slab.used == 0) {
+            partialSlabs.remove(slab);
+            slabsCount--;
+        }
+    }
+
+    /**
+     * @return count of direct memory slabs currently held by pool
+     */
+    public int slabsCount() {
+        return slabsCount;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " slabs {" + slabsCount + "}";
     }
 }
@@ -9,9 +9,25 @@ public abstract class Pool<T> {
     private int maxBuffersCount = 0;
     private int allocatedBuffersCount = 0;
     private int maxAllocatedCount = 0;
+
+    /**
+     * free buffers with release times, most recently released buffer is the first
+     */
     LinkedList<T> freeBuffers = new LinkedList<>();
     LinkedList<Long> bufferReleaseTimes = new LinkedList<Long>();
 
+    /**
+     * cached buffer is destroyed when it wasn't used this time in milliseconds, zero means never
+     */
+    private long maxIdleTime = 0;
+
+    /**
+     * statistics: successful allocations, allocations which created new object and allocations failed by limit
+     */
+    private long allocations = 0;
+    private long misses = 0;
+    private long failures = 0;
+
 
     public Pool(int maxBuffers) {
         assert(maxBuffers > 0);
@@ -20,6 +36,13 @@ public abstract class Pool<T> {
 
     protected abstract T createObject();
 
+    /**
+     * called when object leaves pool completely, override to reclaim object's resources
+     * @param b object neither allocated nor cached anymore
+     */
+    protected void destroyObject(T b) {
+    }
+
     public T allocate() {
         T b = freeBuffers.poll();
         Long releaseTime = bufferReleaseTimes.poll();
@@ -27,12 +50,17 @@ public abstract class Pool<T> {
 
         if (b == null && allocatedBuffersCount < maxBuffersCount) {
             b = createObject();
+            misses++;
         }
 
         if (b != null) {
             allocatedBuffersCount++;
+            allocations++;
             maxAllocatedCount = Math.max(maxAllocatedCount, allocatedBuffersCount);
+        } else {
+            failures++;
         }
+
         return b;
     }
 
@@ -50,6 +78,8 @@ public abstract class Pool<T> {
         if (maxBuffersCount > allocatedBuffersCount + cachedBuffers()) {
             freeBuffers.addFirst(b);
             bufferReleaseTimes.addFirst(sessionTime);
+        } else {
+            destroyObject(b);
         }
     }
 
@@ -61,22 +91,67 @@ public abstract class Pool<T> {
         return allocatedBuffersCount;
     }
 
+    /**
+     * @return max count of buffers allocated at the same time
+     */
+    public int maxBuffers() {
+        return maxBuffersCount;
+    }
+
+    /**
+     * @return count of buffers which still can be allocated from this pool
+     */
+    public int availableBuffers() {
+        return Math.max(maxBuffersCount - allocatedBuffersCount, 0);
+    }
+
     int reduceCache(int cacheSize) {
-        if (cacheSize == 0) {
-            freeBuffers.clear();
-            bufferReleaseTimes.clear();
-        } else {
-            while(freeBuffers.size() > cacheSize) {
-                freeBuffers.removeFirst();
-                bufferReleaseTimes.removeFirst();
-            }
+        while(freeBuffers.size() > cacheSize) {
+            destroyObject(freeBuffers.removeFirst());
+            bufferReleaseTimes.removeFirst();
         }
 
         return freeBuffers.size();
     }
 
+    /**
+     * free cached buffers which were not used longer than max idle time
+     * @param currentSessionTime current session time in milliseconds
+     */
     public void secondTick(long currentSessionTime) {
-        // free obsolete buffers
+        if (maxIdleTime <= 0) return;
+        while(!bufferReleaseTimes.isEmpty() && currentSessionTime - bufferReleaseTimes.getLast() >= maxIdleTime) {
+            destroyObject(freeBuffers.removeLast());
+            bufferReleaseTimes.removeLast();
+        }
+    }
+
+    /**
+     * @param idleTime time in milliseconds after that unused cached buffer will be freed, zero means never
+     */
+    public void setMaxIdleTime(long idleTime) {
+        maxIdleTime = idleTime;
+    }
+
+    /**
+     * @return count of successful allocations
+     */
+    public long allocations() {
+        return allocations;
+    }
+
+    /**
+     * @return count of allocations which found no cached buffer and created new one
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * @return count of allocations failed because of buffers limit
+     */
+    public long failures() {
+        return failures;
     }
 
     /**
@@ -97,6 +172,6 @@ public abstract class Pool<T> {
 
     @Override
     public String toString() {
-        return "buffer pool max{" + maxBuffersCount + "} allocated/maxallocated {" + allocatedBuffersCount + "/" + maxAllocatedCount + "} free {" + freeBuffers.size() + "}";
+        return "buffer pool max{" + maxBuffersCount + "} allocated/maxallocated {" + allocatedBuffersCount + "/" + maxAllocatedCount + "} free {" + freeBuffers.size() + "} allocations/misses/failures {" + allocations + "/" + misses + "/" + failures + "}";
     }
 }
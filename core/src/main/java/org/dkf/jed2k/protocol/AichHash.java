@@ -0,0 +1,96 @@
+package org.dkf.jed2k.protocol;
+
+import org.dkf.jed2k.exception.JED2KException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.dkf.jed2k.Utils.byte2String;
+
+/**
+ * SHA-1 hash of AICH hash tree node
+ */
+public class AichHash implements Serializable, Comparable<AichHash> {
+    public static final int HASH_SIZE = 20;
+
+    private final byte[] value = new byte[HASH_SIZE];
+
+    public AichHash() {
+
+    }
+
+    public AichHash(final AichHash h) {
+        assign(h);
+    }
+
+    public AichHash assign(final AichHash h) {
+        System.arraycopy(h.value, 0, value, 0, HASH_SIZE);
+        return this;
+    }
+
+    public static AichHash fromBytes(byte[] value) {
+        assert value.length == HASH_SIZE;
+        AichHash res = new AichHash();
+        System.arraycopy(value, 0, res.value, 0, HASH_SIZE);
+        return res;
+    }
+
+    public static AichHash fromString(String value) {
+        assert value.length() == HASH_SIZE*2;
+        AichHash res = new AichHash();
+        for (int i = 0; i < HASH_SIZE*2; i += 2) {
+            res.value[i/2] = (byte) ((Character.digit(value.charAt(i), 16) << 4) + Character.digit(value.charAt(i+1), 16));
+        }
+
+        return res;
+    }
+
+    public byte[] getBytes() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return byte2String(value);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj instanceof AichHash) {
+            return Arrays.equals(value, ((AichHash)obj).value);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(value);
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        return src.get(value);
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        return dst.put(value);
+    }
+
+    @Override
+    public int bytesCount() {
+        return HASH_SIZE;
+    }
+
+    @Override
+    public int compareTo(AichHash h) {
+        for(int i = 0; i < HASH_SIZE; ++i) {
+            int diff = (value[i] & 0xff) - (h.value[i] & 0xff);
+            if (diff != 0) return (diff < 0)?-1:1;
+        }
+
+        return 0;
+    }
+}
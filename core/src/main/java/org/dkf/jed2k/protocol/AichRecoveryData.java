@@ -0,0 +1,95 @@
+package org.dkf.jed2k.protocol;
+
+import org.dkf.jed2k.exception.JED2KException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * AICH hashes of one part: hashes of tree nodes required to verify the part against master hash
+ * and hashes of all part's blocks, each hash has identifier of it's position in tree
+ * format is <count 2>(<ident 2><hash 20>)[count] and for large files <count 4>(<ident 4><hash 20>)[count] follows
+ * 16 bit section with zero count
+ */
+public class AichRecoveryData implements Serializable {
+
+    /**
+     * identifier is path from root to the node: leading 1 bit of root, then 1 for left and 0 for right branch on each level
+     */
+    public static class Entry {
+        public final long ident;
+        public final AichHash hash;
+
+        public Entry(long ident, final AichHash hash) {
+            this.ident = ident;
+            this.hash = hash;
+        }
+    }
+
+    public final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private boolean largeIdents = false;
+
+    public AichRecoveryData() {
+
+    }
+
+    /**
+     * @param largeIdents write entries with 32 bit identifiers
+     */
+    public AichRecoveryData(boolean largeIdents) {
+        this.largeIdents = largeIdents;
+    }
+
+    public void add(long ident, final AichHash hash) {
+        assert ident <= (largeIdents?UInt32.MAX_VALUE:UInt16.MAX_VALUE);
+        entries.add(new Entry(ident, hash));
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        entries.clear();
+        UInt16 count = Unsigned.uint16();
+        count.get(src);
+        for(int i = 0; i < count.intValue(); ++i) {
+            UInt16 ident = Unsigned.uint16();
+            AichHash h = new AichHash();
+            h.get(ident.get(src));
+            entries.add(new Entry(ident.longValue(), h));
+        }
+
+        largeIdents = src.remaining() >= UInt32.SIZE;
+
+        if (largeIdents) {
+            UInt32 largeCount = Unsigned.uint32();
+            largeCount.get(src);
+            for(long i = 0; i < largeCount.longValue(); ++i) {
+                UInt32 ident = Unsigned.uint32();
+                AichHash h = new AichHash();
+                h.get(ident.get(src));
+                entries.add(new Entry(ident.longValue(), h));
+            }
+        }
+
+        return src;
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        if (largeIdents) {
+            Unsigned.uint16(0).put(dst);
+            Unsigned.uint32(entries.size()).put(dst);
+            for(final Entry e: entries) e.hash.put(Unsigned.uint32((int)e.ident).put(dst));
+        } else {
+            Unsigned.uint16(entries.size()).put(dst);
+            for(final Entry e: entries) e.hash.put(Unsigned.uint16((int)e.ident).put(dst));
+        }
+
+        return dst;
+    }
+
+    @Override
+    public int bytesCount() {
+        if (largeIdents) return UInt16.SIZE + UInt32.SIZE + entries.size()*(UInt32.SIZE + AichHash.HASH_SIZE);
+        return UInt16.SIZE + entries.size()*(UInt16.SIZE + AichHash.HASH_SIZE);
+    }
+}
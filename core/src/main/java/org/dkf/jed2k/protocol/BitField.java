@@ -66,6 +66,23 @@ public class BitField implements Iterable<Boolean>, Serializable {
         return m_size;
     }
 
+    /**
+     * bits are ordered as in bytes: bit 64*index is the most significant bit of word
+     * @param index index of word
+     * @return 64 bits starting from bit 64*index, bits out of size are zero
+     */
+    public long getWord(int index) {
+        assert(index >= 0);
+        long res = 0;
+        int offset = index*8;
+        for(int i = 0; i < 8; ++i) {
+            res <<= 8;
+            if (m_bytes != null && offset + i < m_bytes.length) res |= m_bytes[offset + i] & 0xff;
+        }
+
+        return res;
+    }
+
     public boolean empty() {
         return m_size == 0;
     }
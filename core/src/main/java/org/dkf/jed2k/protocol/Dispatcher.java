@@ -38,4 +38,11 @@ public interface Dispatcher {
     public void onClientSendingPart64(SendingPart64 value) throws JED2KException;
     public void onClientCompressedPart32(CompressedPart32 value) throws JED2KException;
     public void onClientCompressedPart64(CompressedPart64 value) throws JED2KException;
+    public void onClientStartUpload(StartUpload value) throws JED2KException;
+    public void onClientRequestParts32(RequestParts32 value) throws JED2KException;
+    public void onClientRequestParts64(RequestParts64 value) throws JED2KException;
+    public void onClientAichFileHashRequest(AichFileHashRequest value) throws JED2KException;
+    public void onClientAichFileHashAnswer(AichFileHashAnswer value) throws JED2KException;
+    public void onClientAichRequest(AichRequest value) throws JED2KException;
+    public void onClientAichAnswer(AichAnswer value) throws JED2KException;
 }
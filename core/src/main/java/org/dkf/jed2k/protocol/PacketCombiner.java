@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -30,8 +31,22 @@ public abstract class PacketCombiner {
         }
     }
 
+    /**
+     * upper bound of decompressed packet size
+     */
+    private static final int MAX_INFLATED_SIZE = 4*1024*1024;
+    private static final int MIN_INFLATE_BUFFER_SIZE = 1024;
+
     private PacketHeader reusableHeader = new PacketHeader();
 
+    /**
+     * decompression state reused by all packed packets of this combiner
+     */
+    private Inflater inflater = null;
+    private byte[] compressedData = null;
+    private byte[] plainData = null;
+    private ByteBuffer plainBuffer = null;
+
     /**
      *
      * @param header - packet header
@@ -44,68 +59,91 @@ public abstract class PacketCombiner {
         assert(src.remaining() == serviceSize(header));
 
         // special case for packed protocol - both tcp and KAD udp
-        if (header.key().protocol == ProtocolType.OP_PACKEDPROT.value || header.key().protocol == ProtocolType.OP_KAD_COMPRESSED_UDP.value) {
-            byte[] compressedData = new byte[src.remaining()];
-            byte[] plainData = new byte[src.remaining()*10];
-            src.get(compressedData);
-            Inflater decompresser = new Inflater();
-            decompresser.setInput(compressedData, 0, compressedData.length);
-            int resultLength = 0;
-            try {
-                resultLength = decompresser.inflate(plainData);
-                log.trace("Compressed data size {} uncompressed data size {}", compressedData.length, resultLength);
-            } catch(DataFormatException e) {
-                throw new JED2KException(ErrorCode.INFLATE_ERROR);
-            }
+        if (header.protocol == ProtocolType.OP_PACKEDPROT.value || header.protocol == ProtocolType.OP_KAD_COMPRESSED_UDP.value) {
+            src = inflate(src);
+            header.size = src.remaining();   // keep packed protocol value in header
+        }
 
-            decompresser.end();
-            src.clear();
+        PacketFactory factory = packets().get(header.protocol, header.packet);
+        Serializable ph = null;
 
-            // TODO (apavlov) need mechanism to increase buffer size and set it to originator because now buffer will use only once
-            if (src.capacity() < resultLength) {
-                log.debug("re-create input buffer due to decompress size to {}", resultLength);
-                src = ByteBuffer.allocate(resultLength);
-                src.order(ByteOrder.LITTLE_ENDIAN);
+        if (factory != null) {
+            ph = factory.create();
+        } else {
+            log.error("[combiner] unable to find correspond packet for {}", header);
+            if (src.hasArray()) {
+                log.trace("[combiner] packet dump \n{}", HexDump.dump(src.array()
+                        , src.arrayOffset() + src.position()
+                        , Math.min(src.remaining(), Math.min(Math.max(header.size, 0), 256))));
             }
+            ph = new BytesSkipper(serviceSize(header));
+        }
 
-            src.put(plainData, 0, resultLength);
-            src.flip();
-            header.reset(header.key(), resultLength);   // use correct protocol value here to be compatible with HashMap
+        if (ph instanceof SoftSerializable) {
+            ((SoftSerializable)ph).get(src, serviceSize(header));
+        } else {
+            ph.get(src);
         }
 
-        PacketKey key = header.key();
-        Class<? extends Serializable> clazz = keyToPacket(key);
-        Serializable ph = null;
+        return ph;
+    }
 
-        if (clazz != null) {
-            try {
-                ph = clazz.newInstance();
-            } catch(InstantiationException e) {
-                throw new JED2KException(e, ErrorCode.GENERIC_INSTANTIATION_ERROR);
-            } catch (IllegalAccessException e) {
-                throw new JED2KException(e, ErrorCode.GENERIC_ILLEGAL_ACCESS);
-            }
+    /**
+     * inflate remaining data of source buffer into combiner's buffer, source buffer will be consumed
+     * @param src compressed data
+     * @return combiner's buffer with decompressed data, valid until next call
+     * @throws JED2KException
+     */
+    private ByteBuffer inflate(ByteBuffer src) throws JED2KException {
+        int compressedLength = src.remaining();
+
+        if (inflater == null) {
+            inflater = new Inflater();
         } else {
-            log.error("[combiner] unable to find correspond packet for {}", header);
-            log.trace("[combiner] packet dump \n{}", HexDump.dump(src.array()
-                    , 0
-                    , Math.min(src.remaining(), Math.min(Math.max(header.size, 0), 256))));
-            ph = new BytesSkipper(serviceSize(header));
+            inflater.reset();
+        }
+
+        if (src.hasArray()) {
+            inflater.setInput(src.array(), src.arrayOffset() + src.position(), compressedLength);
+        } else {
+            if (compressedData == null || compressedData.length < compressedLength) compressedData = new byte[compressedLength];
+            src.duplicate().get(compressedData, 0, compressedLength);
+            inflater.setInput(compressedData, 0, compressedLength);
+        }
+
+        src.position(src.limit());
+
+        if (plainData == null) {
+            plainData = new byte[Math.min(Math.max(compressedLength*4, MIN_INFLATE_BUFFER_SIZE), MAX_INFLATED_SIZE)];
         }
 
+        int resultLength = 0;
         try {
-            if (ph instanceof SoftSerializable) {
-                SoftSerializable ssp = (SoftSerializable)ph;
-                assert(ssp != null);
-                ssp.get(src, serviceSize(header));
-            } else {
-                ph.get(src);
+            while(!inflater.finished()) {
+                if (resultLength == plainData.length) {
+                    if (plainData.length >= MAX_INFLATED_SIZE) throw new JED2KException(ErrorCode.INFLATE_ERROR);
+                    plainData = Arrays.copyOf(plainData, Math.min(plainData.length*2, MAX_INFLATED_SIZE));
+                }
+
+                int n = inflater.inflate(plainData, resultLength, plainData.length - resultLength);
+                // truncated stream - use data inflated so far
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                resultLength += n;
             }
-        } catch(JED2KException e) {
-            throw e;
+        } catch(DataFormatException e) {
+            throw new JED2KException(ErrorCode.INFLATE_ERROR);
         }
 
-        return ph;
+        log.trace("Compressed data size {} uncompressed data size {}", compressedLength, resultLength);
+
+        if (plainBuffer == null || plainBuffer.array() != plainData) {
+            plainBuffer = ByteBuffer.wrap(plainData);
+            plainBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        plainBuffer.clear();
+        plainBuffer.limit(resultLength);
+        return plainBuffer;
     }
 
     /**
@@ -116,12 +154,12 @@ public abstract class PacketCombiner {
      * @throws JED2KException
      */
     public boolean pack(Serializable object, ByteBuffer dst) throws JED2KException {
-        PacketKey key = classToKey(object.getClass());
+        PacketKey key = packets().key(object.getClass());
         assert(key != null);
         // use appropriate header here
         PacketHeader outgoingHeader = getHeader();
         if ((outgoingHeader.bytesCount() + object.bytesCount()) < dst.remaining()) {
-            outgoingHeader.reset(key, object.bytesCount() + 1);
+            outgoingHeader.reset(key, object.bytesCount() + payloadSize(object) + 1);
             assert(outgoingHeader.isDefined());
             outgoingHeader.put(dst);
             object.put(dst);
@@ -131,8 +169,20 @@ public abstract class PacketCombiner {
         return false;
     }
 
-    protected abstract Class<? extends Serializable> keyToPacket(PacketKey key);
-    protected abstract PacketKey classToKey(Class<? extends Serializable> clazz);
+    /**
+     * some packets are followed by payload data which is not part of the structure, for example parts of file
+     * payload is written to the channel by owner directly after packet
+     * @param object outgoing structure
+     * @return size of payload data which follows the structure
+     */
+    protected int payloadSize(Serializable object) {
+        return 0;
+    }
+
+    /**
+     * @return table of packets supported by this combiner
+     */
+    protected abstract PacketTable packets();
     public abstract int serviceSize(PacketHeader ph);
 
     /**
@@ -0,0 +1,8 @@
+package org.dkf.jed2k.protocol;
+
+/**
+ * creates new instance of incoming packet structure without reflection
+ */
+public interface PacketFactory {
+    Serializable create();
+}
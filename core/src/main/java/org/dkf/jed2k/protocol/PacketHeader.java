@@ -60,6 +60,14 @@ public class PacketHeader implements Serializable {
         return size - 1;
     }
 
+    /**
+     * @param key packet key
+     * @return true if header describes packet with the key
+     */
+    public final boolean matches(PacketKey key) {
+        return PacketKey.compare(protocol, packet, key.protocol, key.packet) == 0;
+    }
+
     public final PacketKey key() {
         assert(isDefined());
         return new PacketKey(protocol, packet);
@@ -23,15 +23,22 @@ public class PacketKey implements Comparable<PacketKey> {
      */
     @Override
     public int compareTo(PacketKey pk) {
-        if (pk.protocol != PacketCombiner.ProtocolType.OP_PACKEDPROT.value
+        return compare(protocol, packet, pk.protocol, pk.packet);
+    }
+
+    /**
+     * compare two packet keys given by protocol and packet without creation of key objects
+     */
+    public static int compare(byte protocol, byte packet, byte otherProtocol, byte otherPacket) {
+        if (otherProtocol != PacketCombiner.ProtocolType.OP_PACKEDPROT.value
                 && protocol != PacketCombiner.ProtocolType.OP_PACKEDPROT.value
-                && pk.protocol != PacketCombiner.ProtocolType.OP_KAD_COMPRESSED_UDP.value
+                && otherProtocol != PacketCombiner.ProtocolType.OP_KAD_COMPRESSED_UDP.value
                 && protocol != PacketCombiner.ProtocolType.OP_KAD_COMPRESSED_UDP.value) {
-            if (protocol > pk.protocol) return 1;
-            if (protocol < pk.protocol) return -1;
+            if (protocol > otherProtocol) return 1;
+            if (protocol < otherProtocol) return -1;
         }
-        if (packet > pk.packet) return 1;
-        if (packet < pk.packet) return -1;
+        if (packet > otherPacket) return 1;
+        if (packet < otherPacket) return -1;
         return 0;
     }
 
@@ -0,0 +1,64 @@
+package org.dkf.jed2k.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * packet factories indexed by protocol and packet opcode for decoding
+ * and packet keys by structure class for encoding
+ */
+public class PacketTable {
+    private final PacketFactory[][] factories = new PacketFactory[256][];
+    private final Map<Class<? extends Serializable>, PacketKey> keys = new HashMap<>();
+
+    /**
+     * register packet structure
+     * compressed packets have packed protocol in header, so factory is registered for packed protocol too.
+     * packed protocol doesn't distinguish standard and extended packets with the same opcode, extended wins
+     * @param protocol protocol of uncompressed packet
+     * @param packet opcode
+     * @param clazz structure class
+     * @param factory creates instance of structure, null for outgoing only structures
+     */
+    public void add(byte protocol, byte packet, Class<? extends Serializable> clazz, PacketFactory factory) {
+        assert(get(protocol, packet) == null);
+        assert(clazz != null);
+        PacketKey pk = new PacketKey(protocol, packet);
+        keys.put(clazz, pk);
+        if (factory == null) return;
+
+        set(protocol, packet, factory);
+        byte packed = pk.normalizedProtocol();
+        if (packed != protocol && (get(packed, packet) == null || protocol == PacketCombiner.ProtocolType.OP_EMULEPROT.value)) {
+            set(packed, packet, factory);
+        }
+    }
+
+    private void set(byte protocol, byte packet, PacketFactory factory) {
+        PacketFactory[] row = factories[protocol & 0xff];
+        if (row == null) {
+            row = new PacketFactory[256];
+            factories[protocol & 0xff] = row;
+        }
+
+        row[packet & 0xff] = factory;
+    }
+
+    /**
+     * @param protocol protocol from header
+     * @param packet opcode from header
+     * @return factory of packet structure or null if packet is not supported
+     */
+    public PacketFactory get(byte protocol, byte packet) {
+        PacketFactory[] row = factories[protocol & 0xff];
+        return (row != null)?row[packet & 0xff]:null;
+    }
+
+    /**
+     * @param clazz structure class
+     * @return packet key for outgoing structure or null if structure is not registered
+     */
+    public PacketKey key(Class<? extends Serializable> clazz) {
+        return keys.get(clazz);
+    }
+}
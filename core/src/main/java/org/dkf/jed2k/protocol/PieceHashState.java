@@ -0,0 +1,60 @@
+package org.dkf.jed2k.protocol;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.MD4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MD4 state of partially downloaded piece after it's first blocks
+ * restored transfer continues piece hashing from this state without reading these blocks from file
+ */
+public class PieceHashState implements Serializable {
+    public final UInt32 pieceIndex = Unsigned.uint32();
+    public final UInt16 blocks = Unsigned.uint16();
+    public final Hash context = new Hash();
+
+    public PieceHashState() {
+
+    }
+
+    /**
+     * @param pieceIndex piece index
+     * @param blocks count of hashed blocks from piece start
+     * @param context MD4 chaining value after these blocks
+     */
+    public PieceHashState(int pieceIndex, int blocks, byte[] context) {
+        this.pieceIndex.assign(pieceIndex);
+        this.blocks.assign(blocks);
+        this.context.assign(Hash.fromBytes(context));
+    }
+
+    /**
+     * @return MD4 chaining value
+     */
+    public byte[] getContext() {
+        byte[] res = new byte[MD4.HASH_SIZE];
+        for(int i = 0; i < res.length; ++i) res[i] = context.at(i);
+        return res;
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        return context.get(blocks.get(pieceIndex.get(src)));
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        return context.put(blocks.put(pieceIndex.put(dst)));
+    }
+
+    @Override
+    public int bytesCount() {
+        return pieceIndex.bytesCount() + blocks.bytesCount() + context.bytesCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PieceHashState piece %d blocks %d", pieceIndex.intValue(), blocks.intValue());
+    }
+}
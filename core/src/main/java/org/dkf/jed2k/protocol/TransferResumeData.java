@@ -8,29 +8,33 @@ import java.nio.ByteBuffer;
 /**
  * Created by inkpot on 01.07.2016.
  * Transfer resume data for restore transfer state after restart
- *
+ * hash states are optional for compatibility with resume data saved without them
  */
 public class TransferResumeData implements Serializable {
     public Container<UInt16, Hash> hashes  = Container.makeShort(Hash.class);
     public BitField pieces = new BitField();
     public Container<UInt16, PieceBlock> downloadedBlocks = Container.makeShort(PieceBlock.class);
     public Container<UInt16, Endpoint> peers = Container.makeShort(Endpoint.class);
+    public Container<UInt16, PieceHashState> hashStates = Container.makeShort(PieceHashState.class);
 
     @Override
     public ByteBuffer get(ByteBuffer src) throws JED2KException {
-        return peers.get(downloadedBlocks.get(pieces.get(hashes.get(src))));
+        peers.get(downloadedBlocks.get(pieces.get(hashes.get(src))));
+        if (src.hasRemaining()) hashStates.get(src);
+        return src;
     }
 
     @Override
     public ByteBuffer put(ByteBuffer dst) throws JED2KException {
-        return peers.put(
-                downloadedBlocks.put(
+        return hashStates.put(
+                peers.put(
+                    downloadedBlocks.put(
                         pieces.put(
-                                hashes.put(dst))));
+                                hashes.put(dst)))));
     }
 
     @Override
     public int bytesCount() {
-        return hashes.bytesCount() + pieces.bytesCount() + downloadedBlocks.bytesCount() + peers.bytesCount();
+        return hashes.bytesCount() + pieces.bytesCount() + downloadedBlocks.bytesCount() + peers.bytesCount() + hashStates.bytesCount();
     }
 }
@@ -23,6 +23,8 @@ public class UInt16 extends UNumber implements Comparable<UInt16>{
      */
     public static final int   MAX_VALUE        = 0xffff;
 
+    public static final int SIZE = 2;
+
     private short value;
 
     public UInt16(){
@@ -0,0 +1,65 @@
+package org.dkf.jed2k.protocol.client;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AICH recovery data of part, answer with file hash only means remote peer has no recovery data
+ */
+public class AichAnswer implements Serializable, Dispatchable {
+    public final Hash hash = new Hash();
+    public final UInt16 part = Unsigned.uint16();
+    public final AichHash masterHash = new AichHash();
+    public final AichRecoveryData data = new AichRecoveryData();
+    private boolean empty = false;
+
+    public AichAnswer() {
+
+    }
+
+    /**
+     * empty answer
+     * @param hash file hash
+     */
+    public AichAnswer(final Hash hash) {
+        this.hash.assign(hash);
+        this.empty = true;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        hash.get(src);
+        empty = !src.hasRemaining();
+        if (empty) return src;
+        return data.get(masterHash.get(part.get(src)));
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        hash.put(dst);
+        if (empty) return dst;
+        return data.put(masterHash.put(part.put(dst)));
+    }
+
+    @Override
+    public int bytesCount() {
+        if (empty) return hash.bytesCount();
+        return hash.bytesCount() + part.bytesCount() + masterHash.bytesCount() + data.bytesCount();
+    }
+
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientAichAnswer(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AichAnswer %s part %d hashes %d", hash, part.intValue(), data.entries.size());
+    }
+}
@@ -0,0 +1,39 @@
+package org.dkf.jed2k.protocol.client;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AICH master hash of file
+ */
+public class AichFileHashAnswer implements Serializable, Dispatchable {
+    public final Hash hash = new Hash();
+    public final AichHash masterHash = new AichHash();
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        return masterHash.get(hash.get(src));
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        return masterHash.put(hash.put(dst));
+    }
+
+    @Override
+    public int bytesCount() {
+        return hash.bytesCount() + masterHash.bytesCount();
+    }
+
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientAichFileHashAnswer(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AichFileHashAnswer %s %s", hash, masterHash);
+    }
+}
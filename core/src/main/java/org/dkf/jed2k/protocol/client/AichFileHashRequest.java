@@ -0,0 +1,27 @@
+package org.dkf.jed2k.protocol.client;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Dispatchable;
+import org.dkf.jed2k.protocol.Dispatcher;
+import org.dkf.jed2k.protocol.Hash;
+
+public class AichFileHashRequest extends Hash implements Dispatchable {
+
+    public AichFileHashRequest(Hash hash) {
+        super(hash);
+    }
+
+    public AichFileHashRequest() {
+        super();
+    }
+
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientAichFileHashRequest(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AichFileHashRequest %s", super.toString());
+    }
+}
@@ -0,0 +1,50 @@
+package org.dkf.jed2k.protocol.client;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * request of AICH recovery data for part of file
+ */
+public class AichRequest implements Serializable, Dispatchable {
+    public final Hash hash = new Hash();
+    public final UInt16 part = Unsigned.uint16();
+    public final AichHash masterHash = new AichHash();
+
+    public AichRequest() {
+
+    }
+
+    public AichRequest(final Hash hash, int part, final AichHash masterHash) {
+        this.hash.assign(hash);
+        this.part.assign(part);
+        this.masterHash.assign(masterHash);
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        return masterHash.get(part.get(hash.get(src)));
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        return masterHash.put(part.put(hash.put(dst)));
+    }
+
+    @Override
+    public int bytesCount() {
+        return hash.bytesCount() + part.bytesCount() + masterHash.bytesCount();
+    }
+
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientAichRequest(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AichRequest %s part %d", hash, part.intValue());
+    }
+}
@@ -6,6 +6,10 @@ import org.dkf.jed2k.protocol.Dispatcher;
 import org.dkf.jed2k.protocol.Hash;
 
 public class FileRequest extends Hash implements Dispatchable {
+    public FileRequest() {
+        super();
+    }
+
     public FileRequest(Hash h) {
         super(h);
     }
@@ -3,10 +3,6 @@ package org.dkf.jed2k.protocol.client;
 import org.dkf.jed2k.hash.MD4;
 import org.dkf.jed2k.protocol.*;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
-
 public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
 	enum StandardClientTcp
     {
@@ -76,8 +72,8 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
         OP_REASKCALLBACKTCP         (0x9A),
         OP_AICHREQUEST              (0x9B), // <HASH 16><uint16><HASH aichhashlen>
         OP_AICHANSWER               (0x9C), // <HASH 16><uint16><HASH aichhashlen> <data>
-        OP_AICHFILEHASHANS          (0x9D),
-        OP_AICHFILEHASHREQ          (0x9E),
+        OP_AICHFILEHASHANS          (0x9D), // <HASH 16><HASH aichhashlen>
+        OP_AICHFILEHASHREQ          (0x9E), // <HASH 16>
         OP_BUDDYPING                (0x9F),
         OP_BUDDYPONG                (0xA0),
         OP_COMPRESSEDPART_I64       (0xA1), // <HASH 16><von 8><size 4><Data len:size>
@@ -94,15 +90,10 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
         }
     }
 
-    protected static final Map<PacketKey, Class<? extends Serializable>> supportedPacketsClient;
-    protected static final Map<Class<? extends Serializable>, PacketKey> struct2KeyClient;
+    protected static final PacketTable packetsClient = new PacketTable();
 
-    private static void addHandlerClient(byte protocol, byte type, Class<? extends Serializable> clazz) {
-        PacketKey pk = new PacketKey(protocol, type);
-        assert(!supportedPacketsClient.containsKey(pk));
-        assert(clazz != null);
-        supportedPacketsClient.put(pk, clazz);
-        struct2KeyClient.put(clazz, pk);
+    private static void addHandlerClient(byte protocol, byte type, Class<? extends Serializable> clazz, PacketFactory factory) {
+        packetsClient.add(protocol, type, clazz, factory);
     }
 
     /**
@@ -114,13 +105,13 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
      */
     public int serviceSize(PacketHeader ph) {
         int size = ph.sizePacket();
-        if (ph.key().compareTo(pkClientSendingPart) == 0)
+        if (ph.matches(pkClientSendingPart))
             size = SendingPart32.SIZE;
-        else if (ph.key().compareTo(pkClientSendingPart64) == 0) // add protocol type check
+        else if (ph.matches(pkClientSendingPart64)) // add protocol type check
             size = SendingPart64.SIZE;
-        else if (ph.key().compareTo(pkClientSendingCompPart) == 0)
+        else if (ph.matches(pkClientSendingCompPart))
             size = MD4.HASH_SIZE + UInt32.SIZE*2;   // TODO - correct this temp code
-        else if (ph.key().compareTo(pkClientSendingCompPart64) == 0)
+        else if (ph.matches(pkClientSendingCompPart64))
             size = MD4.HASH_SIZE + UInt32.SIZE + UInt64.SIZE; // TODO - correct this temp code
         return size;
     }
@@ -131,50 +122,135 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
     private static PacketKey pkClientSendingCompPart64 = PacketKey.pk(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_COMPRESSEDPART_I64.value);
 
     static {
-        supportedPacketsClient = new TreeMap<PacketKey, Class<? extends Serializable>>();
-        struct2KeyClient = new HashMap<Class<? extends Serializable>, PacketKey>();
 
         // client <-> client tcp messages section
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HELLO.value, Hello.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HELLOANSWER.value, HelloAnswer.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_EMULEINFO.value, ExtHello.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_EMULEINFOANSWER.value, ExtHelloAnswer.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HELLO.value, Hello.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Hello(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HELLOANSWER.value, HelloAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new HelloAnswer(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_EMULEINFO.value, ExtHello.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new ExtHello(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_EMULEINFOANSWER.value, ExtHelloAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new ExtHelloAnswer(); }
+        });
+
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQUESTFILENAME.value, FileRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new FileRequest(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQFILENAMEANSWER.value, FileAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new FileAnswer(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQUESTFILENAME.value, FileRequest.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQFILENAMEANSWER.value, FileAnswer.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_CANCELTRANSFER.value, CancelTransfer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new CancelTransfer(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_CANCELTRANSFER.value, CancelTransfer.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_SETREQFILEID.value, FileStatusRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new FileStatusRequest(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_FILEREQANSNOFIL.value, NoFileStatus.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new NoFileStatus(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_FILESTATUS.value, FileStatusAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new FileStatusAnswer(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_SETREQFILEID.value, FileStatusRequest.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_FILEREQANSNOFIL.value, NoFileStatus.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_FILESTATUS.value, FileStatusAnswer.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HASHSETREQUEST.value, HashSetRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new HashSetRequest(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HASHSETANSWER.value, HashSetAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new HashSetAnswer(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HASHSETREQUEST.value, HashSetRequest.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_HASHSETANSWER.value, HashSetAnswer.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_STARTUPLOADREQ.value, StartUpload.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new StartUpload(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_ACCEPTUPLOADREQ.value, AcceptUpload.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new AcceptUpload(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_QUEUERANKING.value, QueueRanking.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new QueueRanking(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_OUTOFPARTREQS.value, OutOfParts.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new OutOfParts(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_STARTUPLOADREQ.value, StartUpload.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_ACCEPTUPLOADREQ.value, AcceptUpload.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_QUEUERANKING.value, QueueRanking.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_OUTOFPARTREQS.value, OutOfParts.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQUESTPARTS.value, RequestParts32.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new RequestParts32(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_REQUESTPARTS_I64.value, RequestParts64.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new RequestParts64(); }
+        });
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_SENDINGPART.value, SendingPart32.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new SendingPart32(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_SENDINGPART_I64.value, SendingPart64.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new SendingPart64(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_REQUESTPARTS.value, RequestParts32.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_REQUESTPARTS_I64.value, RequestParts64.class);
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_SENDINGPART.value, SendingPart32.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_SENDINGPART_I64.value, SendingPart64.class);
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_COMPRESSEDPART.value, CompressedPart32.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new CompressedPart32(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_COMPRESSEDPART_I64.value, CompressedPart64.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new CompressedPart64(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_COMPRESSEDPART.value, CompressedPart32.class);
-        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_COMPRESSEDPART_I64.value, CompressedPart64.class);
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_AICHFILEHASHREQ.value, AichFileHashRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new AichFileHashRequest(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_AICHFILEHASHANS.value, AichFileHashAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new AichFileHashAnswer(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_AICHREQUEST.value, AichRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new AichRequest(); }
+        });
+        addHandlerClient(ProtocolType.OP_EMULEPROT.value, ExtendedClientTcp.OP_AICHANSWER.value, AichAnswer.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new AichAnswer(); }
+        });
 
-        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_END_OF_DOWNLOAD.value, EndDownload.class);
+        addHandlerClient(ProtocolType.OP_EDONKEYPROT.value, StandardClientTcp.OP_END_OF_DOWNLOAD.value, EndDownload.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new EndDownload(); }
+        });
     }
 
     @Override
-    protected Class<? extends Serializable> keyToPacket(PacketKey key) {
-        return supportedPacketsClient.get(key);
+    protected int payloadSize(Serializable object) {
+        if (object instanceof SendingPart) return ((SendingPart)object).payloadSize();
+        return 0;
     }
 
     @Override
-    protected PacketKey classToKey(Class<? extends Serializable> clazz) {
-        return struct2KeyClient.get(clazz);
+    protected PacketTable packets() {
+        return packetsClient;
     }
 }
\ No newline at end of file
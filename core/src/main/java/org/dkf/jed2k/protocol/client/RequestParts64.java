@@ -1,11 +1,14 @@
 package org.dkf.jed2k.protocol.client;
 
 import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Dispatchable;
+import org.dkf.jed2k.protocol.Dispatcher;
 import org.dkf.jed2k.protocol.Hash;
 import org.dkf.jed2k.protocol.UInt64;
 import org.dkf.jed2k.protocol.Unsigned;
 
-public class RequestParts64 extends RequestParts<UInt64> {
+public class RequestParts64 extends RequestParts<UInt64> implements Dispatchable {
 
     public RequestParts64() {
         super();
@@ -26,6 +29,11 @@ public class RequestParts64 extends RequestParts<UInt64> {
         for(int i = 0; i < endOffset.length; ++i) endOffset[i] = Unsigned.uint64(0);
     }
 
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientRequestParts64(this);
+    }
+
     @Override
     public String toString() {
         return "RequestParts64 " + super.toString();
@@ -1,13 +1,25 @@
 package org.dkf.jed2k.protocol.client;
 
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Dispatchable;
+import org.dkf.jed2k.protocol.Dispatcher;
 import org.dkf.jed2k.protocol.Hash;
 
-public class StartUpload extends Hash {
+public class StartUpload extends Hash implements Dispatchable {
+
+    public StartUpload() {
+        super();
+    }
 
     public StartUpload(Hash h) {
         super(h);
     }
 
+    @Override
+    public void dispatch(Dispatcher dispatcher) throws JED2KException {
+        dispatcher.onClientStartUpload(this);
+    }
+
     @Override
     public String toString() {
         return String.format("StartUpload %s", super.toString());
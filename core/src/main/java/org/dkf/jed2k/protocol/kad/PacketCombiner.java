@@ -1,13 +1,10 @@
 package org.dkf.jed2k.protocol.kad;
 
 import org.dkf.jed2k.protocol.PacketHeader;
-import org.dkf.jed2k.protocol.PacketKey;
+import org.dkf.jed2k.protocol.PacketFactory;
+import org.dkf.jed2k.protocol.PacketTable;
 import org.dkf.jed2k.protocol.Serializable;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
-
 
 public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
 
@@ -91,64 +88,107 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
 
     private KadPacketHeader header = new KadPacketHeader();
 
-    private static final Map<PacketKey, Class<? extends Serializable>> supportedPacketsKad;
-    private static final Map<Class<? extends Serializable>, PacketKey> struct2KeyKad;
+    private static final PacketTable packetsKad = new PacketTable();
 
-    private static void addHandler(byte protocol, byte type, Class<? extends Serializable> clazz) {
-        PacketKey pk = new PacketKey(protocol, type);
-        assert(!supportedPacketsKad.containsKey(pk));
-        assert(clazz != null);
-        supportedPacketsKad.put(pk, clazz);
-        struct2KeyKad.put(clazz, pk);
+    private static void addHandler(byte protocol, byte type, Class<? extends Serializable> clazz, PacketFactory factory) {
+        packetsKad.add(protocol, type, clazz, factory);
     }
 
-    private static void addKadHandler(byte type, Class<? extends  Serializable> clazz) {
-        addHandler(OP_KADEMLIAHEADER, type, clazz);
+    private static void addKadHandler(byte type, Class<? extends  Serializable> clazz, PacketFactory factory) {
+        addHandler(OP_KADEMLIAHEADER, type, clazz, factory);
     }
 
     static {
-        supportedPacketsKad = new TreeMap<PacketKey, Class<? extends Serializable>>();
-        struct2KeyKad = new HashMap<Class<? extends Serializable>, PacketKey>();
-
-
-        addKadHandler(KadUdp.KADEMLIA2_PING.value, Kad2Ping.class);
-        addKadHandler(KadUdp.KADEMLIA2_PONG.value, Kad2Pong.class);
-
-        addKadHandler(KadUdp.KADEMLIA2_REQ.value, Kad2Req.class);
-        addKadHandler(KadUdp.KADEMLIA2_RES.value, Kad2Res.class);
+        addKadHandler(KadUdp.KADEMLIA2_PING.value, Kad2Ping.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2Ping(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_PONG.value, Kad2Pong.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2Pong(); }
+        });
+
+        addKadHandler(KadUdp.KADEMLIA2_REQ.value, Kad2Req.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2Req(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_RES.value, Kad2Res.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2Res(); }
+        });
 
         //addKadHandler(KadUdp.KADEMLIA_REQ.value, Kad2Req.class);
         //addKadHandler(KadUdp.KADEMLIA_RES.value, Kad2Res.class);
 
-        addKadHandler(KadUdp.KADEMLIA2_HELLO_REQ.value, Kad2HelloReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_HELLO_RES.value, Kad2HelloRes.class);
-
-        addKadHandler(KadUdp.KADEMLIA2_SEARCH_SOURCE_REQ.value, Kad2SearchSourcesReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_SEARCH_KEY_REQ.value, Kad2SearchKeysReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_SEARCH_NOTES_REQ.value, Kad2SearchNotesReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_SEARCH_RES.value, Kad2SearchRes.class);
-
-        addKadHandler(KadUdp.KADEMLIA2_BOOTSTRAP_REQ.value, Kad2BootstrapReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_BOOTSTRAP_RES.value, Kad2BootstrapRes.class);
-
-        addKadHandler(KadUdp.KADEMLIA_FIREWALLED_REQ.value, KadFirewalledReq.class);
-        addKadHandler(KadUdp.KADEMLIA_FIREWALLED2_REQ.value, Kad2FirewalledReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_FIREWALLUDP.value, Kad2FirewalledUdp.class);
-        addKadHandler(KadUdp.KADEMLIA_FIREWALLED_RES.value, Kad2FirewalledRes.class);
-
-        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_KEY_REQ.value, Kad2PublishKeysReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_SOURCE_REQ.value, Kad2PublishSourcesReq.class);
-        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_RES.value, Kad2PublishRes.class);
-    }
-
-    @Override
-    protected Class<? extends Serializable> keyToPacket(PacketKey key) {
-        return supportedPacketsKad.get(key);
+        addKadHandler(KadUdp.KADEMLIA2_HELLO_REQ.value, Kad2HelloReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2HelloReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_HELLO_RES.value, Kad2HelloRes.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2HelloRes(); }
+        });
+
+        addKadHandler(KadUdp.KADEMLIA2_SEARCH_SOURCE_REQ.value, Kad2SearchSourcesReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2SearchSourcesReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_SEARCH_KEY_REQ.value, Kad2SearchKeysReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2SearchKeysReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_SEARCH_NOTES_REQ.value, Kad2SearchNotesReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2SearchNotesReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_SEARCH_RES.value, Kad2SearchRes.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2SearchRes(); }
+        });
+
+        addKadHandler(KadUdp.KADEMLIA2_BOOTSTRAP_REQ.value, Kad2BootstrapReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2BootstrapReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_BOOTSTRAP_RES.value, Kad2BootstrapRes.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2BootstrapRes(); }
+        });
+
+        addKadHandler(KadUdp.KADEMLIA_FIREWALLED_REQ.value, KadFirewalledReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new KadFirewalledReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA_FIREWALLED2_REQ.value, Kad2FirewalledReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2FirewalledReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_FIREWALLUDP.value, Kad2FirewalledUdp.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2FirewalledUdp(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA_FIREWALLED_RES.value, Kad2FirewalledRes.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2FirewalledRes(); }
+        });
+
+        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_KEY_REQ.value, Kad2PublishKeysReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2PublishKeysReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_SOURCE_REQ.value, Kad2PublishSourcesReq.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2PublishSourcesReq(); }
+        });
+        addKadHandler(KadUdp.KADEMLIA2_PUBLISH_RES.value, Kad2PublishRes.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Kad2PublishRes(); }
+        });
     }
 
     @Override
-    protected PacketKey classToKey(Class<? extends Serializable> clazz) {
-        return struct2KeyKad.get(clazz);
+    protected PacketTable packets() {
+        return packetsKad;
     }
 
     @Override
@@ -1,15 +1,13 @@
 package org.dkf.jed2k.protocol.server;
 
 import org.dkf.jed2k.protocol.PacketHeader;
-import org.dkf.jed2k.protocol.PacketKey;
+import org.dkf.jed2k.protocol.PacketFactory;
+import org.dkf.jed2k.protocol.PacketTable;
 import org.dkf.jed2k.protocol.Serializable;
 import org.dkf.jed2k.protocol.server.search.SearchMore;
 import org.dkf.jed2k.protocol.server.search.SearchRequest;
 import org.dkf.jed2k.protocol.server.search.SearchResult;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
 
 public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
 
@@ -69,48 +67,74 @@ public class PacketCombiner extends org.dkf.jed2k.protocol.PacketCombiner {
         }
     }
 
-    protected static final Map<PacketKey, Class<? extends Serializable>> supportedPacketsServer;
-    protected static final Map<Class<? extends Serializable>, PacketKey> struct2KeyServer;
+    protected static final PacketTable packetsServer = new PacketTable();
 
-    private static void addHandler(byte protocol, byte type, Class<? extends Serializable> clazz) {
-        PacketKey pk = new PacketKey(protocol, type);
-        assert(!supportedPacketsServer.containsKey(pk));
-        assert(clazz != null);
-        supportedPacketsServer.put(pk, clazz);
-        struct2KeyServer.put(clazz, pk);
+    private static void addHandler(byte protocol, byte type, Class<? extends Serializable> clazz, PacketFactory factory) {
+        packetsServer.add(protocol, type, clazz, factory);
     }
 
     static {
-        // temporary use TreeMap for compatibility with search common packed packets
-        supportedPacketsServer = new TreeMap<PacketKey, Class<? extends Serializable>>();
-        struct2KeyServer = new HashMap<Class<? extends Serializable>, PacketKey>();
 
         // client <-> server tcp messages section
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_LOGINREQUEST.value, LoginRequest.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERLIST.value, ServerList.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_GETSERVERLIST.value, GetList.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERMESSAGE.value, Message.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERSTATUS.value, Status.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_IDCHANGE.value, IdChange.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERIDENT.value, ServerInfo.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SEARCHRESULT.value, SearchResult.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SEARCHREQUEST.value, SearchRequest.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_QUERY_MORE_RESULT.value, SearchMore.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_GETSOURCES.value, GetFileSources.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_FOUNDSOURCES.value, FoundFileSources.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACKREQUEST.value, CallbackRequest.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACKREQUESTED.value, CallbackRequestIncoming.class);
-        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACK_FAIL.value, CallbackRequestFailed.class);
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_LOGINREQUEST.value, LoginRequest.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new LoginRequest(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERLIST.value, ServerList.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new ServerList(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_GETSERVERLIST.value, GetList.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new GetList(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERMESSAGE.value, Message.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Message(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERSTATUS.value, Status.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new Status(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_IDCHANGE.value, IdChange.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new IdChange(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SERVERIDENT.value, ServerInfo.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new ServerInfo(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SEARCHRESULT.value, SearchResult.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new SearchResult(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_SEARCHREQUEST.value, SearchRequest.class, null);   // outgoing only
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_QUERY_MORE_RESULT.value, SearchMore.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new SearchMore(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_GETSOURCES.value, GetFileSources.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new GetFileSources(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_FOUNDSOURCES.value, FoundFileSources.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new FoundFileSources(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACKREQUEST.value, CallbackRequest.class, null);   // outgoing only
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACKREQUESTED.value, CallbackRequestIncoming.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new CallbackRequestIncoming(); }
+        });
+        addHandler(ProtocolType.OP_EDONKEYHEADER.value, ClientServerTcp.OP_CALLBACK_FAIL.value, CallbackRequestFailed.class, new PacketFactory() {
+            @Override
+            public Serializable create() { return new CallbackRequestFailed(); }
+        });
     }
 
     @Override
-    protected Class<? extends Serializable> keyToPacket(PacketKey key) {
-        return supportedPacketsServer.get(key);
-    }
-
-    @Override
-    protected PacketKey classToKey(Class<? extends Serializable> clazz) {
-        return struct2KeyServer.get(clazz);
+    protected PacketTable packets() {
+        return packetsServer;
     }
 
 	@Override
@@ -0,0 +1,105 @@
+package org.dkf.jed2k.share;
+
+import lombok.extern.slf4j.Slf4j;
+import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.Utils;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Hash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * fork join task computes ed2k hash set of local file
+ * file is split to ranges of pieces down to one piece, each piece is hashed over memory mapped region of file
+ * result is null when file can't be read or was changed while hashing
+ */
+@Slf4j
+public class FileHasher extends RecursiveTask<KnownFile> {
+    private static final long serialVersionUID = 1L;
+    private final File file;
+
+    public FileHasher(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * hashes pieces in range [from, to) into common array, null hash means read error
+     */
+    private static final class PiecesHasher extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final Hash[] hashes;
+        private final int from;
+        private final int to;
+
+        PiecesHasher(final FileChannel channel, long fileSize, final Hash[] hashes, int from, int to) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PiecesHasher(channel, fileSize, hashes, from, middle)
+                        , new PiecesHasher(channel, fileSize, hashes, middle, to));
+                return;
+            }
+
+            long offset = from*Constants.PIECE_SIZE;
+            long length = Math.min(Constants.PIECE_SIZE, fileSize - offset);
+
+            try {
+                MD4 hasher = new MD4();
+                hasher.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+                hashes[from] = Hash.fromBytes(hasher.digest());
+            } catch(IOException e) {
+                log.error("[file hasher] unable to hash piece {} {}", from, e);
+            }
+        }
+    }
+
+    @Override
+    protected KnownFile compute() {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (size == 0) return null;
+        Hash[] hashes = new Hash[Utils.divCeil(size, Constants.PIECE_SIZE).intValue()];
+
+        try(FileInputStream stream = new FileInputStream(file); FileChannel channel = stream.getChannel()) {
+            new PiecesHasher(channel, size, hashes, 0, hashes.length).invoke();
+        } catch(IOException e) {
+            log.error("[file hasher] unable to read {} {}", file, e);
+            return null;
+        }
+
+        if (file.length() != size || file.lastModified() != lastModified) {
+            log.warn("[file hasher] file {} was changed while hashing", file);
+            return null;
+        }
+
+        ArrayList<Hash> hashSet = new ArrayList<Hash>(Arrays.asList(hashes));
+        if (hashSet.contains(null)) return null;
+        // ed2k hash set of file with size multiple of piece size ends with hash of empty piece
+        if (size % Constants.PIECE_SIZE == 0) hashSet.add(Hash.TERMINAL);
+
+        try {
+            return new KnownFile(file, size, lastModified, hashSet);
+        } catch(JED2KException e) {
+            log.error("[file hasher] unable to create known file {} {}", file, e);
+            return null;
+        }
+    }
+}
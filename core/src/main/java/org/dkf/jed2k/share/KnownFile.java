@@ -0,0 +1,117 @@
+package org.dkf.jed2k.share;
+
+import org.dkf.jed2k.AddTransferParams;
+import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.Time;
+import org.dkf.jed2k.Utils;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * local file with computed ed2k hash and hash set
+ * file is identified in known files cache by path, size and last modification time
+ */
+public class KnownFile implements Serializable {
+    private final ByteContainer<UInt16> path = new ByteContainer<UInt16>(Unsigned.uint16());
+    private final UInt64 size = new UInt64();
+    private final UInt64 lastModified = new UInt64();
+    private final Hash hash = new Hash();
+
+    /**
+     * ed2k part hashes, for file size multiple of piece size contains terminal hash after pieces hashes
+     * single piece file has empty hash set since it's hash is piece hash
+     */
+    private final Container<UInt32, Hash> hashSet = Container.makeInt(Hash.class);
+
+    public KnownFile() {
+
+    }
+
+    public KnownFile(final File file, long size, long lastModified, final List<Hash> hashSet) throws JED2KException {
+        assert !hashSet.isEmpty();
+        path.assignString(file.getAbsolutePath());
+        this.size.assign(size);
+        this.lastModified.assign(lastModified);
+        hash.assign(Hash.fromHashSet(hashSet));
+        if (hashSet.size() > 1) this.hashSet.assignFrom(hashSet);
+    }
+
+    public String getPath() {
+        return (path.getValue() != null)?new String(path.getValue(), Charset.forName("UTF-8")):"";
+    }
+
+    public long getSize() {
+        return size.longValue();
+    }
+
+    public long getLastModified() {
+        return lastModified.longValue();
+    }
+
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * @return hashes of pieces, for file size multiple of piece size terminal hash is not included
+     */
+    public Hash[] getPieceHashes() {
+        int pieces = Utils.divCeil(getSize(), Constants.PIECE_SIZE).intValue();
+        Hash[] res = new Hash[pieces];
+        if (hashSet.isEmpty()) {
+            res[0] = hash;
+        } else {
+            for(int i = 0; i < pieces; ++i) res[i] = hashSet.get(i);
+        }
+
+        return res;
+    }
+
+    /**
+     * @param file local file
+     * @return true if file wasn't changed since hash was computed
+     */
+    public boolean matches(final File file) {
+        return file.length() == getSize() && file.lastModified() == getLastModified();
+    }
+
+    /**
+     * parameters of finished transfer for sharing this file
+     * @return add transfer parameters with resume data contains all pieces and hash set
+     * @throws JED2KException
+     */
+    public AddTransferParams toTransferParams() throws JED2KException {
+        AddTransferParams atp = new AddTransferParams(hash, Time.currentTimeMillis(), getSize(), new File(getPath()), false);
+        TransferResumeData trd = new TransferResumeData();
+        Hash[] pieces = getPieceHashes();
+        for(final Hash h: pieces) trd.hashes.add(h);
+        trd.pieces.resize(pieces.length, true);
+        atp.resumeData.setData(trd);
+        return atp;
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer src) throws JED2KException {
+        return hashSet.get(hash.get(lastModified.get(size.get(path.get(src)))));
+    }
+
+    @Override
+    public ByteBuffer put(ByteBuffer dst) throws JED2KException {
+        return hashSet.put(hash.put(lastModified.put(size.put(path.put(dst)))));
+    }
+
+    @Override
+    public int bytesCount() {
+        return path.bytesCount() + size.bytesCount() + lastModified.bytesCount() + hash.bytesCount() + hashSet.bytesCount();
+    }
+
+    @Override
+    public String toString() {
+        return "KnownFile{" + path + " size=" + size + " hash=" + hash + "}";
+    }
+}
@@ -0,0 +1,106 @@
+package org.dkf.jed2k.share;
+
+import lombok.extern.slf4j.Slf4j;
+import org.dkf.jed2k.exception.ErrorCode;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Container;
+import org.dkf.jed2k.protocol.UInt32;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * cache of computed hashes of local files keyed by absolute path
+ * cached entry is valid while file has the same size and last modification time
+ * not thread safe
+ */
+@Slf4j
+public class KnownFiles {
+    private final HashMap<String, KnownFile> files = new HashMap<String, KnownFile>();
+
+    /**
+     * @param file local file
+     * @return cached entry for unchanged file or null
+     */
+    public KnownFile find(final File file) {
+        KnownFile kf = files.get(file.getAbsolutePath());
+        return (kf != null && kf.matches(file))?kf:null;
+    }
+
+    public void add(final KnownFile kf) {
+        files.put(kf.getPath(), kf);
+    }
+
+    /**
+     * drop entries of files which don't exist anymore or were changed
+     * @return count of removed entries
+     */
+    public int purge() {
+        ArrayList<String> obsolete = new ArrayList<String>();
+        for(final KnownFile kf: files.values()) {
+            if (!kf.matches(new File(kf.getPath()))) obsolete.add(kf.getPath());
+        }
+
+        for(final String path: obsolete) files.remove(path);
+        return obsolete.size();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public Collection<KnownFile> values() {
+        return files.values();
+    }
+
+    /**
+     * replace cache content by entries from file
+     * @param source cache file
+     * @throws JED2KException on i/o or format error
+     */
+    public void load(final File source) throws JED2KException {
+        try(FileInputStream stream = new FileInputStream(source); FileChannel channel = stream.getChannel()) {
+            ByteBuffer bb = ByteBuffer.allocate((int)channel.size());
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            while(bb.hasRemaining() && channel.read(bb) != -1) {}
+            bb.flip();
+            Container<UInt32, KnownFile> entries = Container.makeInt(KnownFile.class);
+            entries.get(bb);
+            files.clear();
+            for(final KnownFile kf: entries) files.put(kf.getPath(), kf);
+            log.debug("[known files] loaded {} entries from {}", files.size(), source);
+        } catch(IOException e) {
+            log.error("[known files] i/o error on load {}", e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
+    }
+
+    /**
+     * write all entries to file
+     * @param target cache file
+     * @throws JED2KException on i/o error
+     */
+    public void save(final File target) throws JED2KException {
+        Container<UInt32, KnownFile> entries = Container.makeInt(KnownFile.class);
+        entries.assignFrom(files.values());
+
+        try(FileOutputStream stream = new FileOutputStream(target, false); FileChannel channel = stream.getChannel()) {
+            ByteBuffer bb = ByteBuffer.allocate(entries.bytesCount());
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            entries.put(bb);
+            bb.flip();
+            while(bb.hasRemaining()) channel.write(bb);
+        } catch(IOException e) {
+            log.error("[known files] i/o error on save {}", e);
+            throw new JED2KException(ErrorCode.IO_EXCEPTION);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.dkf.jed2k.share;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * bulk import of local files for sharing
+ * unchanged files are taken from known files cache, other files are hashed in parallel by fork join pool
+ * where pieces of all files are hashed as independent tasks
+ * not thread safe, use one importer from one thread
+ */
+@Slf4j
+public class SharedFilesImporter {
+    private final KnownFiles cache;
+    private final ForkJoinPool pool;
+    private long hashedFiles = 0;
+    private long cachedFiles = 0;
+
+    /**
+     * @param cache known files cache, new results are added to it
+     * @param parallelism count of hashing threads
+     */
+    public SharedFilesImporter(final KnownFiles cache, int parallelism) {
+        assert parallelism > 0;
+        this.cache = cache;
+        pool = new ForkJoinPool(Math.max(parallelism, 1));
+    }
+
+    public SharedFilesImporter(final KnownFiles cache) {
+        this(cache, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * hash files or take them from cache, empty and unreadable files are skipped
+     * @param files local files
+     * @return known files in order of source files
+     */
+    public List<KnownFile> importFiles(final Collection<File> files) {
+        List<KnownFile> slots = new ArrayList<KnownFile>(files.size());
+        List<FileHasher> tasks = new ArrayList<FileHasher>();
+
+        for(final File f: files) {
+            KnownFile kf = cache.find(f);
+            if (kf != null) {
+                slots.add(kf);
+                ++cachedFiles;
+            } else if (f.isFile() && f.length() > 0) {
+                FileHasher task = new FileHasher(f);
+                pool.execute(task);
+                tasks.add(task);
+                slots.add(null);
+            }
+        }
+
+        // slots of hashed files are null and filled by tasks results in the same order
+        List<KnownFile> res = new ArrayList<KnownFile>(slots.size());
+        int taskIndex = 0;
+        for(final KnownFile slot: slots) {
+            KnownFile kf = slot;
+            if (kf == null) {
+                kf = tasks.get(taskIndex++).join();
+                if (kf == null) continue;
+                cache.add(kf);
+                ++hashedFiles;
+            }
+
+            res.add(kf);
+        }
+
+        assert taskIndex == tasks.size();
+        log.debug("[importer] imported {} files, hashed {} cached {}", res.size(), hashedFiles, cachedFiles);
+        return res;
+    }
+
+    /**
+     * @return count of files hashed by importer
+     */
+    public long getHashedFiles() {
+        return hashedFiles;
+    }
+
+    /**
+     * @return count of files taken from cache
+     */
+    public long getCachedFiles() {
+        return cachedFiles;
+    }
+
+    /**
+     * stop hashing threads
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,169 @@
+package org.dkf.jed2k.disk.test;
+
+import org.dkf.jed2k.AsyncOperationResult;
+import org.dkf.jed2k.disk.DiskIOEngine;
+import org.dkf.jed2k.disk.DiskIOStatus;
+import org.dkf.jed2k.exception.BaseErrorCode;
+import org.dkf.jed2k.exception.ErrorCode;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiskIOEngineTest {
+
+    private static class NullResult implements AsyncOperationResult {
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public BaseErrorCode getCode() {
+            return ErrorCode.NO_ERROR;
+        }
+    }
+
+    private static class OrderedTask implements Callable<AsyncOperationResult> {
+        private final List<Integer> order;
+        private final int value;
+
+        OrderedTask(final List<Integer> order, int value) {
+            this.order = order;
+            this.value = value;
+        }
+
+        @Override
+        public AsyncOperationResult call() throws Exception {
+            order.add(value);
+            return new NullResult();
+        }
+    }
+
+    @Test
+    public void testSameKeyOrder() throws Exception {
+        DiskIOEngine engine = new DiskIOEngine(4);
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        LinkedList<Future<AsyncOperationResult>> futures = new LinkedList<>();
+        for(int i = 0; i < 100; ++i) {
+            futures.add(engine.submit("file", new OrderedTask(order, i)));
+        }
+
+        for(Future<AsyncOperationResult> f: futures) f.get();
+        assertEquals(100, order.size());
+        for(int i = 0; i < 100; ++i) assertEquals(i, order.get(i).intValue());
+
+        DiskIOStatus status = engine.getStatus();
+        assertEquals(4, status.threads);
+        assertEquals(100, status.completedTasks);
+        assertEquals(0, status.queueDepth);
+        assertTrue(status.maxQueueDepth > 0);
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDifferentKeysInParallel() throws Exception {
+        final DiskIOEngine engine = new DiskIOEngine(2);
+        // find two keys assigned to different workers
+        final CountDownLatch latch = new CountDownLatch(2);
+        Callable<AsyncOperationResult> blocking = new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                latch.countDown();
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                return new NullResult();
+            }
+        };
+
+        Future<AsyncOperationResult> f1 = engine.submit(Integer.valueOf(0), blocking);
+        Future<AsyncOperationResult> f2 = engine.submit(Integer.valueOf(1), blocking);
+        // both tasks wait each other, so they can be completed only in parallel
+        f1.get(10, TimeUnit.SECONDS);
+        f2.get(10, TimeUnit.SECONDS);
+        engine.shutdown();
+    }
+
+    @Test
+    public void testCancelledTaskReleasesQueue() throws Exception {
+        DiskIOEngine engine = new DiskIOEngine(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        Future<AsyncOperationResult> head = engine.submit("a", new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                gate.await(5, TimeUnit.SECONDS);
+                return new NullResult();
+            }
+        });
+
+        Future<AsyncOperationResult> tail = engine.submit("a", new OrderedTask(new LinkedList<Integer>(), 1));
+        assertTrue(tail.cancel(false));
+        assertEquals(1, engine.getStatus().queueDepth);
+        gate.countDown();
+        head.get();
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, engine.getStatus().queueDepth);
+        assertEquals(1, engine.getStatus().completedTasks);
+    }
+
+    @Test
+    public void testCancelRunningTask() throws Exception {
+        DiskIOEngine engine = new DiskIOEngine(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        Future<AsyncOperationResult> f = engine.submit("a", new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                started.countDown();
+                gate.await();
+                return new NullResult();
+            }
+        });
+
+        // worker finishes task after it was cancelled, task leaves queue once
+        started.await();
+        assertTrue(f.cancel(false));
+        gate.countDown();
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, engine.getStatus().queueDepth);
+        assertEquals(0, engine.getStatus().completedTasks);
+    }
+
+    @Test
+    public void testCompletionNotification() throws Exception {
+        DiskIOEngine engine = new DiskIOEngine(2);
+        final BlockingQueue<Future<AsyncOperationResult>> completed = new LinkedBlockingQueue<>();
+        final List<Future<AsyncOperationResult>> futures = new LinkedList<>();
+
+        for(int i = 0; i < 10; ++i) {
+            final AtomicReference<Future<AsyncOperationResult>> self = new AtomicReference<>();
+            synchronized (futures) {
+                self.set(engine.submit("file", new OrderedTask(new LinkedList<Integer>(), i), new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (futures) {
+                            assertTrue(self.get().isDone());
+                            completed.add(self.get());
+                        }
+                    }
+                }));
+                futures.add(self.get());
+            }
+        }
+
+        // completions come in submit order for the same key
+        for(final Future<AsyncOperationResult> f: futures) {
+            assertEquals(f, completed.poll(5, TimeUnit.SECONDS));
+        }
+
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,161 @@
+package org.dkf.jed2k.protocol.test;
+
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.AichTree;
+import org.dkf.jed2k.protocol.*;
+import org.dkf.jed2k.protocol.client.AichAnswer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.*;
+
+public class AichTreeTest {
+
+    private static List<AichHash> randomHashes(int count) {
+        Random rnd = new Random(count);
+        List<AichHash> res = new ArrayList<AichHash>();
+        byte[] value = new byte[AichHash.HASH_SIZE];
+        for(int i = 0; i < count; ++i) {
+            rnd.nextBytes(value);
+            res.add(AichHash.fromBytes(value));
+        }
+
+        return res;
+    }
+
+    private static AichHash combine(final AichHash l, final AichHash r) {
+        ByteBuffer buffer = ByteBuffer.allocate(AichHash.HASH_SIZE*2);
+        buffer.put(l.getBytes()).put(r.getBytes()).flip();
+        return AichTree.blockHash(buffer);
+    }
+
+    @Test
+    public void testSingleBlock() {
+        AichHash h = AichTree.blockHash(ByteBuffer.wrap("abc".getBytes()));
+        assertEquals(AichHash.fromString("A9993E364706816ABA3E25717850C26C9CD0D89D"), h);
+        List<AichHash> hashes = new ArrayList<AichHash>();
+        hashes.add(h);
+        assertEquals(h, AichTree.build(3, hashes).getHash());
+        assertNull(AichTree.build(AichTree.BLOCK_SIZE + 1, hashes));
+    }
+
+    @Test
+    public void testBlocksCount() {
+        assertEquals(1, AichTree.blocksCount(100));
+        assertEquals(53, AichTree.partBlocksCount(AichTree.PART_SIZE));
+        assertEquals(53, AichTree.blocksCount(AichTree.PART_SIZE));
+        assertEquals(54, AichTree.blocksCount(AichTree.PART_SIZE + 1));
+        assertEquals(106 + 27, AichTree.blocksCount(AichTree.PART_SIZE*2 + AichTree.BLOCK_SIZE*26 + 10));
+    }
+
+    @Test
+    public void testLeftBranchGetsBiggerHalf() {
+        List<AichHash> hashes = randomHashes(3);
+        AichTree tree = AichTree.build(AichTree.BLOCK_SIZE*3, hashes);
+        assertEquals(combine(combine(hashes.get(0), hashes.get(1)), hashes.get(2)), tree.getHash());
+    }
+
+    @Test
+    public void testRecoveryData() throws JED2KException {
+        long fileSize = AichTree.PART_SIZE*2 + AichTree.PART_SIZE/2;
+        List<AichHash> hashes = randomHashes(AichTree.blocksCount(fileSize));
+        AichTree tree = AichTree.build(fileSize, hashes);
+        org.dkf.jed2k.protocol.PacketCombiner combiner = new org.dkf.jed2k.protocol.client.PacketCombiner();
+
+        for(int part = 0; part < 3; ++part) {
+            AichAnswer answer = new AichAnswer();
+            answer.hash.assign(Hash.EMULE);
+            answer.part.assign(part);
+            answer.masterHash.assign(tree.getHash());
+            AichRecoveryData data = tree.createRecoveryData(part);
+            assertNotNull(data);
+            answer.data.entries.addAll(data.entries);
+
+            ByteBuffer nb = ByteBuffer.allocate(4096);
+            nb.order(ByteOrder.LITTLE_ENDIAN);
+            assertTrue(combiner.pack(answer, nb));
+            nb.flip();
+            PacketHeader h = new PacketHeader();
+            h.get(nb);
+            AichAnswer received = (AichAnswer)combiner.unpack(h, nb);
+            assertFalse(received.isEmpty());
+            assertEquals(part, received.part.intValue());
+
+            int first = part*AichTree.partBlocksCount(AichTree.PART_SIZE);
+            int last = Math.min(first + AichTree.partBlocksCount(AichTree.PART_SIZE), hashes.size());
+            assertEquals(hashes.subList(first, last), AichTree.verifyRecoveryData(fileSize, part, received.masterHash, received.data));
+            assertNull(AichTree.verifyRecoveryData(fileSize, part, hashes.get(0), received.data));
+        }
+
+        assertNull(tree.createRecoveryData(3));
+    }
+
+    @Test
+    public void testForgedRecoveryData() {
+        long fileSize = AichTree.PART_SIZE*4;
+        List<AichHash> hashes = randomHashes(AichTree.blocksCount(fileSize));
+        AichTree tree = AichTree.build(fileSize, hashes);
+        AichRecoveryData data = tree.createRecoveryData(1);
+        assertNotNull(AichTree.verifyRecoveryData(fileSize, 1, tree.getHash(), data));
+        assertNull(AichTree.verifyRecoveryData(fileSize, 2, tree.getHash(), data));
+
+        AichRecoveryData forged = new AichRecoveryData();
+        forged.entries.addAll(data.entries);
+        forged.entries.set(5, new AichRecoveryData.Entry(forged.entries.get(5).ident, hashes.get(0)));
+        assertNull(AichTree.verifyRecoveryData(fileSize, 1, tree.getHash(), forged));
+
+        AichRecoveryData incomplete = new AichRecoveryData();
+        incomplete.entries.addAll(data.entries.subList(1, data.entries.size()));
+        assertNull(AichTree.verifyRecoveryData(fileSize, 1, tree.getHash(), incomplete));
+    }
+
+    @Test
+    public void testSmallFileIdentifiersFit() {
+        long fileSize = AichTree.MAX_SMALL_FILE_SIZE;
+        AichTree tree = AichTree.build(fileSize, randomHashes(AichTree.blocksCount(fileSize)));
+        int part = (int)(fileSize / AichTree.PART_SIZE) - 1;
+        AichRecoveryData data = tree.createRecoveryData(part);
+        for(final AichRecoveryData.Entry e: data.entries) assertTrue(e.ident <= UInt16.MAX_VALUE);
+        assertNotNull(AichTree.verifyRecoveryData(fileSize, part, tree.getHash(), data));
+    }
+
+    @Test
+    public void testLargeFileIdentifiers() throws JED2KException {
+        long fileSize = AichTree.MAX_SMALL_FILE_SIZE + AichTree.PART_SIZE;
+        List<AichHash> hashes = randomHashes(AichTree.blocksCount(fileSize));
+        AichTree tree = AichTree.build(fileSize, hashes);
+        int part = (int)(fileSize / AichTree.PART_SIZE) - 1;
+        AichRecoveryData data = tree.createRecoveryData(part);
+
+        ByteBuffer nb = ByteBuffer.allocate(data.bytesCount());
+        nb.order(ByteOrder.LITTLE_ENDIAN);
+        data.put(nb);
+        assertFalse(nb.hasRemaining());
+        nb.flip();
+        assertEquals(0, nb.getShort(0));
+        AichRecoveryData received = new AichRecoveryData();
+        received.get(nb);
+        assertEquals(data.entries.size(), received.entries.size());
+        assertNotNull(AichTree.verifyRecoveryData(fileSize, part, tree.getHash(), received));
+    }
+
+    @Test
+    public void testEmptyAnswer() throws JED2KException {
+        org.dkf.jed2k.protocol.PacketCombiner combiner = new org.dkf.jed2k.protocol.client.PacketCombiner();
+        ByteBuffer nb = ByteBuffer.allocate(128);
+        nb.order(ByteOrder.LITTLE_ENDIAN);
+        assertTrue(combiner.pack(new AichAnswer(Hash.EMULE), nb));
+        nb.flip();
+        PacketHeader h = new PacketHeader();
+        h.get(nb);
+        AichAnswer answer = (AichAnswer)combiner.unpack(h, nb);
+        assertTrue(answer.isEmpty());
+        assertEquals(Hash.EMULE, answer.hash);
+    }
+}
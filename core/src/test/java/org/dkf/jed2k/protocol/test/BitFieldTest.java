@@ -169,4 +169,18 @@ public class BitFieldTest {
         assertFalse(bb.hasRemaining());
         assertEquals(bf1, bf2);
     }
+
+    @Test
+    public void testGetWord() {
+        BitField bf = new BitField(130);
+        bf.setBit(0);
+        bf.setBit(63);
+        bf.setBit(64);
+        bf.setBit(129);
+        assertEquals(0x8000000000000001L, bf.getWord(0));
+        assertEquals(0x8000000000000000L, bf.getWord(1));
+        assertEquals(0x4000000000000000L, bf.getWord(2));
+        assertEquals(0L, bf.getWord(3));
+        assertEquals(0L, new BitField().getWord(0));
+    }
 }
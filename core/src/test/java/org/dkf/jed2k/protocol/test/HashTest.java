@@ -205,6 +205,59 @@ public class HashTest{
         }
     }
 
+    @Test
+    public void testRfcVectors() {
+        String[][] vectors = {
+                {"", "31D6CFE0D16AE931B73C59D7E0C089C0"},
+                {"abc", "A448017AAF21D8525FC10AE87AA6729D"},
+                {"message digest", "D9130A8164549FE818874806E1C7014B"},
+                {"12345678901234567890123456789012345678901234567890123456789012345678901234567890", "E33B4DDC9C38F2199C3E7B164FCC0536"}
+        };
+
+        for(final String[] v: vectors) {
+            byte[] data = v[0].getBytes();
+            MD4 md4 = new MD4();
+            md4.update(data);
+            assertEquals(Hash.fromString(v[1]), Hash.fromBytes(md4.digest()));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            md4.update(direct);
+            assertEquals(Hash.fromString(v[1]), Hash.fromBytes(md4.digest()));
+        }
+    }
+
+    @Test
+    public void testDirectAndReadOnlyBuffers() {
+        byte[] data = new byte[10000];
+        for(int i = 0; i < data.length; ++i) data[i] = (byte)(i*31 + 7);
+        MD4 md4 = new MD4();
+        md4.update(data);
+        Hash expected = Hash.fromBytes(md4.digest());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(ByteOrder.BIG_ENDIAN);
+        direct.put(data).flip();
+        ByteBuffer readOnly = ByteBuffer.wrap(data).asReadOnlyBuffer();
+
+        for(final ByteBuffer src: new ByteBuffer[] {direct, readOnly, ByteBuffer.wrap(data, 1, data.length - 1).slice()}) {
+            boolean shifted = src.remaining() != data.length;
+            if (shifted) md4.update(data[0]);
+            int offset = 0;
+            int step = 1;
+            // parts of different sizes to update hasher with partial and whole blocks
+            while(offset < src.limit()) {
+                ByteBuffer part = src.duplicate();
+                part.position(offset).limit(Math.min(offset + step, src.limit()));
+                md4.update(part);
+                assertFalse(part.hasRemaining());
+                assertEquals(ByteOrder.BIG_ENDIAN, part.order());
+                offset += step;
+                step = step*3 + 1;
+            }
+
+            assertEquals(expected, Hash.fromBytes(md4.digest()));
+        }
+    }
+
     @Test
     public void testHashInMap() {
         Map<Hash, Integer> m = new ConcurrentHashMap<>();
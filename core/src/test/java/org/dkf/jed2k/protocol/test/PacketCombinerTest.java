@@ -1,12 +1,16 @@
 package org.dkf.jed2k.protocol.test;
 
 import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Dispatchable;
 import org.dkf.jed2k.protocol.Hash;
 import org.dkf.jed2k.protocol.PacketHeader;
 import org.dkf.jed2k.protocol.PacketKey;
 import org.dkf.jed2k.protocol.Serializable;
+import org.dkf.jed2k.protocol.client.RequestParts32;
+import org.dkf.jed2k.protocol.client.SendingPart64;
 import org.dkf.jed2k.protocol.server.IdChange;
 import org.dkf.jed2k.protocol.server.LoginRequest;
+import org.dkf.jed2k.protocol.server.Message;
 import org.dkf.jed2k.protocol.server.Status;
 import org.dkf.jed2k.protocol.tag.Tag;
 import org.junit.Test;
@@ -15,6 +19,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.zip.Deflater;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
@@ -129,4 +134,96 @@ public class PacketCombinerTest {
         assertTrue(new PacketKey(org.dkf.jed2k.protocol.PacketCombiner.ProtocolType.OP_EDONKEYHEADER.value, (byte)0x22)
                 .compareTo(new PacketKey(org.dkf.jed2k.protocol.PacketCombiner.ProtocolType.OP_PACKEDPROT.value, (byte)0x11)) == 1);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSendingPartHeaderContainsPayload() throws JED2KException {
+        ByteBuffer nb = ByteBuffer.allocate(128);
+        nb.order(ByteOrder.LITTLE_ENDIAN);
+        org.dkf.jed2k.protocol.PacketCombiner combiner = new org.dkf.jed2k.protocol.client.PacketCombiner();
+        SendingPart64 part = new SendingPart64();
+        part.hash.assign(Hash.EMULE);
+        part.beginOffset.assign(1000);
+        part.endOffset.assign(11240);
+        assertTrue(combiner.pack(part, nb));
+        nb.flip();
+        assertEquals(PacketHeader.SIZE + SendingPart64.SIZE, nb.remaining());
+        PacketHeader h = new PacketHeader();
+        h.get(nb);
+        // header describes structure with payload, but only structure is serialized into buffer
+        assertEquals(SendingPart64.SIZE + 10240, h.sizePacket());
+        assertEquals(SendingPart64.SIZE, combiner.serviceSize(h));
+        SendingPart64 part2 = (SendingPart64)combiner.unpack(h, nb);
+        assertEquals(10240, part2.payloadSize());
+        assertEquals(0, part2.hash.compareTo(Hash.EMULE));
+    }
+
+    @Test
+    public void testRequestPartsDispatchable() throws JED2KException {
+        ByteBuffer nb = ByteBuffer.allocate(128);
+        nb.order(ByteOrder.LITTLE_ENDIAN);
+        org.dkf.jed2k.protocol.PacketCombiner combiner = new org.dkf.jed2k.protocol.client.PacketCombiner();
+        RequestParts32 req = new RequestParts32(Hash.EMULE);
+        req.append(0, 100);
+        assertTrue(combiner.pack(req, nb));
+        nb.flip();
+        PacketHeader h = new PacketHeader();
+        h.get(nb);
+        Serializable pkt = combiner.unpack(h, nb);
+        assertTrue(pkt instanceof RequestParts32);
+        assertTrue(pkt instanceof Dispatchable);
+        assertEquals(100, ((RequestParts32)pkt).getEndOffset(0).longValue());
+    }
+
+    /**
+     * pack structure and compress it's body like remote does for packed protocol
+     * @return buffer with compressed body, header is reset to packed protocol
+     */
+    private static ByteBuffer packCompressed(final org.dkf.jed2k.protocol.PacketCombiner combiner
+            , final Serializable object
+            , final PacketHeader h) throws JED2KException {
+        ByteBuffer nb = ByteBuffer.allocate(object.bytesCount() + PacketHeader.SIZE + 1);
+        nb.order(ByteOrder.LITTLE_ENDIAN);
+        assertTrue(combiner.pack(object, nb));
+        nb.flip();
+        h.get(nb);
+        byte[] body = new byte[nb.remaining()];
+        nb.get(body);
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] compressed = new byte[body.length + 64];
+        int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+
+        h.reset(PacketKey.pk(org.dkf.jed2k.protocol.PacketCombiner.ProtocolType.OP_PACKEDPROT.value, h.key().packet), compressedLength + 1);
+        ByteBuffer res = ByteBuffer.wrap(compressed, 0, compressedLength);
+        res.order(ByteOrder.LITTLE_ENDIAN);
+        return res;
+    }
+
+    @Test
+    public void testUnpackCompressed() throws JED2KException {
+        org.dkf.jed2k.protocol.PacketCombiner combiner = new org.dkf.jed2k.protocol.server.PacketCombiner();
+        byte[] text = new byte[60000];
+        for(int i = 0; i < text.length; ++i) text[i] = (byte)('a' + i % 3);
+        Message msg = new Message();
+        msg.setValue(text);
+
+        // decompression state is reused, so unpack few packets of different size
+        for(int i = 0; i < 3; ++i) {
+            PacketHeader h = new PacketHeader();
+            ByteBuffer src = packCompressed(combiner, login, h);
+            LoginRequest login2 = (LoginRequest)combiner.unpack(h, src);
+            assertEquals(0, login2.hash.compareTo(Hash.EMULE));
+            assertEquals(4, login2.properties.size());
+            assertEquals("jed2k", login2.properties.get(2).stringValue());
+
+            h = new PacketHeader();
+            src = packCompressed(combiner, msg, h);
+            Message msg2 = (Message)combiner.unpack(h, src);
+            assertEquals(text.length, msg2.getValue().length);
+            assertEquals(text[text.length - 1], msg2.getValue()[text.length - 1]);
+        }
+    }
+}
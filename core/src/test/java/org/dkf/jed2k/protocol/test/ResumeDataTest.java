@@ -5,12 +5,14 @@ import org.dkf.jed2k.Time;
 import org.dkf.jed2k.data.PieceBlock;
 import org.dkf.jed2k.exception.JED2KException;
 import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PieceHashState;
 import org.dkf.jed2k.protocol.TransferResumeData;
 import org.junit.Test;
 
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import static junit.framework.Assert.assertEquals;
@@ -39,6 +41,10 @@ public class ResumeDataTest {
             trd.downloadedBlocks.add(new PieceBlock(2, i));
         }
 
+        byte[] context = new byte[16];
+        for(int i = 0; i < context.length; ++i) context[i] = (byte)i;
+        trd.hashStates.add(new PieceHashState(2, 22, context));
+
         ByteBuffer bb = ByteBuffer.allocate(trd.bytesCount());
         bb.order(ByteOrder.LITTLE_ENDIAN);
         trd.put(bb);
@@ -62,6 +68,30 @@ public class ResumeDataTest {
         assertTrue(trd2.pieces.getBit(1));
         assertFalse(trd2.pieces.getBit(2));
         assertFalse(trd2.pieces.getBit(3));
+        assertEquals(1, trd2.hashStates.size());
+        PieceHashState hs = trd2.hashStates.get(0);
+        assertEquals(2, hs.pieceIndex.intValue());
+        assertEquals(22, hs.blocks.intValue());
+        assertTrue(Arrays.equals(context, hs.getContext()));
+    }
+
+    @Test
+    public void testResumeDataWithoutHashStates() throws JED2KException {
+        TransferResumeData trd = new TransferResumeData();
+        trd.hashes.add(Hash.EMULE);
+        trd.pieces.resize(1);
+        trd.downloadedBlocks.add(new PieceBlock(0, 1));
+
+        // resume data saved before hash states were introduced ends with peers
+        ByteBuffer bb = ByteBuffer.allocate(trd.bytesCount() - trd.hashStates.bytesCount());
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        trd.peers.put(trd.downloadedBlocks.put(trd.pieces.put(trd.hashes.put(bb))));
+        assertFalse(bb.hasRemaining());
+        bb.flip();
+        TransferResumeData trd2 = new TransferResumeData();
+        trd2.get(bb);
+        assertEquals(1, trd2.downloadedBlocks.size());
+        assertEquals(0, trd2.hashStates.size());
     }
 
     @Test
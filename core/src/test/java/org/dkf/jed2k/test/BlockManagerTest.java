@@ -115,4 +115,29 @@ public class BlockManagerTest {
         src.retainAll(dst);
         assertEquals(src.size(), Constants.BLOCKS_PER_PIECE);
     }
+
+    @Test
+    public void testResumeFromSavedState() {
+        BlockManager bm = new BlockManager(0, Constants.BLOCKS_PER_PIECE);
+        int savedBlocks = 17;
+        for(int i = 0; i < savedBlocks; ++i) {
+            buffer.position(i*(int)Constants.BLOCK_SIZE);
+            ByteBuffer localBuffer = buffer.slice();
+            localBuffer.limit((int)Constants.BLOCK_SIZE);
+            bm.registerBlock(i, localBuffer);
+        }
+
+        assertEquals(savedBlocks, bm.hashedBlocks());
+        BlockManager resumed = new BlockManager(0, Constants.BLOCKS_PER_PIECE, savedBlocks - 2, bm.getContext(savedBlocks - 2));
+        assertEquals(savedBlocks - 2, resumed.hashedBlocks());
+
+        for(int i = savedBlocks - 2; i < Constants.BLOCKS_PER_PIECE; ++i) {
+            buffer.position(i*(int)Constants.BLOCK_SIZE);
+            ByteBuffer localBuffer = buffer.slice();
+            localBuffer.limit((int)Constants.BLOCK_SIZE);
+            assertEquals(1, resumed.registerBlock(i, localBuffer).size());
+        }
+
+        assertEquals(pieceHash, resumed.pieceHash());
+    }
 }
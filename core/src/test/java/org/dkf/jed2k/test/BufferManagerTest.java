@@ -0,0 +1,88 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.pool.BufferPool;
+import org.dkf.jed2k.protocol.Hash;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class BufferManagerTest {
+
+    private static Transfer makeTransfer(final Hash h) throws JED2KException {
+        return new Transfer(new AddTransferParams(h, 0, Constants.PIECE_SIZE, new File(""), false), new PiecePicker(1, Constants.BLOCKS_PER_PIECE));
+    }
+
+    private static void allocate(final BufferManager mgr, final Transfer t, final LinkedList<ByteBuffer> buffers, int count) {
+        for(int i = 0; i < count; ++i) {
+            ByteBuffer b = mgr.allocate(t);
+            assertTrue(b != null);
+            buffers.add(b);
+        }
+    }
+
+    @Test
+    public void testQuotas() throws JED2KException {
+        Settings settings = new Settings();
+        settings.transferBufferReserve = 50;
+        settings.transferBufferLimit = 80;
+        ArrayList<Transfer> transfers = new ArrayList<Transfer>();
+        Transfer t1 = makeTransfer(Hash.EMULE);
+        Transfer t2 = makeTransfer(Hash.TERMINAL);
+        transfers.add(t1);
+        transfers.add(t2);
+        BufferManager mgr = new BufferManager(new BufferPool(10, false), transfers, settings);
+        LinkedList<ByteBuffer> b1 = new LinkedList<ByteBuffer>();
+        LinkedList<ByteBuffer> b2 = new LinkedList<ByteBuffer>();
+
+        // single transfer borrows whole pool up to hard limit
+        assertEquals(8, mgr.limit());
+        assertEquals(8, mgr.available(t1));
+        allocate(mgr, t1, b1, 8);
+        assertTrue(mgr.allocate(t1) == null);
+        assertEquals(0, mgr.available(t1));
+        assertEquals(5, mgr.reservation(t1));
+        assertEquals(0, mgr.reservation(t2));
+
+        // second transfer gets own reservation from free buffers
+        assertEquals(2, mgr.available(t2));
+        allocate(mgr, t2, b2, 1);
+        assertEquals(2, mgr.reservation(t1));
+        assertEquals(2, mgr.reservation(t2));
+
+        // borrower can not take buffer reserved by second transfer
+        assertEquals(0, mgr.available(t1));
+        assertEquals(1, mgr.available(t2));
+
+        // borrower returns buffers and gets only unreserved ones
+        for(int i = 0; i < 4; ++i) mgr.deallocate(t1, b1.poll(), 0);
+        assertEquals(4, mgr.available(t1));
+        assertEquals(5, mgr.available(t2));
+
+        while(!b1.isEmpty()) mgr.deallocate(t1, b1.poll(), 0);
+        while(!b2.isEmpty()) mgr.deallocate(t2, b2.poll(), 0);
+        assertEquals(0, mgr.reservation(t1));
+    }
+
+    @Test
+    public void testTransferOutOfSession() throws JED2KException {
+        Settings settings = new Settings();
+        ArrayList<Transfer> transfers = new ArrayList<Transfer>();
+        BufferManager mgr = new BufferManager(new BufferPool(10, false), transfers, settings);
+        Transfer t = makeTransfer(Hash.EMULE);
+        LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+
+        // restoring transfer allocates buffers before it is added to transfers
+        allocate(mgr, t, buffers, 3);
+        assertEquals(5, mgr.available(t));
+        transfers.add(t);
+        assertEquals(5, mgr.available(t));
+    }
+}
@@ -1,10 +1,23 @@
 package org.dkf.jed2k.test;
 
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.Alert;
+import org.dkf.jed2k.alert.TransferRemovedAlert;
+import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.exception.JED2KException;
 import org.dkf.jed2k.pool.BufferPool;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.TransferResumeData;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
@@ -13,10 +26,15 @@ import static junit.framework.Assert.assertTrue;
  * Created by inkpot on 08.07.2016.
  */
 public class BufferPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testBufferPool() {
         BufferPool bp = new BufferPool(4);
         assertEquals(0, bp.totalAllocatedBuffers());
+        assertEquals(4, bp.availableBuffers());
         assertEquals(0, bp.cachedBuffers());
         LinkedList<ByteBuffer> allocated = new LinkedList<ByteBuffer>();
         for(int i = 0; i < 4; ++i) {
@@ -27,6 +45,7 @@ public class BufferPoolTest {
         }
 
         assertTrue(bp.allocate() == null);
+        assertEquals(0, bp.availableBuffers());
         for(int i = 0; i < 2; ++i) {
             bp.deallocate(allocated.poll(), i);
             assertEquals(i+1, bp.cachedBuffers());
@@ -115,4 +134,114 @@ public class BufferPoolTest {
 
         buffers.clear();
     }
+
+    @Test
+    public void testIdleBuffersTrimming() {
+        BufferPool pool = new BufferPool(10);
+        pool.setMaxIdleTime(1000);
+        LinkedList<ByteBuffer> buffers = new LinkedList<>();
+        for(int i = 0; i < 4; ++i) buffers.add(pool.allocate());
+        assertEquals(4, pool.misses());
+
+        pool.deallocate(buffers.poll(), 100);
+        pool.deallocate(buffers.poll(), 200);
+        pool.deallocate(buffers.poll(), 1500);
+        assertEquals(3, pool.cachedBuffers());
+
+        pool.secondTick(1150);
+        assertEquals(2, pool.cachedBuffers());
+        pool.secondTick(1200);
+        assertEquals(1, pool.cachedBuffers());
+
+        assertTrue(pool.allocate() != null);
+        assertEquals(5, pool.allocations());
+        assertEquals(4, pool.misses());
+        assertEquals(0, pool.cachedBuffers());
+
+        pool.secondTick(100000);
+        assertEquals(2, pool.totalAllocatedBuffers());
+    }
+
+    @Test
+    public void testSlabs() {
+        BufferPool pool = new BufferPool(20);
+        LinkedList<ByteBuffer> buffers = new LinkedList<>();
+        for(int i = 0; i < 10; ++i) {
+            ByteBuffer b = pool.allocate();
+            assertTrue(b.isDirect());
+            assertEquals(Constants.BLOCK_SIZE_INT, b.remaining());
+            b.put((byte)i);
+            buffers.add(b);
+        }
+
+        assertEquals(2, pool.slabsCount());
+        for(int i = 0; i < 10; ++i) assertEquals((byte)i, buffers.get(i).get(0));
+
+        assertTrue(pool.allocate() != null);
+        pool.setMaxIdleTime(1);
+        for(final ByteBuffer b: buffers) pool.deallocate(b, 0);
+        assertEquals(10, pool.cachedBuffers());
+        assertEquals(2, pool.slabsCount());
+
+        // slab with still allocated buffer remains
+        pool.secondTick(10);
+        assertEquals(0, pool.cachedBuffers());
+        assertEquals(1, pool.slabsCount());
+    }
+
+    @Test
+    public void testAllocationFailures() {
+        BufferPool pool = new BufferPool(1, false);
+        ByteBuffer b = pool.allocate();
+        assertTrue(b != null);
+        assertTrue(!b.isDirect());
+        assertTrue(pool.allocate() == null);
+        assertEquals(1, pool.failures());
+        assertEquals(1, pool.allocations());
+    }
+
+    @Test
+    public void testBuffersOfAbortedTransfer() throws IOException, JED2KException, InterruptedException {
+        Settings settings = new Settings();
+        settings.listenPort = -1;
+        settings.diskIOThreads = 1;
+        settings.bufferPoolSize = 20;
+        Session session = new SessionTrial(settings, new LinkedList<Endpoint>());
+        session.start();
+
+        // occupy the only disk worker, so operations of transfer are cancelled before execution
+        final CountDownLatch latch = new CountDownLatch(1);
+        Transfer blocker = new Transfer(new AddTransferParams(Hash.TERMINAL, Time.currentTimeMillis(), Constants.PIECE_SIZE + 1000, folder.newFile("blocker.dat"), true), null);
+        session.submitDiskTask(blocker, new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                latch.await();
+                return null;
+            }
+        });
+
+        TransferResumeData trd = new TransferResumeData();
+        for(int i = 0; i < 3; ++i) trd.hashes.add(Hash.EMULE);
+        trd.pieces.resize(3);
+        for(int i = 0; i < 10; ++i) trd.downloadedBlocks.add(new PieceBlock(1, i));
+        AddTransferParams atp = new AddTransferParams(Hash.EMULE, Time.currentTimeMillis(), Constants.PIECE_SIZE*2 + 1000, folder.newFile("restore.dat"), true);
+        atp.resumeData.setData(trd);
+        session.addTransfer(atp);
+        assertEquals(10, settings.bufferPoolSize - session.availablePoolBuffers(null));
+
+        session.removeTransfer(Hash.EMULE, false);
+        boolean removed = false;
+        for(int i = 0; i < 100 && !removed; ++i) {
+            Alert a = session.popAlert();
+            if (a instanceof TransferRemovedAlert) removed = true;
+            else if (a == null) Thread.sleep(50);
+        }
+
+        assertTrue(removed);
+        assertEquals(settings.bufferPoolSize, session.availablePoolBuffers(null));
+
+        latch.countDown();
+        session.abort();
+        session.join();
+    }
 }
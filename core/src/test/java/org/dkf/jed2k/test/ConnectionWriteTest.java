@@ -0,0 +1,251 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.Alert;
+import org.dkf.jed2k.alert.ListenAlert;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PacketHeader;
+import org.dkf.jed2k.protocol.Serializable;
+import org.dkf.jed2k.protocol.TransferResumeData;
+import org.dkf.jed2k.protocol.client.*;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * gathering writes of peer connection on loopback socket
+ * packets are queued by public handlers under session lock, so session's thread sends them by write vectors later
+ * only the first packet is sent immediately by the handler which queued it
+ */
+public class ConnectionWriteTest {
+    private static final int HASHES = 300;
+    private static final int LARGE_BUFFER = 1024*1024;
+    private static final int SMALL_BUFFER = 8*1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Session session = null;
+    private ServerSocketChannel server = null;
+    private SocketChannel remote = null;
+    private PeerConnection connection = null;
+    private final LinkedList<Hash> hashSet = new LinkedList<Hash>();
+
+    /**
+     * start session with transfer which has large hash set and connect peer connection of session to remote socket
+     * @param coalesceSize max size of write vector
+     * @param socketBufferSize send buffer of connection and receive buffer of remote socket
+     */
+    private void start(int coalesceSize, int socketBufferSize) throws IOException, JED2KException, InterruptedException {
+        ServerSocket probe = new ServerSocket(0);
+        Settings settings = new Settings();
+        settings.listenPort = probe.getLocalPort();
+        settings.maxWriteCoalesceSize = coalesceSize;
+        probe.close();
+        session = new Session(settings);
+        session.start();
+
+        // listen alert means session's selector is ready for registration of connections
+        boolean listen = false;
+        for(int i = 0; i < 100 && !listen; ++i) {
+            Alert a = session.popAlert();
+            if (a instanceof ListenAlert) listen = true;
+            else if (a == null) Thread.sleep(50);
+        }
+
+        assertTrue(listen);
+
+        TransferResumeData trd = new TransferResumeData();
+        for(int i = 0; i < HASHES; ++i) {
+            byte[] value = new byte[16];
+            value[0] = (byte)i;
+            value[1] = (byte)(i >> 8);
+            hashSet.add(Hash.fromBytes(value));
+        }
+
+        trd.hashes.addAll(hashSet);
+        trd.pieces.resize(HASHES);
+        trd.pieces.setBit(0);
+        AddTransferParams atp = new AddTransferParams(Hash.EMULE, Time.currentTimeMillis(), Constants.PIECE_SIZE*(HASHES - 1) + 1000, folder.newFile("hashes.dat"), true);
+        atp.resumeData.setData(trd);
+        session.addTransfer(atp);
+
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(socketBufferSize);
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel local = SocketChannel.open();
+        local.socket().setSendBufferSize(socketBufferSize);
+        local.connect(server.socket().getLocalSocketAddress());
+        remote = server.accept();
+        connection = PeerConnection.make(local, session);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (remote != null) remote.close();
+        if (server != null) server.close();
+        if (session != null) {
+            session.abort();
+            session.join();
+        }
+    }
+
+    private HashSetAnswer hashSetAnswer() {
+        HashSetAnswer answer = new HashSetAnswer();
+        answer.hash.assign(Hash.EMULE);
+        answer.parts.assignFrom(hashSet);
+        return answer;
+    }
+
+    /**
+     * queue hash set answers only, each one requires dedicated segment
+     * @param count packets count
+     * @return expected packets
+     */
+    private List<Serializable> queueHashSets(int count) throws JED2KException {
+        LinkedList<Serializable> res = new LinkedList<Serializable>();
+        synchronized (session) {
+            for(int i = 0; i < count; ++i) {
+                connection.onClientHashSetRequest(new HashSetRequest(Hash.EMULE));
+                res.add(hashSetAnswer());
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * queue small packets of different types fill standard segments, hash set answer is added each 25 packets
+     * @param count packets count
+     * @return expected packets
+     */
+    private List<Serializable> queueMixed(int count) throws JED2KException {
+        LinkedList<Serializable> res = new LinkedList<Serializable>();
+        synchronized (session) {
+            for(int i = 0; i < count; ++i) {
+                if (i % 25 == 0) {
+                    connection.onClientHashSetRequest(new HashSetRequest(Hash.EMULE));
+                    res.add(hashSetAnswer());
+                } else if (i % 3 == 0) {
+                    connection.acceptUpload();
+                    res.add(new AcceptUpload());
+                } else if (i % 3 == 1) {
+                    connection.sendQueueRanking(i);
+                    QueueRanking qr = new QueueRanking();
+                    qr.rank = (short)i;
+                    res.add(qr);
+                } else {
+                    // session has no transfer with this hash
+                    connection.onClientFileRequest(new FileRequest(Hash.TERMINAL));
+                    res.add(new NoFileStatus(Hash.TERMINAL));
+                }
+            }
+        }
+
+        return res;
+    }
+
+    private static int size(final Serializable packet) {
+        return PacketHeader.SIZE + packet.bytesCount();
+    }
+
+    private static ByteBuffer pack(final List<Serializable> packets) throws JED2KException {
+        int total = 0;
+        for(final Serializable p: packets) total += size(p);
+        ByteBuffer res = ByteBuffer.allocate(total + 1);
+        res.order(ByteOrder.LITTLE_ENDIAN);
+        PacketCombiner combiner = new PacketCombiner();
+        for(final Serializable p: packets) assertTrue(combiner.pack(p, res));
+        res.flip();
+        return res;
+    }
+
+    private ByteBuffer receive(int size) throws IOException {
+        ByteBuffer res = ByteBuffer.allocate(size);
+        while(res.hasRemaining()) {
+            if (remote.read(res) == -1) break;
+        }
+
+        res.flip();
+        return res;
+    }
+
+    private Statistics statistics() {
+        // statistics are updated by session's thread right after socket write
+        synchronized (session) {
+            Statistics res = new Statistics();
+            res.add(connection.statistics());
+            return res;
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testMixedPackets() throws IOException, JED2KException, InterruptedException {
+        start(16*1024, LARGE_BUFFER);
+        List<Serializable> packets = queueMixed(200);
+        ByteBuffer expected = pack(packets);
+        assertEquals(expected, receive(expected.remaining()));
+
+        Statistics stat = statistics();
+        assertEquals(200, stat.packetsSent());
+        // write vector size differs from limit no more than one largest packet
+        int rest = expected.remaining() - size(packets.get(0));
+        int largest = size(hashSetAnswer()) + 1;
+        long min = 1 + (rest + 16*1024 + largest - 1)/(16*1024 + largest);
+        long max = 1 + (rest + 16*1024 - largest - 1)/(16*1024 - largest);
+        assertTrue(stat.writeCalls() >= min);
+        assertTrue(stat.writeCalls() <= max);
+    }
+
+    @Test(timeout = 20000)
+    public void testLargePackets() throws IOException, JED2KException, InterruptedException {
+        start(16*1024, LARGE_BUFFER);
+        ByteBuffer expected = pack(queueHashSets(31));
+        assertEquals(expected, receive(expected.remaining()));
+        // first packet is sent immediately, next packets by three in 16K vector
+        Statistics stat = statistics();
+        assertEquals(31, stat.packetsSent());
+        assertEquals(11, stat.writeCalls());
+    }
+
+    @Test(timeout = 20000)
+    public void testCoalesceLimit() throws IOException, JED2KException, InterruptedException {
+        start(10000, LARGE_BUFFER);
+        ByteBuffer expected = pack(queueHashSets(31));
+        assertEquals(expected, receive(expected.remaining()));
+        // third packet of 4824 bytes doesn't fit limit
+        Statistics stat = statistics();
+        assertEquals(31, stat.packetsSent());
+        assertEquals(16, stat.writeCalls());
+    }
+
+    @Test(timeout = 20000)
+    public void testPartialWrites() throws IOException, JED2KException, InterruptedException {
+        start(16*1024, SMALL_BUFFER);
+        List<Serializable> packets = queueMixed(1000);
+        ByteBuffer expected = pack(packets);
+        // socket buffers are filled, vectors are sent by parts when remote reads data
+        Thread.sleep(200);
+        assertEquals(expected, receive(expected.remaining()));
+
+        Statistics stat = statistics();
+        assertEquals(1000, stat.packetsSent());
+        long vectors = 1 + (expected.remaining() - size(packets.get(0)))/(16*1024 + size(hashSetAnswer()) + 1);
+        assertTrue(stat.writeCalls() > vectors);
+    }
+}
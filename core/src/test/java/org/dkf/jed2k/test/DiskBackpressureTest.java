@@ -0,0 +1,125 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.Alert;
+import org.dkf.jed2k.alert.TransferRemovedAlert;
+import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.disk.DiskIOStatus;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.TransferResumeData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class DiskBackpressureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWatermarks() {
+        Settings settings = new Settings();
+        settings.diskQueueHighWatermark = 1000;
+        settings.diskQueueLowWatermark = 500;
+        DiskBackpressure bp = new DiskBackpressure(settings);
+
+        bp.submitted(600, 0);
+        bp.submitted(400, 10);
+        assertFalse(bp.isStalled());
+        bp.submitted(100, 20);
+        assertTrue(bp.isStalled());
+        assertEquals(1100, bp.queuedBytes());
+        assertEquals(1, bp.stalls());
+
+        // below high watermark but over low one stall continues
+        bp.completed(400, 100);
+        assertTrue(bp.isStalled());
+        assertEquals(180, bp.stallTime(200));
+
+        bp.completed(200, 300);
+        assertFalse(bp.isStalled());
+        assertEquals(500, bp.queuedBytes());
+        assertEquals(280, bp.stallTime(1000));
+
+        bp.submitted(600, 1000);
+        assertTrue(bp.isStalled());
+        assertEquals(2, bp.stalls());
+        bp.completed(10000, 1100);
+        assertFalse(bp.isStalled());
+        assertEquals(0, bp.queuedBytes());
+        assertEquals(380, bp.stallTime(2000));
+    }
+
+    @Test
+    public void testDisabled() {
+        Settings settings = new Settings();
+        settings.diskQueueHighWatermark = 0;
+        DiskBackpressure bp = new DiskBackpressure(settings);
+        bp.submitted(Long.MAX_VALUE/2, 0);
+        assertFalse(bp.isStalled());
+    }
+
+    @Test
+    public void testAbortedTransferReleasesQueuedBytes() throws IOException, JED2KException, InterruptedException {
+        Settings settings = new Settings();
+        settings.listenPort = -1;
+        settings.diskIOThreads = 1;
+        settings.diskQueueHighWatermark = Constants.BLOCK_SIZE*2;
+        settings.diskQueueLowWatermark = Constants.BLOCK_SIZE;
+        Session session = new SessionTrial(settings, new LinkedList<Endpoint>());
+        session.start();
+
+        // occupy the only disk worker, so operations of transfer stay queued
+        final CountDownLatch latch = new CountDownLatch(1);
+        Transfer blocker = new Transfer(new AddTransferParams(Hash.TERMINAL, Time.currentTimeMillis(), Constants.PIECE_SIZE + 1000, folder.newFile("blocker.dat"), true), null);
+        Future<AsyncOperationResult> blocking = session.submitDiskTask(blocker, new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                latch.await();
+                return null;
+            }
+        });
+
+        TransferResumeData trd = new TransferResumeData();
+        for(int i = 0; i < 3; ++i) trd.hashes.add(Hash.EMULE);
+        trd.pieces.resize(3);
+        for(int i = 0; i < 10; ++i) trd.downloadedBlocks.add(new PieceBlock(0, i));
+        AddTransferParams atp = new AddTransferParams(Hash.EMULE, Time.currentTimeMillis(), Constants.PIECE_SIZE*2 + 1000, folder.newFile("restore.dat"), true);
+        atp.resumeData.setData(trd);
+        session.addTransfer(atp);
+
+        DiskIOStatus status = session.getDiskIOStatus();
+        assertEquals(Constants.BLOCK_SIZE*10, status.queuedBytes);
+        assertTrue(status.stalled);
+
+        session.removeTransfer(Hash.EMULE, false);
+        boolean removed = false;
+        for(int i = 0; i < 100 && !removed; ++i) {
+            Alert a = session.popAlert();
+            if (a instanceof TransferRemovedAlert) removed = true;
+            else if (a == null) Thread.sleep(50);
+        }
+
+        assertTrue(removed);
+        status = session.getDiskIOStatus();
+        assertEquals(0, status.queuedBytes);
+        assertFalse(status.stalled);
+
+        latch.countDown();
+        session.abort();
+        session.join();
+        assertTrue(blocking.isDone());
+    }
+}
@@ -0,0 +1,38 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.LatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentileMicros(0.5));
+        h.record(500);          // 0 us
+        h.record(1000);         // 1 us
+        h.record(3000);         // 3 us
+        h.record(1000000);      // 1000 us
+        long[] buckets = h.getBuckets();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[10]);
+        assertEquals(4, h.getCount());
+        assertEquals(1000, h.getMaxMicros());
+        assertEquals(251, h.getAverageMicros());
+        assertEquals(2, h.getPercentileMicros(0.5));
+        assertEquals(1024, h.getPercentileMicros(1));
+    }
+
+    @Test
+    public void testHugeValue() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(Long.MAX_VALUE);
+        assertEquals(1, h.getBuckets()[LatencyHistogram.BUCKETS_COUNT - 1]);
+        h.record(-10);
+        assertEquals(1, h.getBuckets()[0]);
+    }
+}
@@ -0,0 +1,112 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.Alert;
+import org.dkf.jed2k.alert.ListenAlert;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.TransferResumeData;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * sessions and data of transfers over loopback sockets in tests
+ */
+public final class LoopbackSessions {
+
+    private LoopbackSessions() {}
+
+    /**
+     * poll session alerts up to 20 seconds
+     * @return first alert of requested class or null
+     */
+    public static <T extends Alert> T waitAlert(final Session session, final Class<T> clazz) throws InterruptedException {
+        for(int i = 0; i < 400; ++i) {
+            Alert a = session.popAlert();
+            if (clazz.isInstance(a)) return clazz.cast(a);
+            if (a == null) Thread.sleep(50);
+        }
+
+        return null;
+    }
+
+    public static byte[] randomData(int size) {
+        byte[] res = new byte[size];
+        new Random(size).nextBytes(res);
+        return res;
+    }
+
+    public static Hash md4(byte[] data) {
+        MD4 md4 = new MD4();
+        md4.update(data, 0, data.length);
+        return Hash.fromBytes(md4.digest());
+    }
+
+    public static void writeFile(final File f, byte[] data, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(data, 0, length);
+        os.close();
+    }
+
+    public static byte[] readFile(final File f, int size) throws IOException {
+        byte[] res = new byte[size];
+        DataInputStream is = new DataInputStream(new FileInputStream(f));
+        is.readFully(res);
+        is.close();
+        return res;
+    }
+
+    /**
+     * endpoint of session listening on loopback interface
+     * endpoint is created from port number since endpoint from socket address truncates port to short
+     */
+    public static Endpoint endpoint(final Session session) throws JED2KException {
+        return Endpoint.fromString("127.0.0.1", session.getListenPort());
+    }
+
+    /**
+     * start session on free port which shares complete file of one piece
+     * @param settings seeder settings, listen port is assigned here
+     * @param f file to be written with data
+     */
+    public static Session startSeeder(final Settings settings, final File f, byte[] data) throws IOException, JED2KException, InterruptedException {
+        writeFile(f, data, data.length);
+        ServerSocket probe = new ServerSocket(0);
+        settings.listenPort = probe.getLocalPort();
+        probe.close();
+        Session seeder = new Session(settings);
+        seeder.start();
+        assertNotNull(waitAlert(seeder, ListenAlert.class));
+
+        Hash hash = md4(data);
+        TransferResumeData trd = new TransferResumeData();
+        trd.hashes.add(hash);
+        trd.pieces.resize(1);
+        trd.pieces.setBit(0);
+        AddTransferParams atp = new AddTransferParams(hash, Time.currentTimeMillis(), data.length, f, false);
+        atp.resumeData.setData(trd);
+        assertTrue(seeder.addTransfer(atp).isFinished());
+        return seeder;
+    }
+
+    /**
+     * start session without listen port which connects to source on the first tick of each transfer
+     * @param settings downloader settings
+     */
+    public static Session startDownloader(final Settings settings, final Endpoint source) {
+        settings.listenPort = -1;
+        LinkedList<Endpoint> sources = new LinkedList<Endpoint>();
+        sources.add(source);
+        Session downloader = new SessionTrial(settings, sources);
+        downloader.start();
+        return downloader;
+    }
+}
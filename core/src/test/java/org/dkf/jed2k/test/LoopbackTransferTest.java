@@ -0,0 +1,129 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.TransferFinishedAlert;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Hash;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.dkf.jed2k.test.LoopbackSessions.*;
+import static org.junit.Assert.*;
+
+/**
+ * loopback transfer from seeding session to downloading session
+ * connection timeout is longer than test, so throttled or disk stalled connection must be resumed, not replaced by new one
+ */
+public class LoopbackTransferTest {
+    private static final int CONNECTION_TIMEOUT = 600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Session seeder = null;
+    private Session downloader = null;
+    private final CountDownLatch diskLatch = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        diskLatch.countDown();
+        if (downloader != null) {
+            downloader.abort();
+            downloader.join();
+        }
+
+        if (seeder != null) {
+            seeder.abort();
+            seeder.join();
+        }
+    }
+
+    /**
+     * start seeder of data and downloading session
+     * @param settings settings of downloading session
+     */
+    private void startSessions(final Settings settings, final byte[] data) throws IOException, JED2KException, InterruptedException {
+        Settings seederSettings = new Settings();
+        seederSettings.peerConnectionTimeout = CONNECTION_TIMEOUT;
+        seeder = startSeeder(seederSettings, folder.newFile("seed.dat"), data);
+        settings.peerConnectionTimeout = CONNECTION_TIMEOUT;
+        downloader = startDownloader(settings, endpoint(seeder));
+    }
+
+    private File addDownload(final byte[] data) throws JED2KException {
+        File f = new File(folder.getRoot(), "download.dat");
+        downloader.addTransfer(new AddTransferParams(md4(data), Time.currentTimeMillis(), data.length, f, false));
+        return f;
+    }
+
+    /**
+     * wait transfer finished and compare downloaded file with source data
+     */
+    private void checkDownload(final byte[] data, final File f) throws IOException, InterruptedException {
+        assertNotNull(waitAlert(downloader, TransferFinishedAlert.class));
+        downloader.abort();
+        downloader.join();
+        downloader = null;
+        assertArrayEquals(data, readFile(f, data.length));
+    }
+
+    @Test(timeout = 60000)
+    public void testTransfer() throws IOException, JED2KException, InterruptedException {
+        Settings settings = new Settings();
+        byte[] data = randomData(Constants.BLOCK_SIZE_INT*3 + 1000);
+        startSessions(settings, data);
+        checkDownload(data, addDownload(data));
+    }
+
+    @Test(timeout = 60000)
+    public void testThrottledTransfer() throws IOException, JED2KException, InterruptedException {
+        Settings settings = new Settings();
+        settings.peerDownloadRateLimit = 64*1024;
+        byte[] data = randomData(150000);
+        startSessions(settings, data);
+        checkDownload(data, addDownload(data));
+    }
+
+    /**
+     * the only disk worker is blocked, so the first written block stalls disk queue
+     * throttled connection stops in the middle of small second block and pauses on stall with the rest of block in socket
+     */
+    @Test(timeout = 60000)
+    public void testDiskStalledTransfer() throws IOException, JED2KException, InterruptedException {
+        Settings settings = new Settings();
+        settings.peerDownloadRateLimit = 128*1024;
+        settings.diskIOThreads = 1;
+        settings.diskQueueHighWatermark = Constants.BLOCK_SIZE - 1;
+        settings.diskQueueLowWatermark = Constants.BLOCK_SIZE/2;
+        byte[] data = randomData(Constants.BLOCK_SIZE_INT + 1000);
+        startSessions(settings, data);
+
+        Transfer blocker = new Transfer(new AddTransferParams(Hash.TERMINAL, Time.currentTimeMillis(), Constants.PIECE_SIZE + 1000, folder.newFile("blocker.dat"), true), null);
+        downloader.submitDiskTask(blocker, new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                diskLatch.await();
+                return null;
+            }
+        });
+
+        File f = addDownload(data);
+        boolean stalled = false;
+        for(int i = 0; i < 200 && !stalled; ++i) {
+            stalled = downloader.getDiskIOStatus().stalled;
+            if (!stalled) Thread.sleep(50);
+        }
+
+        assertTrue(stalled);
+        Thread.sleep(500);
+        diskLatch.countDown();
+        checkDownload(data, f);
+    }
+}
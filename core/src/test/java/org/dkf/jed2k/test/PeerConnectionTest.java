@@ -1,18 +1,38 @@
 package org.dkf.jed2k.test;
 
-import org.dkf.jed2k.PeerConnection;
-import org.dkf.jed2k.Session;
-import org.dkf.jed2k.Settings;
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.TransferFinishedAlert;
+import org.dkf.jed2k.alert.TransferRemovedAlert;
 import org.dkf.jed2k.exception.JED2KException;
-import org.dkf.jed2k.protocol.client.HelloAnswer;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PacketHeader;
+import org.dkf.jed2k.protocol.Serializable;
+import org.dkf.jed2k.protocol.client.*;
 import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
 
+import static org.dkf.jed2k.test.LoopbackSessions.*;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.when;
 
 /**
@@ -21,16 +41,10 @@ import static org.mockito.Mockito.when;
 public class PeerConnectionTest {
     private final Logger log = LoggerFactory.getLogger(PeerConnectionTest.class);
 
-    /**
-     * trivial max packet size detector
-     * currently max size in outgoing order is HelloAnswer packet, so check his size
-     * set outgoing buffer size to twice of max packet size
-     * @throws JED2KException
-     * @throws IOException
-     */
-    @Test
-    public void testMaxOutgoingPacketSize() throws JED2KException, IOException {
-        Assume.assumeTrue(!System.getProperty("java.runtime.name").toLowerCase().startsWith("android"));
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Session mockSession() {
         Settings s = new Settings();
         Session session = Mockito.mock(Session.class);
         when(session.getUserAgent()).thenReturn(s.userAgent);
@@ -43,6 +57,20 @@ public class PeerConnectionTest {
         when( session.getModMajorVersion()).thenReturn(1);
         when( session.getModMinorVersion()).thenReturn(2);
         when( session.getModBuildVersion()).thenReturn(3);
+        return session;
+    }
+
+    /**
+     * trivial max packet size detector
+     * currently max size in outgoing order is HelloAnswer packet, so check his size
+     * set outgoing buffer size to twice of max packet size
+     * @throws JED2KException
+     * @throws IOException
+     */
+    @Test
+    public void testMaxOutgoingPacketSize() throws JED2KException, IOException {
+        Assume.assumeTrue(!System.getProperty("java.runtime.name").toLowerCase().startsWith("android"));
+        Session session = mockSession();
 
         //SocketChannel ss = Mockito.mock(SocketChannel.class);
         //doNothing().when(ss).register(any(Selector.class), SelectionKey.OP_CONNECT, any(Object.class));
@@ -52,4 +80,398 @@ public class PeerConnectionTest {
         HelloAnswer ha = new HelloAnswer();
         log.info("hello answer size {}", c.prepareHello(ha).bytesCount());
     }
+
+    @Test
+    public void testRequestQueueDepth() {
+        // no measurements yet - base queue
+        assertEquals(Constants.REQUEST_QUEUE_SIZE, PeerConnection.requestQueueDepth(0, 0, 100, 16));
+        assertEquals(Constants.REQUEST_QUEUE_SIZE, PeerConnection.requestQueueDepth(1000000, 0, 100, 16));
+        // one second round trip with rate of two blocks per second
+        assertEquals(Constants.REQUEST_QUEUE_SIZE + 2, PeerConnection.requestQueueDepth(Constants.BLOCK_SIZE*2, 1000, 100, 16));
+        // partial block rounds up
+        assertEquals(Constants.REQUEST_QUEUE_SIZE + 1, PeerConnection.requestQueueDepth(Constants.BLOCK_SIZE, 100, 100, 16));
+        // configured upper bound
+        assertEquals(16, PeerConnection.requestQueueDepth(Constants.BLOCK_SIZE*100, 1000, 100, 16));
+        // buffer pool is near exhausted
+        assertEquals(5, PeerConnection.requestQueueDepth(Constants.BLOCK_SIZE*100, 1000, 5, 16));
+        assertEquals(2, PeerConnection.requestQueueDepth(0, 0, 2, 16));
+        // no buffers - do not request now
+        assertEquals(0, PeerConnection.requestQueueDepth(Constants.BLOCK_SIZE*100, 1000, 0, 16));
+        assertEquals(0, PeerConnection.requestQueueDepth(0, 0, 0, 16));
+    }
+
+    /**
+     * remote peer which sends blocks of file by compressed parts, served in test's thread by blocking socket
+     */
+    private static class CompressingPeer {
+        private final ServerSocket server;
+        private final Hash hash;
+        private final PacketCombiner combiner = new PacketCombiner();
+        private Socket socket = null;
+        private DataInputStream in = null;
+        private OutputStream out = null;
+        private final HashSet<Long> requested = new HashSet<Long>();
+
+        CompressingPeer(final Hash hash) throws IOException {
+            this.hash = hash;
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            server.setSoTimeout(10000);
+        }
+
+        Endpoint endpoint() throws JED2KException {
+            return Endpoint.fromString(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+        }
+
+        void accept() throws IOException {
+            socket = server.accept();
+            socket.setSoTimeout(10000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void close() throws IOException {
+            if (socket != null) socket.close();
+            server.close();
+        }
+
+        Serializable read() throws IOException, JED2KException {
+            byte[] headerData = new byte[PacketHeader.SIZE];
+            in.readFully(headerData);
+            PacketHeader header = new PacketHeader();
+            header.get(ByteBuffer.wrap(headerData).order(ByteOrder.LITTLE_ENDIAN));
+            byte[] body = new byte[header.sizePacket()];
+            in.readFully(body);
+            return combiner.unpack(header, ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        <T extends Serializable> T expect(Class<T> clazz) throws IOException, JED2KException {
+            while(true) {
+                Serializable packet = read();
+                if (clazz.isInstance(packet)) return clazz.cast(packet);
+            }
+        }
+
+        void write(final Serializable packet) throws IOException, JED2KException {
+            ByteBuffer buffer = ByteBuffer.allocate(PacketHeader.SIZE + packet.bytesCount() + 1);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            assertTrue(combiner.pack(packet, buffer));
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        /**
+         * answer downloader's requests up to request of parts
+         * @return count of requested blocks
+         */
+        int handshake() throws IOException, JED2KException {
+            expect(Hello.class);
+            write(PeerConnection.make(null, mockSession()).prepareHello(new HelloAnswer()));
+            expect(FileRequest.class);
+            FileAnswer fa = new FileAnswer();
+            fa.hash.assign(hash);
+            fa.name.assignString("compressed.dat");
+            write(fa);
+            expect(FileStatusRequest.class);
+            // empty pieces mean complete source
+            FileStatusAnswer fsa = new FileStatusAnswer();
+            fsa.hash.assign(hash);
+            write(fsa);
+            expect(StartUpload.class);
+            write(new AcceptUpload());
+            return readRequest();
+        }
+
+        /**
+         * @return count of requested blocks
+         */
+        private int readRequest() throws IOException, JED2KException {
+            RequestParts64 request = expect(RequestParts64.class);
+            int res = 0;
+            for(int i = 0; i < Constants.PARTS_IN_REQUEST; ++i) {
+                if (request.getBeginOffset(i).longValue() < request.getEndOffset(i).longValue()) {
+                    requested.add(request.getBeginOffset(i).longValue());
+                    ++res;
+                }
+            }
+
+            return res;
+        }
+
+        /**
+         * wait for request of block
+         * @param begin begin offset of block
+         */
+        void expectRequest(long begin) throws IOException, JED2KException {
+            while(!requested.contains(begin)) readRequest();
+        }
+
+        /**
+         * send part of compressed block, like eMule each part contains block's begin offset and whole compressed length
+         */
+        void sendCompressed(long begin, byte[] compressed, int offset, int length) throws IOException, JED2KException {
+            CompressedPart64 part = new CompressedPart64();
+            part.hash.assign(hash);
+            part.beginOffset.assign(begin);
+            part.compressedLength.assign(compressed.length);
+            ByteBuffer buffer = ByteBuffer.allocate(PacketHeader.SIZE + part.bytesCount() + length + 1);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            assertTrue(combiner.pack(part, buffer));
+            // packet size includes data of part
+            buffer.putInt(1, part.bytesCount() + length + 1);
+            buffer.put(compressed, offset, length);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        /**
+         * @return true if downloader closed connection
+         */
+        boolean closedByRemote() throws JED2KException {
+            try {
+                while(true) read();
+            } catch(SocketTimeoutException e) {
+                return false;
+            } catch(IOException e) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * file data which half is repeated pattern, so compressed block is sent by several parts
+     */
+    private static byte[] fileData(int size) {
+        byte[] res = randomData(size);
+        for(int i = 0; i < size; ++i) {
+            if ((i / 64) % 2 == 0) res[i] = (byte)(i % 7);
+        }
+
+        return res;
+    }
+
+    private static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            res.write(chunk, 0, n);
+        }
+
+        deflater.end();
+        return res.toByteArray();
+    }
+
+    private static Session startSession(final Endpoint source, int poolSize) {
+        Settings settings = new Settings();
+        settings.bufferPoolSize = poolSize;
+        return startDownloader(settings, source);
+    }
+
+    private static int waitPoolBuffers(final Session session, int expected) throws InterruptedException {
+        int res = session.availablePoolBuffers(null);
+        for(int i = 0; i < 100 && res != expected; ++i) {
+            Thread.sleep(50);
+            res = session.availablePoolBuffers(null);
+        }
+
+        return res;
+    }
+
+    @Test(timeout = 30000)
+    public void testCompressedBlocks() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block*2 + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Session session = startSession(peer.endpoint(), 10);
+        File f = folder.newFile("compressed.dat");
+        session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, f, false));
+
+        peer.accept();
+        assertEquals(3, peer.handshake());
+        byte[] z0 = deflate(data, 0, block);
+        byte[] z1 = deflate(data, block, block);
+        byte[] z2 = deflate(data, block*2, 5000);
+        assertTrue(z0.length > 4*16*1024);
+        assertTrue(z1.length > 16*1024);
+
+        // parts of first two blocks are interleaved, so each block is inflated by own inflater
+        // parts are not aligned to 16K chunks of compressed data read by connection
+        peer.sendCompressed(0, z0, 0, 1000);
+        peer.sendCompressed(block, z1, 0, 16*1024);
+        peer.sendCompressed(0, z0, 1000, 16*1024 + 1);
+        peer.sendCompressed(0, z0, 17385, 1);
+        peer.sendCompressed(block, z1, 16*1024, z1.length - 16*1024);
+        peer.sendCompressed(0, z0, 17386, z0.length - 17386);
+        // the last block reuses inflater of completed block cached by connection
+        peer.sendCompressed(block*2, z2, 0, z2.length/2);
+        peer.sendCompressed(block*2, z2, z2.length/2, z2.length - z2.length/2);
+
+        // piece hash passed, so pool buffers contained inflated data
+        assertNotNull(waitAlert(session, TransferFinishedAlert.class));
+        assertEquals(10, waitPoolBuffers(session, 10));
+        session.abort();
+        session.join();
+        peer.close();
+
+        assertArrayEquals(data, readFile(f, data.length));
+    }
+
+    @Test(timeout = 30000)
+    public void testWaitPoolBuffers() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block*2 + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Settings settings = new Settings();
+        settings.bufferPoolSize = 1;
+        settings.diskIOThreads = 1;
+        Session session = startDownloader(settings, peer.endpoint());
+
+        // the only disk worker is blocked, so written block holds the only pool buffer
+        final CountDownLatch diskLatch = new CountDownLatch(1);
+        Transfer blocker = new Transfer(new AddTransferParams(Hash.TERMINAL, Time.currentTimeMillis(), Constants.PIECE_SIZE + 1000, folder.newFile("blocker.dat"), true), null);
+        session.submitDiskTask(blocker, new Callable<AsyncOperationResult>() {
+            @Override
+            public AsyncOperationResult call() throws Exception {
+                diskLatch.await();
+                return null;
+            }
+        });
+
+        File f = folder.newFile("wait.dat");
+        session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, f, false));
+        peer.accept();
+        peer.handshake();
+        byte[] z0 = deflate(data, 0, block);
+        peer.expectRequest(0);
+        peer.sendCompressed(0, z0, 0, z0.length);
+
+        Thread release = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch(InterruptedException e) {
+                    // release immediately
+                } finally {
+                    diskLatch.countDown();
+                }
+            }
+        };
+
+        release.start();
+
+        // next blocks wait for buffer in socket or in picker until the first block is written
+        for(int i = 1; i < 3; ++i) {
+            byte[] z = deflate(data, block*i, Math.min(block, data.length - block*i));
+            peer.expectRequest((long)block*i);
+            peer.sendCompressed(block*i, z, 0, z.length);
+        }
+
+        assertNotNull(waitAlert(session, TransferFinishedAlert.class));
+        release.join();
+        assertEquals(1, waitPoolBuffers(session, 1));
+        session.abort();
+        session.join();
+        peer.close();
+        assertArrayEquals(data, readFile(f, data.length));
+    }
+
+    @Test(timeout = 30000)
+    public void testCorruptCompressedBlock() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Session session = startSession(peer.endpoint(), 10);
+        session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, folder.newFile("corrupt.dat"), false));
+
+        peer.accept();
+        assertEquals(2, peer.handshake());
+        // data without zlib header
+        byte[] garbage = new byte[20000];
+        Arrays.fill(garbage, (byte)0x55);
+        peer.sendCompressed(0, garbage, 0, garbage.length);
+        assertTrue(peer.closedByRemote());
+        assertEquals(10, waitPoolBuffers(session, 10));
+        session.abort();
+        session.join();
+        peer.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testOversizedCompressedBlock() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Session session = startSession(peer.endpoint(), 10);
+        session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, folder.newFile("oversized.dat"), false));
+
+        peer.accept();
+        assertEquals(2, peer.handshake());
+        // valid stream inflates to more than 5000 bytes of the last block, inflater stalls on full buffer
+        byte[] random = new byte[20000];
+        new Random(1).nextBytes(random);
+        byte[] z = deflate(random, 0, random.length);
+        peer.sendCompressed(block, z, 0, z.length);
+        assertTrue(peer.closedByRemote());
+        assertEquals(10, waitPoolBuffers(session, 10));
+        session.abort();
+        session.join();
+        peer.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testAbortInCompressedBlock() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Session session = startSession(peer.endpoint(), 10);
+        session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, folder.newFile("abort.dat"), false));
+
+        peer.accept();
+        assertEquals(2, peer.handshake());
+        byte[] z0 = deflate(data, 0, block);
+        byte[] z1 = deflate(data, block, 5000);
+        peer.sendCompressed(0, z0, 0, z0.length/2);
+        peer.sendCompressed(block, z1, 0, z1.length/2);
+        // both blocks are in progress and hold inflaters and pool buffers
+        assertEquals(8, waitPoolBuffers(session, 8));
+
+        session.removeTransfer(hash, false);
+        assertNotNull(waitAlert(session, TransferRemovedAlert.class));
+        assertTrue(peer.closedByRemote());
+        assertEquals(10, waitPoolBuffers(session, 10));
+        session.abort();
+        session.join();
+        peer.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testDisconnectInCompressedBlock() throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        byte[] data = fileData(block + 5000);
+        Hash hash = md4(data);
+        CompressingPeer peer = new CompressingPeer(hash);
+        Session session = startSession(peer.endpoint(), 10);
+        TransferHandle handle = session.addTransfer(new AddTransferParams(hash, Time.currentTimeMillis(), data.length, folder.newFile("disconnect.dat"), false));
+
+        peer.accept();
+        assertEquals(2, peer.handshake());
+        byte[] z0 = deflate(data, 0, block);
+        byte[] z1 = deflate(data, block, 5000);
+        peer.sendCompressed(0, z0, 0, z0.length/2);
+        peer.sendCompressed(block, z1, 0, z1.length/2);
+        assertEquals(8, waitPoolBuffers(session, 8));
+
+        peer.close();
+        assertEquals(10, waitPoolBuffers(session, 10));
+        assertFalse(handle.isFinished());
+        session.abort();
+        session.join();
+    }
 }
@@ -4,7 +4,13 @@ import org.dkf.jed2k.Constants;
 import org.dkf.jed2k.DesktopFileHandler;
 import org.dkf.jed2k.PieceManager;
 import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.disk.WriteCombiner;
+import org.dkf.jed2k.disk.WriteStatistics;
 import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.AichTree;
+import org.dkf.jed2k.protocol.AichHash;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PieceHashState;
 import org.dkf.jed2k.pool.BufferPool;
 import org.junit.Before;
 import org.junit.Rule;
@@ -12,11 +18,15 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.channels.FileChannel;
+import java.util.*;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 
 /**
  * Created by ap197_000 on 23.08.2016.
@@ -93,4 +103,122 @@ public class PieceManagerTest {
             assertEquals(res1.get(0).get(), rres.get(0).get());
         }
     }
+
+    @Test
+    public void testRestoreHashState() throws IOException, JED2KException {
+        File f = folder.newFile("pm_state.dat");
+        long fileSize = Constants.PIECE_SIZE*2 + Constants.BLOCK_SIZE*3;
+        PieceManager pm = new PieceManager(new DesktopFileHandler(f), 3, 3);
+        assertNull(pm.hashState(0, 5));
+        PieceHashState state = null;
+
+        for(int i = 0; i < Constants.BLOCKS_PER_PIECE; ++i) {
+            PieceBlock b = new PieceBlock(0, i);
+            pm.writeBlock(b, getBuffer(b, Constants.BLOCK_SIZE_INT));
+            if (i == 6) {
+                // state includes written blocks only
+                state = pm.hashState(0, 5);
+                assertNull(pm.hashState(0, 0));
+            }
+        }
+
+        assertNotNull(state);
+        assertEquals(5, state.blocks.intValue());
+        assertNull(pm.hashState(0, Constants.BLOCKS_PER_PIECE));
+        Hash hash = pm.hashPiece(0);
+        pm.releaseFile();
+
+        PieceManager rpm = new PieceManager(new DesktopFileHandler(f), 3, 3);
+        rpm.restoreHashState(state);
+        for(int i = state.blocks.intValue(); i < Constants.BLOCKS_PER_PIECE; ++i) {
+            assertEquals(1, rpm.restoreBlock(new PieceBlock(0, i), ByteBuffer.allocate(Constants.BLOCK_SIZE_INT), fileSize).size());
+        }
+
+        assertEquals(hash, rpm.hashPiece(0));
+        rpm.releaseFile();
+    }
+
+    @Test
+    public void testWritePiece() throws IOException, JED2KException {
+        File f = folder.newFile("pm_piece.dat");
+        PieceManager pm = new PieceManager(new DesktopFileHandler(f), 3, 3);
+        ByteBuffer[] piece = new ByteBuffer[Constants.BLOCKS_PER_PIECE];
+        for(int i = 0; i < piece.length; ++i) piece[i] = getBuffer(new PieceBlock(1, i), Constants.BLOCK_SIZE_INT);
+        pm.writePiece(1, piece);
+        // buffers are not consumed
+        for(final ByteBuffer b: piece) assertEquals(Constants.BLOCK_SIZE_INT, b.remaining());
+        pm.releaseFile();
+
+        PieceManager rpm = new PieceManager(new DesktopFileHandler(f), 3, 3);
+        long fileSize = Constants.PIECE_SIZE*2 + Constants.BLOCK_SIZE*3;
+        for(int i: new int[] {0, 1, Constants.BLOCKS_PER_PIECE - 1}) {
+            ByteBuffer b = ByteBuffer.allocate(Constants.BLOCK_SIZE_INT);
+            PieceBlock pb = new PieceBlock(1, i);
+            rpm.restoreBlock(pb, b, fileSize);
+            b.rewind();
+            while(b.hasRemaining()) assertEquals(getBlockContent(pb), b.get());
+        }
+
+        rpm.releaseFile();
+    }
+
+    @Test
+    public void testWriteCombining() throws IOException, JED2KException {
+        File f = folder.newFile("pm_combine.dat");
+        WriteStatistics stat = new WriteStatistics();
+        PieceManager pm = new PieceManager(new DesktopFileHandler(f), 3, 3, stat);
+        PieceBlock[] blocks = { new PieceBlock(0, 0), new PieceBlock(0, 2), new PieceBlock(0, 1), new PieceBlock(0, 4) };
+        WriteCombiner.Entry[] entries = new WriteCombiner.Entry[blocks.length];
+        for(int i = 0; i < blocks.length; ++i) {
+            entries[i] = pm.queueBlock(blocks[i], getBuffer(blocks[i], Constants.BLOCK_SIZE_INT));
+        }
+
+        // first write takes adjacent blocks 0, 1, 2, block 4 is written alone
+        for(int i = 0; i < blocks.length; ++i) pm.writeBlock(blocks[i], entries[i]);
+        assertEquals(2, stat.writeCalls());
+        assertEquals(4*Constants.BLOCK_SIZE, stat.writtenBytes());
+        assertEquals(2*Constants.BLOCK_SIZE, stat.averageWriteBytes());
+        pm.releaseFile();
+
+        PieceManager rpm = new PieceManager(new DesktopFileHandler(f), 3, 3);
+        long fileSize = Constants.PIECE_SIZE*2 + Constants.BLOCK_SIZE*3;
+        for(int i: new int[] {0, 1, 2, 4}) {
+            ByteBuffer b = ByteBuffer.allocate(Constants.BLOCK_SIZE_INT);
+            PieceBlock pb = new PieceBlock(0, i);
+            rpm.restoreBlock(pb, b, fileSize);
+            b.rewind();
+            while(b.hasRemaining()) assertEquals(getBlockContent(pb), b.get());
+        }
+
+        rpm.releaseFile();
+    }
+
+    @Test
+    public void testFindCorruptedBlocks() throws IOException, JED2KException {
+        File f = folder.newFile("pm_aich.dat");
+        long fileSize = Constants.PIECE_SIZE + 1000;
+        byte[] data = new byte[(int)fileSize];
+        new Random(1).nextBytes(data);
+
+        List<AichHash> hashes = new ArrayList<AichHash>();
+        for(long offset = 0; offset < Constants.PIECE_SIZE; offset += AichTree.BLOCK_SIZE) {
+            int len = (int)Math.min(AichTree.BLOCK_SIZE, Constants.PIECE_SIZE - offset);
+            hashes.add(AichTree.blockHash(ByteBuffer.wrap(data, (int)offset, len)));
+        }
+
+        // byte inside AICH block 3 which overlaps blocks 2 and 3, last byte of piece is in last blocks of both
+        data[(int)(Constants.BLOCK_SIZE*3 + 10)] ^= 0xff;
+        data[(int)(Constants.PIECE_SIZE - 1)] ^= 0xff;
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(data);
+        os.close();
+
+        PieceManager pm = new PieceManager(new DesktopFileHandler(f), 2, 1);
+        FileChannel c = pm.openReadChannel();
+        assertEquals(Arrays.asList(2, 3, Constants.BLOCKS_PER_PIECE - 1), pm.findCorruptedBlocks(0, fileSize, c, hashes));
+        hashes.set(0, hashes.get(1));
+        assertEquals(Arrays.asList(0, 2, 3, Constants.BLOCKS_PER_PIECE - 1), pm.findCorruptedBlocks(0, fileSize, c, hashes));
+        c.close();
+        pm.releaseFile();
+    }
 }
@@ -3,6 +3,7 @@ package org.dkf.jed2k.test;
 
 import org.dkf.jed2k.*;
 import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.protocol.BitField;
 import org.dkf.jed2k.protocol.Endpoint;
 import org.junit.Before;
 import org.junit.Test;
@@ -400,4 +401,133 @@ public class PiecePickerTest {
             if (picker.numHave() == picker.totalPieces()) break;
         }
     }
+
+    private static BitField pieces(int size, int... have) {
+        BitField bf = new BitField(size);
+        for(int i: have) bf.setBit(i);
+        return bf;
+    }
+
+    private int nextPiece(final PiecePicker pp) {
+        int before = pp.numDowloadingPieces();
+        assertTrue(pp.chooseNextPiece());
+        assertEquals(before + 1, pp.numDowloadingPieces());
+        return pp.getDownloadingQueue().get(before).getPieceIndex();
+    }
+
+    @Test
+    public void testRarestFirst() {
+        PiecePicker pp = new PiecePicker(5, 10);
+        pp.addAvailability(pieces(5, 0, 1, 2, 3));
+        pp.addAvailability(pieces(5, 0, 1, 3));
+        pp.addAvailability(pieces(5, 0, 3));
+        assertEquals(3, pp.getAvailability(0));
+        assertEquals(1, pp.getAvailability(2));
+        assertEquals(0, pp.getAvailability(4));
+
+        assertEquals(2, nextPiece(pp));
+        assertEquals(1, nextPiece(pp));
+        int p = nextPiece(pp);
+        assertTrue(p == 0 || p == 3);
+        assertEquals(3 - p, nextPiece(pp));
+        // nobody has piece 4
+        assertFalse(pp.chooseNextPiece());
+    }
+
+    @Test
+    public void testAvailabilityChanges() {
+        PiecePicker pp = new PiecePicker(4, 10);
+        BitField bf1 = pieces(4, 0, 1);
+        BitField bf2 = pieces(4, 1, 2);
+        pp.addAvailability(bf1);
+        pp.addAvailability(bf2);
+        pp.addAvailability(null);
+        assertEquals(2, pp.getAvailability(0));
+        assertEquals(3, pp.getAvailability(1));
+        assertEquals(1, pp.getAvailability(3));
+
+        // only complete source has piece 3
+        assertEquals(3, nextPiece(pp));
+        pp.restorePiece(3);
+        pp.removeAvailability(null);
+        pp.removeAvailability(bf1);
+        assertEquals(0, pp.getAvailability(3));
+        assertEquals(1, pp.getAvailability(1));
+        int p = nextPiece(pp);
+        assertTrue(p == 1 || p == 2);
+        assertEquals(3 - p, nextPiece(pp));
+        assertFalse(pp.chooseNextPiece());
+
+        pp.weHaveBlock(new PieceBlock(0, 0));
+        pp.restorePiece(0);
+        pp.addAvailability(bf1);
+        assertEquals(0, nextPiece(pp));
+    }
+
+    @Test
+    public void testSequentialWithoutSources() {
+        PiecePicker pp = new PiecePicker(4, 10);
+        assertEquals(0, nextPiece(pp));
+        assertEquals(1, nextPiece(pp));
+        pp.restorePiece(0);
+        assertEquals(0, nextPiece(pp));
+        assertEquals(2, nextPiece(pp));
+    }
+
+    @Test
+    public void testPickOnlyRemotePieces() {
+        PiecePicker pp = new PiecePicker(70, 10);
+        BitField remote = pieces(70, 3, 69);
+        pp.addAvailability(remote);
+        pp.addAvailability(null);
+
+        LinkedList<PieceBlock> rq = new LinkedList<PieceBlock>();
+        pp.pickPieces(rq, Constants.BLOCKS_PER_PIECE*3, peer, PeerConnection.PeerSpeed.SLOW, remote);
+        assertEquals(Constants.BLOCKS_PER_PIECE + 10, rq.size());
+        for(final PieceBlock b: rq) {
+            assertTrue(b.pieceIndex == 3 || b.pieceIndex == 69);
+        }
+
+        // remote has nothing we need
+        rq.clear();
+        pp.pickPieces(rq, Constants.REQUEST_QUEUE_SIZE, peer2, PeerConnection.PeerSpeed.SLOW, remote);
+        assertTrue(rq.isEmpty());
+        assertFalse(pp.chooseNextPiece(pieces(70, 3)));
+
+        // complete source gets other pieces
+        pp.pickPieces(rq, Constants.REQUEST_QUEUE_SIZE, peer2, PeerConnection.PeerSpeed.SLOW, null);
+        assertEquals(Constants.REQUEST_QUEUE_SIZE, rq.size());
+        assertTrue(rq.get(0).pieceIndex != 3 && rq.get(0).pieceIndex != 69);
+    }
+
+    @Test
+    public void testSequentialRemotePieces() {
+        PiecePicker pp = new PiecePicker(4, 10);
+        LinkedList<PieceBlock> rq = new LinkedList<PieceBlock>();
+        pp.pickPieces(rq, 1, peer, PeerConnection.PeerSpeed.SLOW, pieces(4, 2, 3));
+        assertEquals(new PieceBlock(2, 0), rq.get(0));
+    }
+
+    @Test
+    public void testDownloadingPieceLookup() {
+        PiecePicker pp = new PiecePicker(4, 10);
+        pp.downloadPiece(2);
+        pp.weHaveBlock(new PieceBlock(0, 1));
+        assertEquals(2, pp.getDownloadingPiece(2).getPieceIndex());
+        assertEquals(0, pp.getDownloadingPiece(0).getPieceIndex());
+        assertNull(pp.getDownloadingPiece(1));
+        // order of downloading queue is preserved
+        assertEquals(2, pp.getDownloadingQueue().get(0).getPieceIndex());
+        assertEquals(0, pp.getDownloadingQueue().get(1).getPieceIndex());
+
+        pp.restorePiece(2);
+        assertNull(pp.getDownloadingPiece(2));
+        assertEquals(1, pp.numDowloadingPieces());
+        pp.markAsFinished(new PieceBlock(0, 0));
+        for(int i = 2; i < Constants.BLOCKS_PER_PIECE; ++i) pp.markAsFinished(new PieceBlock(0, i));
+        assertTrue(pp.isPieceFinished(0));
+        pp.weHave(0);
+        assertNull(pp.getDownloadingPiece(0));
+        assertTrue(pp.havePiece(0));
+    }
 }
@@ -0,0 +1,80 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.Alert;
+import org.dkf.jed2k.alert.TransferCheckedAlert;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Endpoint;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.TransferResumeData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class RecheckTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testForceRecheck() throws IOException, JED2KException, InterruptedException {
+        long fileSize = Constants.PIECE_SIZE*2 + 1000;
+        byte[] data = new byte[(int)fileSize];
+        for(int i = 0; i < data.length; ++i) data[i] = (byte)(i % 251);
+
+        TransferResumeData trd = new TransferResumeData();
+        for(int i = 0; i < 3; ++i) {
+            MD4 md4 = new MD4();
+            int offset = (int)(i*Constants.PIECE_SIZE);
+            md4.update(data, offset, (int)Math.min(Constants.PIECE_SIZE, fileSize - offset));
+            trd.hashes.add(Hash.fromBytes(md4.digest()));
+        }
+
+        trd.pieces.resize(3);
+
+        // second piece is damaged on disk
+        data[(int)Constants.PIECE_SIZE + 10]++;
+        File f = folder.newFile("recheck.dat");
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(data);
+        os.close();
+
+        Settings settings = new Settings();
+        settings.listenPort = -1;
+        settings.hashThreads = 2;
+        Session session = new SessionTrial(settings, new LinkedList<Endpoint>());
+        session.start();
+
+        AddTransferParams atp = new AddTransferParams(Hash.EMULE, Time.currentTimeMillis(), fileSize, f, true);
+        atp.resumeData.setData(trd);
+        TransferHandle handle = session.addTransfer(atp);
+        assertEquals(0, handle.getStatus().numPieces);
+        handle.forceRecheck();
+
+        TransferCheckedAlert checked = null;
+        for(int i = 0; i < 100 && checked == null; ++i) {
+            Alert a = session.popAlert();
+            if (a instanceof TransferCheckedAlert) checked = (TransferCheckedAlert)a;
+            else if (a == null) Thread.sleep(100);
+        }
+
+        assertNotNull(checked);
+        assertEquals(2, checked.numHave);
+        TransferStatus status = handle.getStatus();
+        assertFalse(status.checking);
+        assertTrue(status.pieces.getBit(0));
+        assertFalse(status.pieces.getBit(1));
+        assertTrue(status.pieces.getBit(2));
+
+        session.abort();
+        session.join();
+    }
+}
@@ -0,0 +1,91 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.*;
+import org.dkf.jed2k.alert.TransferFinishedAlert;
+import org.dkf.jed2k.data.PieceBlock;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.hash.MD4;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.protocol.PieceHashState;
+import org.dkf.jed2k.protocol.TransferResumeData;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.dkf.jed2k.test.LoopbackSessions.*;
+import static org.junit.Assert.*;
+
+/**
+ * transfer restored with hashing state of partial piece downloads the rest of piece from loopback seeder
+ */
+public class ResumeHashStateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Session seeder = null;
+    private Session downloader = null;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (downloader != null) {
+            downloader.abort();
+            downloader.join();
+        }
+
+        if (seeder != null) {
+            seeder.abort();
+            seeder.join();
+        }
+    }
+
+    /**
+     * first blocks of piece are on disk and covered by hashing state, the rest is received from seeder
+     * @param verifyInMemory verify piece in memory mode of downloader
+     */
+    private void resume(boolean verifyInMemory) throws IOException, JED2KException, InterruptedException {
+        final int block = Constants.BLOCK_SIZE_INT;
+        final int hashedBlocks = 2;
+        byte[] data = randomData(block*3 + 1000);
+        Hash hash = md4(data);
+        seeder = startSeeder(new Settings(), folder.newFile("seed.dat"), data);
+
+        File f = folder.newFile("download.dat");
+        writeFile(f, data, block*hashedBlocks);
+        MD4 md4 = new MD4();
+        md4.update(data, 0, block*hashedBlocks);
+        TransferResumeData trd = new TransferResumeData();
+        trd.hashes.add(hash);
+        trd.pieces.resize(1);
+        for(int i = 0; i < hashedBlocks; ++i) trd.downloadedBlocks.add(new PieceBlock(0, i));
+        trd.hashStates.add(new PieceHashState(0, hashedBlocks, md4.getContext()));
+
+        Settings settings = new Settings();
+        settings.verifyPieceInMemory = verifyInMemory;
+        downloader = startDownloader(settings, endpoint(seeder));
+        AddTransferParams atp = new AddTransferParams(hash, Time.currentTimeMillis(), data.length, f, false);
+        atp.resumeData.setData(trd);
+        downloader.addTransfer(atp);
+
+        // piece passes only when hashing continued from restored state
+        assertNotNull(waitAlert(downloader, TransferFinishedAlert.class));
+        downloader.abort();
+        downloader.join();
+        downloader = null;
+        assertArrayEquals(data, readFile(f, data.length));
+    }
+
+    @Test(timeout = 60000)
+    public void testResumeHashState() throws IOException, JED2KException, InterruptedException {
+        resume(false);
+    }
+
+    @Test(timeout = 60000)
+    public void testResumeHashStateVerifyInMemory() throws IOException, JED2KException, InterruptedException {
+        resume(true);
+    }
+}
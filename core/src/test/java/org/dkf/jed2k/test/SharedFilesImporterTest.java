@@ -0,0 +1,83 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.AddTransferParams;
+import org.dkf.jed2k.Constants;
+import org.dkf.jed2k.exception.JED2KException;
+import org.dkf.jed2k.protocol.Hash;
+import org.dkf.jed2k.share.KnownFile;
+import org.dkf.jed2k.share.KnownFiles;
+import org.dkf.jed2k.share.SharedFilesImporter;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SharedFilesImporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File makeFile(final String name, long size) throws IOException {
+        File f = folder.newFile(name);
+        byte[] data = new byte[(int)size];
+        Arrays.fill(data, (byte)'X');
+        try(FileOutputStream os = new FileOutputStream(f)) {
+            os.write(data);
+        }
+
+        return f;
+    }
+
+    @Test
+    public void testImportAndCache() throws IOException, JED2KException {
+        Assume.assumeTrue(!System.getProperty("java.runtime.name").toLowerCase().startsWith("android"));
+        File small = makeFile("small", 100);
+        File piece = makeFile("piece", Constants.PIECE_SIZE);
+        File pieceAndByte = makeFile("pieceAndByte", Constants.PIECE_SIZE + 1);
+        File empty = folder.newFile("empty");
+
+        KnownFiles cache = new KnownFiles();
+        SharedFilesImporter importer = new SharedFilesImporter(cache, 2);
+        List<KnownFile> files = importer.importFiles(Arrays.asList(small, empty, piece, pieceAndByte, new File(folder.getRoot(), "missing")));
+        assertEquals(3, files.size());
+        assertEquals(3, importer.getHashedFiles());
+        assertEquals(Hash.fromString("1AA8AFE3018B38D9B4D880D0683CCEB5"), files.get(0).getHash());
+        assertEquals(Hash.fromString("E76BADB8F958D7685B4549D874699EE9"), files.get(1).getHash());
+        assertEquals(Hash.fromString("49EC2B5DEF507DEA73E106FEDB9697EE"), files.get(2).getHash());
+        assertEquals(1, files.get(1).getPieceHashes().length);
+        assertEquals(2, files.get(2).getPieceHashes().length);
+        assertEquals(small.getAbsolutePath(), files.get(0).getPath());
+
+        AddTransferParams atp = files.get(2).toTransferParams();
+        assertEquals(2, atp.resumeData.getData().hashes.size());
+        assertTrue(atp.resumeData.getData().pieces.getBit(1));
+
+        File cacheFile = folder.newFile("known.dat");
+        cache.save(cacheFile);
+        KnownFiles restored = new KnownFiles();
+        restored.load(cacheFile);
+        assertEquals(3, restored.size());
+
+        // unchanged files are taken from cache, changed file is hashed again
+        assertTrue(small.setLastModified(small.lastModified() - 10000));
+        SharedFilesImporter importer2 = new SharedFilesImporter(restored, 2);
+        files = importer2.importFiles(Arrays.asList(small, piece, pieceAndByte));
+        assertEquals(3, files.size());
+        assertEquals(2, importer2.getCachedFiles());
+        assertEquals(1, importer2.getHashedFiles());
+        assertEquals(Hash.fromString("E76BADB8F958D7685B4549D874699EE9"), files.get(1).getHash());
+        assertEquals(Hash.fromString("49EC2B5DEF507DEA73E106FEDB9697EE"), files.get(2).getHash());
+        assertEquals(Hash.fromString("1AA8AFE3018B38D9B4D880D0683CCEB5"), files.get(0).getHash());
+
+        importer.shutdown();
+        importer2.shutdown();
+    }
+}
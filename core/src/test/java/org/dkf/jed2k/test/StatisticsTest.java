@@ -39,4 +39,21 @@ public class StatisticsTest {
         assertEquals(0l, stat.downloadPayloadRate());
         assertEquals(0l, stat.downloadRate());
     }
+
+    @Test
+    public void testWriteCalls() {
+        Statistics stat = new Statistics();
+        assertEquals(0, stat.writeCallsPerPacket(), 0.0001);
+        stat.sendPackets(10);
+        stat.writeCall();
+        stat.writeCall();
+        assertEquals(2, stat.writeCalls());
+        assertEquals(10, stat.packetsSent());
+        assertEquals(0.2, stat.writeCallsPerPacket(), 0.0001);
+
+        Statistics total = new Statistics();
+        total.add(stat).add(stat);
+        assertEquals(4, total.writeCalls());
+        assertEquals(20, total.packetsSent());
+    }
 }
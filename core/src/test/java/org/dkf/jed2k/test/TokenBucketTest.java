@@ -0,0 +1,63 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.TokenBucket;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testUnlimited() {
+        TokenBucket bucket = new TokenBucket();
+        assertFalse(bucket.isLimited());
+        bucket.consume(1000000, 10);
+        assertEquals(Long.MAX_VALUE, bucket.available(10));
+    }
+
+    @Test
+    public void testRefillAndBurst() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(1000);
+        assertTrue(bucket.isLimited());
+        // burst is limited by one second of rate
+        assertEquals(1000, bucket.available(100000));
+        bucket.consume(1000, 100000);
+        assertEquals(0, bucket.available(100000));
+        assertEquals(100, bucket.available(100100));
+        assertEquals(1000, bucket.available(105000));
+    }
+
+    @Test
+    public void testSmallIntervalsAccumulate() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(100);
+        bucket.consume(bucket.available(10000), 10000);
+        // 0.1 byte per millisecond must not be lost
+        for(long now = 10001; now <= 10100; ++now) bucket.available(now);
+        assertEquals(10, bucket.available(10100));
+    }
+
+    @Test
+    public void testDebt() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(1000);
+        bucket.consume(3000, 10000);
+        assertEquals(-2000, bucket.available(10000));
+        assertEquals(-1000, bucket.available(11000));
+        assertEquals(500, bucket.available(12500));
+    }
+
+    @Test
+    public void testRateChangeTruncatesTokens() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(1000);
+        assertEquals(1000, bucket.available(10000));
+        bucket.setRate(200);
+        assertEquals(200, bucket.available(10000));
+        bucket.setRate(0);
+        assertEquals(Long.MAX_VALUE, bucket.available(10000));
+    }
+}
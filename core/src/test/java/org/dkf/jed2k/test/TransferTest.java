@@ -29,7 +29,7 @@ public class TransferTest {
     public void testRestore() throws JED2KException {
         Assume.assumeTrue(!System.getProperty("java.runtime.name").toLowerCase().startsWith("android"));
         Session s = Mockito.mock(Session.class);
-        when(s.allocatePoolBuffer()).thenReturn(ByteBuffer.allocate(100));
+        when(s.allocatePoolBuffer(any(Transfer.class))).thenReturn(ByteBuffer.allocate(100));
         TransferResumeData trd = new TransferResumeData();
         trd.hashes.add(Hash.INVALID);
         trd.hashes.add(Hash.EMULE);
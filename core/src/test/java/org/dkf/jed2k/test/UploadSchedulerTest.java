@@ -0,0 +1,251 @@
+package org.dkf.jed2k.test;
+
+import org.dkf.jed2k.Settings;
+import org.dkf.jed2k.Time;
+import org.dkf.jed2k.UploadScheduler;
+import org.dkf.jed2k.protocol.Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSchedulerTest {
+
+    private static class TestClient implements UploadScheduler.Client {
+        final Hash hash;
+        long uploaded = 0;
+        long downloaded = 0;
+        int accepted = 0;
+        int rank = 0;
+        int stopped = 0;
+        int rejected = 0;
+
+        TestClient(final Hash hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public Hash getUserHash() {
+            return hash;
+        }
+
+        @Override
+        public long totalUploaded() {
+            return uploaded;
+        }
+
+        @Override
+        public long totalDownloaded() {
+            return downloaded;
+        }
+
+        @Override
+        public void acceptUpload() {
+            ++accepted;
+        }
+
+        @Override
+        public void sendQueueRanking(int rank) {
+            this.rank = rank;
+        }
+
+        @Override
+        public void stopUpload() {
+            ++stopped;
+        }
+
+        @Override
+        public void rejectUpload() {
+            ++rejected;
+        }
+    }
+
+    private Random rnd = new Random();
+    private Settings settings;
+
+    private Hash randomHash() {
+        byte[] data = new byte[16];
+        rnd.nextBytes(data);
+        return Hash.fromBytes(data);
+    }
+
+    @Before
+    public void setUp() {
+        settings = new Settings();
+        settings.uploadSlots = 2;
+        settings.uploadSlotQuota = 1000;
+        settings.uploadQueueSize = 3;
+    }
+
+    @Test
+    public void testSlotsAndQueue() {
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(randomHash());
+        TestClient c2 = new TestClient(randomHash());
+        TestClient c3 = new TestClient(randomHash());
+        TestClient c4 = new TestClient(randomHash());
+        long now = 1000;
+
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, now);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, now);
+        assertEquals(1, c1.accepted);
+        assertEquals(1, c2.accepted);
+        assertTrue(scheduler.isUploading(c1));
+
+        scheduler.request(c3, UploadScheduler.Priority.NORMAL, now + 1);
+        scheduler.request(c4, UploadScheduler.Priority.NORMAL, now + 2);
+        // ranks are sent after recomputation on second tick
+        assertEquals(0, c3.rank);
+        scheduler.secondTick(now + 2);
+        assertEquals(0, c3.accepted);
+        assertEquals(1, c3.rank);
+        assertEquals(2, c4.rank);
+        assertEquals(2, scheduler.getQueueSize());
+
+        // repeated request returns the same rank
+        scheduler.request(c4, UploadScheduler.Priority.NORMAL, now + 3);
+        assertEquals(2, c4.rank);
+
+        scheduler.remove(c1);
+        assertFalse(scheduler.isUploading(c1));
+        scheduler.secondTick(now + 10);
+        assertEquals(1, c3.accepted);
+        assertEquals(0, c4.accepted);
+        assertEquals(2, scheduler.getSlotsCount());
+        assertEquals(1, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void testSlotRotation() {
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(randomHash());
+        TestClient c2 = new TestClient(randomHash());
+        TestClient c3 = new TestClient(randomHash());
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(c3, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.secondTick(0);
+        assertEquals(1, c3.rank);
+
+        c1.uploaded = 999;
+        scheduler.secondTick(1000);
+        assertEquals(0, c1.stopped);
+        c1.uploaded = 1000;
+        scheduler.secondTick(2000);
+        assertEquals(1, c1.stopped);
+        assertEquals(1, c1.rank);
+        assertEquals(1, c3.accepted);
+        assertTrue(scheduler.isUploading(c3));
+        assertFalse(scheduler.isUploading(c1));
+    }
+
+    @Test
+    public void testCreditsAndPriorityOrder() {
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        scheduler.request(new TestClient(randomHash()), UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(new TestClient(randomHash()), UploadScheduler.Priority.NORMAL, 0);
+
+        TestClient early = new TestClient(randomHash());
+        TestClient generous = new TestClient(randomHash());
+        TestClient release = new TestClient(randomHash());
+        generous.downloaded = 100*1024*1024l;
+        scheduler.request(early, UploadScheduler.Priority.NORMAL, Time.minutes(1));
+        scheduler.secondTick(Time.minutes(1));
+        assertEquals(1, early.rank);
+        scheduler.request(generous, UploadScheduler.Priority.NORMAL, Time.minutes(5));
+        scheduler.secondTick(Time.minutes(5));
+        assertEquals(1, generous.rank);
+        assertEquals(1, early.rank);    // rank is sent only on request
+        scheduler.request(release, UploadScheduler.Priority.RELEASE, Time.minutes(6));
+        scheduler.secondTick(Time.minutes(6));
+        assertEquals(2, release.rank);
+        scheduler.request(early, UploadScheduler.Priority.NORMAL, Time.minutes(7));
+        assertEquals(3, early.rank);
+    }
+
+    @Test
+    public void testReconnectKeepsPosition() {
+        settings.uploadSlots = 0;
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(randomHash());
+        TestClient c2 = new TestClient(randomHash());
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, 10);
+        scheduler.secondTick(10);
+        assertEquals(2, c2.rank);
+        scheduler.remove(c1);
+        assertEquals(1, scheduler.getQueueSize());
+
+        TestClient c1Again = new TestClient(c1.hash);
+        scheduler.request(c1Again, UploadScheduler.Priority.NORMAL, 100);
+        scheduler.secondTick(100);
+        assertEquals(1, c1Again.rank);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, 110);
+        assertEquals(2, c2.rank);
+    }
+
+    @Test
+    public void testQueueLimit() {
+        settings.uploadSlots = 0;
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        int rejected = 0;
+        for(int i = 0; i < 10; ++i) {
+            TestClient c = new TestClient(randomHash());
+            scheduler.request(c, UploadScheduler.Priority.NORMAL, i);
+            rejected += c.rejected;
+        }
+
+        assertEquals(3, scheduler.getQueueSize());
+        assertEquals(7, rejected);
+    }
+
+    @Test
+    public void testRejectWithoutUserHash() {
+        settings.uploadSlots = 0;
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(new Hash());
+        TestClient c2 = new TestClient(new Hash());
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, 0);
+        assertEquals(1, c1.rejected);
+        assertEquals(1, c2.rejected);
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void testHashReassignedAfterRequest() {
+        settings.uploadSlots = 0;
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(randomHash());
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, 0);
+
+        // connection's hash object changes in place on next hello, scheduler keeps own copy
+        Hash old = new Hash(c1.hash);
+        c1.hash.assign(randomHash());
+        TestClient c1Again = new TestClient(old);
+        scheduler.request(c1Again, UploadScheduler.Priority.NORMAL, 10);
+        assertEquals(1, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void testForgetDisconnected() {
+        settings.uploadSlots = 0;
+        UploadScheduler scheduler = new UploadScheduler(settings);
+        TestClient c1 = new TestClient(randomHash());
+        TestClient c2 = new TestClient(randomHash());
+        scheduler.request(c1, UploadScheduler.Priority.NORMAL, 0);
+        scheduler.request(c2, UploadScheduler.Priority.NORMAL, 10);
+        scheduler.remove(c1);
+        scheduler.secondTick(Time.hours(2));
+
+        // forgotten client enters queue as new
+        TestClient c1Again = new TestClient(c1.hash);
+        scheduler.request(c1Again, UploadScheduler.Priority.NORMAL, Time.hours(2));
+        scheduler.secondTick(Time.hours(2));
+        assertEquals(2, c1Again.rank);
+    }
+}